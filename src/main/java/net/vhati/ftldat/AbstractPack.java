@@ -4,6 +4,7 @@ import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 
@@ -69,6 +70,36 @@ public abstract class AbstractPack {
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * Calls a visitor with each innerFile, until it returns false.
+	 *
+	 * Packs that know where their data lies visit innerFiles in the order
+	 * it appears in the dat, so reading each in turn is sequential. This
+	 * default visits them in listSizes() order, via getInputStream().
+	 *
+	 * The same VisitedEntry may be reused for every call, and any stream
+	 * it opened is closed once the visitor returns, so don't keep either.
+	 * Don't modify this dat during the walk.
+	 */
+	public void forEachEntry( EntryVisitor visitor ) throws IOException {
+		ListedEntry entry = new ListedEntry( this );
+		try {
+			for ( PathAndSize pas : listSizes() ) {
+				entry.path = pas.path;
+				entry.size = pas.size;
+				entry.storedSize = pas.size;
+				entry.compressed = false;
+
+				boolean proceed = visitor.visit( entry );
+				entry.finish();
+				if ( !proceed ) break;
+			}
+		}
+		finally {
+			entry.finish();
+		}
+	}
+
 	/**
 	 * Closes this dat and releases any system resources associated with the stream.
 	 */
@@ -101,18 +132,113 @@ public abstract class AbstractPack {
 
 
 
+	/**
+	 * Receives innerFiles from forEachEntry().
+	 */
+	public static interface EntryVisitor {
+
+		/**
+		 * Handles an innerFile.
+		 *
+		 * @return true to continue, false to stop early
+		 */
+		public boolean visit( VisitedEntry entry ) throws IOException;
+	}
+
+
+
+	/**
+	 * An innerFile seen during forEachEntry(), only valid until the visitor returns.
+	 *
+	 * Nothing is read unless asked for.
+	 */
+	public static abstract class VisitedEntry {
+		public String path = null;
+
+		/** Length of the innerFile's content. */
+		public long size = 0;
+
+		/** Length of the bytes stored in the dat. */
+		public long storedSize = 0;
+
+		/** Whether the stored bytes are compressed. */
+		public boolean compressed = false;
+
+		private InputStream stream = null;
+
+		/**
+		 * Returns a stream of the innerFile's content, opening it on first call.
+		 */
+		public InputStream getInputStream() throws IOException {
+			if ( stream == null ) stream = openInputStream();
+			return stream;
+		}
+
+		/**
+		 * Returns the stored bytes (possibly compressed) without copying, or
+		 * null if they aren't in memory, as with a memory-mapped dat.
+		 *
+		 * The buffer must not be used after the visitor returns. A mapping
+		 * may be released then.
+		 */
+		public ByteBuffer getStoredBuffer() throws IOException {
+			return null;
+		}
+
+		protected abstract InputStream openInputStream() throws IOException;
+
+		/**
+		 * Closes any stream opened during the visit.
+		 */
+		protected void finish() {
+			try {if ( stream != null ) stream.close();}
+			catch ( IOException e ) {}
+			stream = null;
+		}
+	}
+
+	/**
+	 * A VisitedEntry that looks its innerPath up in a pack.
+	 */
+	private static class ListedEntry extends VisitedEntry {
+		private final AbstractPack pack;
+
+		public ListedEntry( AbstractPack pack ) {
+			this.pack = pack;
+		}
+
+		@Override
+		protected InputStream openInputStream() throws IOException {
+			return pack.getInputStream( path );
+		}
+	}
+
+
+
 	/**
 	 * A holder for results after repacking a dat.
+	 *
+	 * bytesPlanned is how much innerFile data needed to move to close every
+	 * gap. bytesMoved is how much actually did: less, if the repack was
+	 * skipped for being hardly fragmented.
 	 */
 	public static class RepackResult {
 		public long oldDatLength = 0;
 		public long newDatLength = 0;
 		public long bytesChanged = 0;
+		public long bytesPlanned = 0;
+		public long bytesMoved = 0;
 
 		public RepackResult( long oldDatLength, long newDatLength, long bytesChanged ) {
+			this( oldDatLength, newDatLength, bytesChanged, 0, 0 );
+		}
+
+		public RepackResult( long oldDatLength, long newDatLength, long bytesChanged, long bytesPlanned, long bytesMoved ) {
 			this.oldDatLength = oldDatLength;
 			this.newDatLength = newDatLength;
 			this.bytesChanged = bytesChanged;
+			this.bytesPlanned = bytesPlanned;
+			this.bytesMoved = bytesMoved;
 		}
 	}
 }
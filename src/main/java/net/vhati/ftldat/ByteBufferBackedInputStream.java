@@ -0,0 +1,136 @@
+package net.vhati.ftldat;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+
+
+/**
+ * An InputStream that reads the remaining bytes of a ByteBuffer.
+ *
+ * This is intended for slices of a memory-mapped dat. Reads copy straight
+ * out of the mapping, without any channel calls.
+ *
+ * A mapping can outlive the file it came from, so a channel may be given
+ * to watch. Once that channel is closed, this stream will refuse to read,
+ * as FileChannelRegionInputStream would.
+ *
+ * A stream over a pack's SharedMapping holds a lease on it, which keeps the
+ * pack from unmapping it mid-read. The lease is returned by close().
+ */
+public class ByteBufferBackedInputStream extends InputStream {
+
+	private Channel channel;
+	private SharedMapping mapping;
+	private ByteBuffer buf;
+	private int markPos = -1;
+	private boolean closed = false;
+
+
+	public ByteBufferBackedInputStream( ByteBuffer buf ) {
+		this( null, buf );
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param channel a channel to check before each read, or null
+	 * @param buf a buffer whose remaining bytes will be read (its position will change)
+	 */
+	public ByteBufferBackedInputStream( Channel channel, ByteBuffer buf ) {
+		this( channel, null, buf );
+	}
+
+	/**
+	 * Constructs a stream over part of a shared mapping.
+	 *
+	 * @param mapping a mapping on which the caller has already taken a lease for this stream, or null
+	 */
+	ByteBufferBackedInputStream( Channel channel, SharedMapping mapping, ByteBuffer buf ) {
+		this.channel = channel;
+		this.mapping = mapping;
+		this.buf = buf;
+	}
+
+	/**
+	 * Returns the underlying buffer.
+	 *
+	 * Its position reflects how much of this stream has been read.
+	 */
+	public ByteBuffer getBuffer() {
+		return buf;
+	}
+
+	@Override
+	public int available() throws IOException {
+		ensureOpen();
+		return buf.remaining();
+	}
+
+	@Override
+	public int read() throws IOException {
+		ensureOpen();
+		if ( !buf.hasRemaining() ) return -1;
+
+		return buf.get() & 0xff;
+	}
+
+	@Override
+	public int read( byte[] b, int bOff, int bLen ) throws IOException {
+		if ( bLen == 0 ) return 0;
+		if ( bOff < 0 ) throw new IndexOutOfBoundsException( String.format( "Index: %d, Size: %d", bOff, bLen ) );
+		if ( bOff + bLen > b.length ) throw new IndexOutOfBoundsException( String.format( "Index: %d, Size: %d", (bOff+bLen), bLen ) );
+		ensureOpen();
+		if ( !buf.hasRemaining() ) return -1;
+
+		int len = Math.min( bLen, buf.remaining() );
+		buf.get( b, bOff, len );
+		return len;
+	}
+
+	@Override
+	public long skip( long n ) throws IOException {
+		ensureOpen();
+		if ( n <= 0 ) return 0;
+
+		int len = (int)Math.min( n, buf.remaining() );
+		buf.position( buf.position() + len );
+		return len;
+	}
+
+	/**
+	 * Releases this stream's lease on the mapping, if any.
+	 */
+	@Override
+	public void close() throws IOException {
+		if ( closed ) return;
+		closed = true;
+
+		if ( mapping != null ) mapping.release();
+		mapping = null;
+	}
+
+	private void ensureOpen() throws IOException {
+		if ( closed ) throw new IOException( "Stream closed" );
+		if ( channel != null && !channel.isOpen() ) throw new ClosedChannelException();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark( int readlimit ) {
+		markPos = buf.position();
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		ensureOpen();
+		if ( markPos == -1 ) throw new IOException( "Mark not set" );
+		buf.position( markPos );
+	}
+}
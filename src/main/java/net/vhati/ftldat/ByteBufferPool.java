@@ -0,0 +1,78 @@
+package net.vhati.ftldat;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * A shared pool of direct ByteBuffers, in a few fixed sizes.
+ *
+ * Direct buffers are costly to allocate and are only freed when garbage
+ * collected, so streams that come and go borrow them from here instead.
+ * A buffer that's never released is simply collected as usual.
+ */
+final class ByteBufferPool {
+
+	/** Capacities of pooled buffers, smallest first. */
+	private static final int[] POOL_SIZES = new int[] {4096, 32768, 131072};
+
+	/** Most idle buffers to keep of each size. */
+	private static final int POOL_LIMIT = 8;
+
+	private static final ConcurrentLinkedQueue<ByteBuffer> smallPool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private static final ConcurrentLinkedQueue<ByteBuffer> mediumPool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private static final ConcurrentLinkedQueue<ByteBuffer> largePool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+
+	private ByteBufferPool() {
+	}
+
+	/**
+	 * Returns the capacity acquire() would give for a desired size.
+	 *
+	 * That's the smallest pooled size that fits, or the largest one.
+	 */
+	public static int getPooledSize( long desiredSize ) {
+		for ( int size : POOL_SIZES ) {
+			if ( desiredSize <= size ) return size;
+		}
+		return POOL_SIZES[POOL_SIZES.length-1];
+	}
+
+	/**
+	 * Borrows a cleared direct buffer.
+	 *
+	 * @param desiredSize a hint, see getPooledSize()
+	 */
+	public static ByteBuffer acquire( long desiredSize ) {
+		int size = getPooledSize( desiredSize );
+
+		ByteBuffer result = getPool( size ).poll();
+		if ( result == null ) {
+			result = ByteBuffer.allocateDirect( size );
+		}
+		result.clear();
+		return result;
+	}
+
+	/**
+	 * Returns a buffer from acquire() to the pool.
+	 *
+	 * The caller must not touch it afterward.
+	 */
+	public static void release( ByteBuffer buf ) {
+		Queue<ByteBuffer> pool = getPool( buf.capacity() );
+		if ( pool == null || !buf.isDirect() ) return;
+
+		// The limit is approximate, which is fine.
+		if ( pool.size() < POOL_LIMIT ) pool.offer( buf );
+	}
+
+	private static Queue<ByteBuffer> getPool( int size ) {
+		if ( size == POOL_SIZES[0] ) return smallPool;
+		if ( size == POOL_SIZES[1] ) return mediumPool;
+		if ( size == POOL_SIZES[2] ) return largePool;
+		return null;
+	}
+}
@@ -0,0 +1,238 @@
+package net.vhati.ftldat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.vhati.ftldat.PackUtilities;
+
+
+/**
+ * Records which byte ranges of a file have changed, relative to a copy.
+ *
+ * A dat that starts out identical to its backup can be put back by
+ * copying only the ranges written since, then truncating to the original
+ * length. Writes past the original length don't matter, since those bytes
+ * get truncated. If the file was truncated below the original length, all
+ * bytes from there on are considered changed.
+ *
+ * When saved, the journal is stamped with the length and mtime of both
+ * files. If either has changed by the time it's loaded, the journal is
+ * stale and load() returns null, so the caller should copy in full.
+ */
+public class DirtyRangeJournal {
+
+	private static final int MAGIC = 0x444A524E;  // "DJRN"
+	private static final int VERSION = 1;
+
+	private long originalLength;
+	private long minLength;
+
+	// Merged, non-adjacent ranges: start offset to end offset (exclusive).
+	private TreeMap<Long, Long> rangeMap = new TreeMap<Long, Long>();
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param originalLength the length of the file (and its copy) before any writes
+	 */
+	public DirtyRangeJournal( long originalLength ) {
+		this.originalLength = originalLength;
+		this.minLength = originalLength;
+	}
+
+	public long getOriginalLength() {
+		return originalLength;
+	}
+
+	/**
+	 * Notes that bytes were written.
+	 */
+	public synchronized void noteWrite( long offset, long length ) {
+		long start = offset;
+		long end = Math.min( offset + length, minLength );
+		if ( length <= 0 || start >= end ) return;
+
+		// Absorb any range that overlaps or touches this one.
+		Map.Entry<Long, Long> prev = rangeMap.floorEntry( start );
+		if ( prev != null && prev.getValue().longValue() >= start ) {
+			start = prev.getKey().longValue();
+			end = Math.max( end, prev.getValue().longValue() );
+			rangeMap.remove( prev.getKey() );
+		}
+		Map.Entry<Long, Long> next = rangeMap.ceilingEntry( start );
+		while ( next != null && next.getKey().longValue() <= end ) {
+			end = Math.max( end, next.getValue().longValue() );
+			rangeMap.remove( next.getKey() );
+			next = rangeMap.ceilingEntry( start );
+		}
+		rangeMap.put( start, end );
+	}
+
+	/**
+	 * Notes that the file's length was set.
+	 *
+	 * Growing is harmless. Truncating below the original length means
+	 * everything from there on will need restoring.
+	 */
+	public synchronized void noteLength( long newLength ) {
+		if ( newLength >= minLength ) return;
+		minLength = newLength;
+
+		// Ranges beyond that are now redundant.
+		while ( !rangeMap.isEmpty() && rangeMap.lastKey().longValue() >= minLength ) {
+			rangeMap.pollLastEntry();
+		}
+		if ( !rangeMap.isEmpty() && rangeMap.lastEntry().getValue().longValue() > minLength ) {
+			rangeMap.put( rangeMap.lastKey(), minLength );
+		}
+	}
+
+	/**
+	 * Returns the number of bytes restore() would copy.
+	 */
+	public synchronized long getDirtyBytes() {
+		long result = originalLength - minLength;
+		for ( Map.Entry<Long, Long> range : rangeMap.entrySet() ) {
+			result += range.getValue().longValue() - range.getKey().longValue();
+		}
+		return result;
+	}
+
+	/**
+	 * Copies changed ranges from srcFile over dstFile, then truncates it.
+	 *
+	 * Afterward, dstFile is identical to srcFile, assuming the journal
+	 * covered every change.
+	 *
+	 * @param srcFile the unchanged copy (a backup)
+	 * @param dstFile the file this journal was recording
+	 */
+	public synchronized void restore( File srcFile, File dstFile ) throws IOException {
+		RandomAccessFile srcRaf = null;
+		RandomAccessFile dstRaf = null;
+		try {
+			srcRaf = new RandomAccessFile( srcFile, "r" );
+			dstRaf = new RandomAccessFile( dstFile, "rw" );
+			FileChannel srcChannel = srcRaf.getChannel();
+			FileChannel dstChannel = dstRaf.getChannel();
+
+			if ( srcChannel.size() != originalLength ) {
+				throw new IOException( String.format( "Backup length differs from journal (%d vs %d): %s", srcChannel.size(), originalLength, srcFile.getPath() ) );
+			}
+
+			for ( Map.Entry<Long, Long> range : rangeMap.entrySet() ) {
+				copyRange( srcChannel, dstChannel, range.getKey().longValue(), range.getValue().longValue() );
+			}
+			copyRange( srcChannel, dstChannel, minLength, originalLength );
+
+			dstChannel.truncate( originalLength );
+		}
+		finally {
+			try {if ( srcRaf != null ) srcRaf.close();}
+			catch ( IOException e ) {}
+
+			try {if ( dstRaf != null ) dstRaf.close();}
+			catch ( IOException e ) {}
+		}
+	}
+
+	private void copyRange( FileChannel srcChannel, FileChannel dstChannel, long start, long end ) throws IOException {
+		if ( start >= end ) return;
+
+		dstChannel.position( start );
+		long len = PackUtilities.transferRegion( srcChannel, start, end - start, dstChannel );
+		if ( len != end - start ) {
+			throw new IOException( "EOF prematurely reached restoring range at offset "+ start );
+		}
+	}
+
+	/**
+	 * Writes this journal, stamped with the current state of both files.
+	 *
+	 * Call this once the recorded file is closed, so its mtime is final.
+	 *
+	 * @param journalFile where to save
+	 * @param srcFile the unchanged copy (a backup)
+	 * @param dstFile the file this journal was recording
+	 */
+	public synchronized void save( File journalFile, File srcFile, File dstFile ) throws IOException {
+		DataOutputStream os = null;
+		try {
+			os = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( journalFile ) ) );
+			os.writeInt( MAGIC );
+			os.writeInt( VERSION );
+			os.writeLong( srcFile.length() );
+			os.writeLong( srcFile.lastModified() );
+			os.writeLong( dstFile.length() );
+			os.writeLong( dstFile.lastModified() );
+			os.writeLong( originalLength );
+			os.writeLong( minLength );
+			os.writeInt( rangeMap.size() );
+			for ( Map.Entry<Long, Long> range : rangeMap.entrySet() ) {
+				os.writeLong( range.getKey().longValue() );
+				os.writeLong( range.getValue().longValue() );
+			}
+			os.close();
+			os = null;
+		}
+		finally {
+			try {if ( os != null ) os.close();}
+			catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Reads a journal, if it's still valid for both files.
+	 *
+	 * @return the journal, or null if missing, unreadable, or stale
+	 */
+	public static DirtyRangeJournal load( File journalFile, File srcFile, File dstFile ) {
+		if ( !journalFile.isFile() ) return null;
+
+		DataInputStream is = null;
+		try {
+			is = new DataInputStream( new BufferedInputStream( new FileInputStream( journalFile ) ) );
+			if ( is.readInt() != MAGIC ) return null;
+			if ( is.readInt() != VERSION ) return null;
+			if ( is.readLong() != srcFile.length() ) return null;
+			if ( is.readLong() != srcFile.lastModified() ) return null;
+			if ( is.readLong() != dstFile.length() ) return null;
+			if ( is.readLong() != dstFile.lastModified() ) return null;
+
+			DirtyRangeJournal result = new DirtyRangeJournal( is.readLong() );
+			if ( result.originalLength != srcFile.length() ) return null;
+			long minLength = is.readLong();
+			if ( minLength < 0 ) return null;
+			result.noteLength( minLength );
+
+			int rangeCount = is.readInt();
+			for ( int i=0; i < rangeCount; i++ ) {
+				long start = is.readLong();
+				long end = is.readLong();
+				if ( start < 0 || end < start ) return null;
+				result.noteWrite( start, end - start );
+			}
+			if ( is.read() != -1 ) return null;
+
+			return result;
+		}
+		catch ( IOException e ) {
+			return null;
+		}
+		finally {
+			try {if ( is != null ) is.close();}
+			catch ( IOException e ) {}
+		}
+	}
+}
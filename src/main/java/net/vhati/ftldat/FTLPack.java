@@ -2,19 +2,24 @@ package net.vhati.ftldat;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-//import java.nio.MappedByteBuffer;      // For Memory-mapped streams
-//import java.nio.channels.FileChannel;  // For Memory-mapped streams
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -22,7 +27,13 @@ import java.util.Map;
 import net.vhati.ftldat.AbstractPack;
 import net.vhati.ftldat.AbstractPack.PathAndSize;
 import net.vhati.ftldat.AbstractPack.RepackResult;
+import net.vhati.ftldat.ByteBufferBackedInputStream;
+import net.vhati.ftldat.DirtyRangeJournal;
 import net.vhati.ftldat.FileChannelRegionInputStream;
+import net.vhati.ftldat.JournaledFile;
+import net.vhati.ftldat.PackIndexCache;
+import net.vhati.ftldat.PackUtilities;
+import net.vhati.ftldat.SharedMapping;
 
 
 /**
@@ -34,14 +45,25 @@ import net.vhati.ftldat.FileChannelRegionInputStream;
  */
 public class FTLPack extends AbstractPack {
 
+	/** Byte count of the buffer repack() copies data through. */
+	private static final int MOVE_BUFFER_SIZE = 1024 * 1024;
+
 	private CharsetEncoder asciiEncoder = Charset.forName( "US-ASCII" ).newEncoder();
 
 	private ByteBuffer byteBuffer = null;
 	private File datFile = null;
 	private RandomAccessFile raf = null;
+	private boolean readOnly = false;
+	private volatile SharedMapping mapping = null;
 	private List<DatEntry> entryList = null;
 	private Map<String, Integer> pathToIndexMap = null;
 
+	// Null slots in entryList, kept in sync to avoid scanning for vacancies.
+	// The live entry count is pathToIndexMap.size().
+	private BitSet vacantSlots = null;
+
+	private double repackThreshold = 0;
+
 
 	/**
 	 * Opens or creates a dat in various modes.
@@ -66,8 +88,29 @@ public class FTLPack extends AbstractPack {
 	 * @param indexSize size of the initial index if creating
 	 */
 	public FTLPack( File datFile, String mode, int indexSize ) throws IOException {
-		// A reusable buffer large enough for the unsigned read methods.
-		byteBuffer = ByteBuffer.allocate( 4 );
+		this( datFile, mode, indexSize, null );
+	}
+
+	/**
+	 * Opens an existing dat, using a sidecar cache of its parsed index.
+	 *
+	 * If the cache is valid for the dat, the index is loaded from it
+	 * instead of being read entry by entry. Otherwise the dat is read as
+	 * usual, and the cache is rewritten (if the dat's mtime can be trusted).
+	 *
+	 * @param datFile a file to open
+	 * @param mode "r" or "r+"
+	 * @param indexCache a cache to consult, or null
+	 * @see PackIndexCache
+	 */
+	public FTLPack( File datFile, String mode, PackIndexCache indexCache ) throws IOException {
+		this( datFile, mode, 2048, indexCache );
+	}
+
+	private FTLPack( File datFile, String mode, int indexSize, PackIndexCache indexCache ) throws IOException {
+		// A reusable buffer large enough for the unsigned read methods,
+		// or for an entry's dataSize and innerPath length together.
+		byteBuffer = ByteBuffer.allocate( 8 );
 		byteBuffer.order( ByteOrder.LITTLE_ENDIAN );
 
 		if ( mode.equals( "r" ) ) {
@@ -76,19 +119,20 @@ public class FTLPack extends AbstractPack {
 
 			this.datFile = datFile;
 			raf = new RandomAccessFile( datFile, "r" );
-			readIndex();
+			readOnly = true;
+			openIndex( indexCache );
 		}
 		else if ( mode.equals( "r+" ) ) {
 			if ( !datFile.exists() )
 				throw new FileNotFoundException( String.format( "The datFile was not found: %s", datFile.getPath() ) );
 
 			this.datFile = datFile;
-			raf = new RandomAccessFile( datFile, "rw" );
-			readIndex();
+			raf = new JournaledFile( datFile, "rw" );
+			openIndex( indexCache );
 		}
 		else if ( mode.equals( "w+" ) ) {
 			this.datFile = datFile;
-			raf = new RandomAccessFile( datFile, "rw" );
+			raf = new JournaledFile( datFile, "rw" );
 			createIndex( indexSize );
 		}
 		else {
@@ -97,6 +141,74 @@ public class FTLPack extends AbstractPack {
 	}
 
 
+	/**
+	 * Toggles whether innerFiles should be read from a memory-mapped copy of
+	 * the dat.
+	 *
+	 * When enabled, getInputStream() and extractTo() will serve slices of
+	 * the mapping, rather than seeking and reading through the file.
+	 *
+	 * This is only allowed in read-only mode. The mapping is released by
+	 * close() (or when disabled), as soon as no stream is still reading it.
+	 * If PackUtilities.isUnmapSupported() is false, it lingers until garbage
+	 * collected instead, keeping the file locked on Windows.
+	 */
+	public void setMemoryMapped( boolean b ) throws IOException {
+		if ( b && !readOnly ) {
+			throw new IllegalStateException( "Memory-mapping is only supported in read-only mode" );
+		}
+
+		if ( b && mapping == null ) {
+			mapping = new SharedMapping( PackUtilities.mapReadOnly( raf.getChannel() ) );
+		}
+		else if ( !b && mapping != null ) {
+			mapping.close();
+			mapping = null;
+		}
+	}
+
+	public boolean isMemoryMapped() {
+		return ( mapping != null );
+	}
+
+	/**
+	 * Sets a journal to note every byte range this dat writes, or null.
+	 *
+	 * This is not allowed in read-only mode.
+	 *
+	 * @see DirtyRangeJournal
+	 */
+	public void setWriteJournal( DirtyRangeJournal journal ) {
+		if ( readOnly ) throw new IllegalStateException( "Write journals are not supported in read-only mode" );
+
+		((JournaledFile)raf).setJournal( journal );
+	}
+
+	/**
+	 * Notes bytes written through the channel, which the journal can't see.
+	 */
+	private void noteChannelWrite( long offset, long length ) {
+		DirtyRangeJournal journal = ((JournaledFile)raf).getJournal();
+		if ( journal != null ) journal.noteWrite( offset, length );
+	}
+
+	/**
+	 * Sets how fragmented the dat must be for repack() to bother moving data.
+	 *
+	 * This is the fraction of the file (0.0 to 1.0) that would be reclaimed.
+	 * When a repack does happen, gaps up to this much may be left behind,
+	 * if filling them would mean sliding lots of data.
+	 * Below it, if the index has no null entries, repack() leaves the dat
+	 * alone. The default, 0, always repacks.
+	 */
+	public void setRepackThreshold( double threshold ) {
+		repackThreshold = threshold;
+	}
+
+	public double getRepackThreshold() {
+		return repackThreshold;
+	}
+
 	/**
 	 * Reads a little-endian unsigned int.
 	 * Java doesn't have an unsigned int primitive,
@@ -124,20 +236,35 @@ public class FTLPack extends AbstractPack {
 		raf.write( byteBuffer.array(), 0, 4 );
 	}
 
-	private String readLittleUString() throws IOException {
-		long strLen = readLittleUInt();
-		byte[] strBytes = new byte[ (int)strLen ];
-		raf.readFully( strBytes );
-
-		return new String( strBytes, asciiEncoder.charset().name() );
-	}
-
 	private void writeLittleUString( String s ) throws IOException {
 		writeLittleUInt( s.length() );
 		byte[] strBytes = s.getBytes( asciiEncoder.charset().name() );
 		raf.write( strBytes );
 	}
 
+	/**
+	 * Writes the indexSize and every data offset in the header, all at once.
+	 *
+	 * The header is encoded in memory and written with a single call.
+	 * Null entries are written as 0.
+	 */
+	private void writeIndex() throws IOException {
+		int headerSize = (int)getHeaderIndexPosition( entryList.size() );
+		ByteBuffer headerBuf = ByteBuffer.allocate( headerSize );
+		headerBuf.order( ByteOrder.LITTLE_ENDIAN );
+
+		// Write signed ints, after discarding sign
+		// by casting from long and hacking off bits.
+		headerBuf.putInt( entryList.size() );
+		for ( DatEntry entry : entryList ) {
+			long entryOffset = ( entry != null ? entry.entryOffset : 0 );
+			headerBuf.putInt( (int)(entryOffset & 0x00000000FFFFFFFFL) );
+		}
+
+		raf.seek( 0 );
+		raf.write( headerBuf.array(), 0, headerSize );
+	}
+
 	/**
 	 * Returns the offset to seek within the header,
 	 * in order to read the data offset of an innerFile entry.
@@ -148,6 +275,18 @@ public class FTLPack extends AbstractPack {
 		return ( 4 + n*4 );  // 4-byte indexSize + 4-byte indeces.
 	}
 
+	/**
+	 * Returns a region of the memory-mapped dat as an independent buffer.
+	 *
+	 * The caller must hold a lease on the mapping while using it.
+	 */
+	private ByteBuffer getMappedRegion( SharedMapping m, DatEntry entry ) throws IOException {
+		if ( entry.dataOffset + entry.dataSize > m.capacity() ) {
+			throw new IOException( "EOF prematurely reached reading innerPath: "+ entry.innerPath );
+		}
+		return m.getRegion( entry.dataOffset, entry.dataSize );
+	}
+
 	/**
 	 * Creates a new index.
 	 * WARNING: This will erase the file.
@@ -157,43 +296,54 @@ public class FTLPack extends AbstractPack {
 		for ( int i=0; i < indexSize; i++ ) {
 			entryList.add( null );
 		}
+		vacantSlots = new BitSet( indexSize );
+		vacantSlots.set( 0, indexSize );
 
 		pathToIndexMap = new HashMap<String, Integer>( indexSize );
 
-		raf.seek( 0 );
 		raf.setLength( 0 );
-		writeLittleUInt( indexSize );
-		for ( int i=0; i < indexSize; i++ ) {
-			writeLittleUInt( 0 );
-		}
+		writeIndex();
 	}
 
 	/**
 	 * Reads (or re-reads) the index from the file.
+	 *
+	 * The table of data offsets is read with a single call and decoded in
+	 * memory. Then each entry's dataSize and innerPath length are read
+	 * together, followed by the innerPath.
 	 */
 	private void readIndex() throws IOException {
 		raf.seek( 0 );
-		int indexSize = (int)readLittleUInt();
-		if ( indexSize * 4 > raf.length() ) {
+		long indexSizeLong = readLittleUInt();
+		if ( getHeaderIndexPosition( 0 ) + indexSizeLong * 4 > raf.length() ) {
 			throw new IOException( String.format( "Corrupt dat file (%s): header claims to be larger than the entire file", getName() ) );
 		}
+		int indexSize = (int)indexSizeLong;
+
+		ByteBuffer headerBuf = ByteBuffer.allocate( indexSize * 4 );
+		headerBuf.order( ByteOrder.LITTLE_ENDIAN );
+		raf.readFully( headerBuf.array(), 0, indexSize * 4 );  // Continues after indexSize.
 
 		entryList = new ArrayList<DatEntry>( indexSize );
 		for ( int i=0; i < indexSize; i++ ) {
 			entryList.add( null );
 		}
+		vacantSlots = new BitSet( indexSize );
 
 		pathToIndexMap = new HashMap<String, Integer>( indexSize );
 
 		// Store partial DatEntry objects in entryList (leaving nulls where absent).
 		for ( int i=0; i < indexSize; i++ ) {
-			long entryOffset = readLittleUInt();
+			long entryOffset = headerBuf.getInt() & 0x00000000FFFFFFFFL;
 
 			if ( entryOffset != 0 ) {
 				DatEntry entry = new DatEntry();
 				entry.entryOffset = entryOffset;
 				entryList.set( i, entry );
 			}
+			else {
+				vacantSlots.set( i );
+			}
 		}
 
 		for ( int i=0; i < indexSize; i++ ) {
@@ -201,9 +351,17 @@ public class FTLPack extends AbstractPack {
 			if ( entry == null ) continue;
 
 			raf.seek( entry.entryOffset );
-			entry.dataSize = readLittleUInt();
-			entry.innerPath = readLittleUString();
-			entry.dataOffset = raf.getChannel().position();
+			byteBuffer.clear();
+			raf.readFully( byteBuffer.array(), 0, 8 );
+			entry.dataSize = byteBuffer.getInt( 0 ) & 0x00000000FFFFFFFFL;
+			long strLen = byteBuffer.getInt( 4 ) & 0x00000000FFFFFFFFL;
+			if ( entry.entryOffset + 8 + strLen > raf.length() ) {
+				throw new IOException( String.format( "Corrupt dat file (%s): entry claims innerPath extends beyond the end of the file", getName() ) );
+			}
+			byte[] strBytes = new byte[ (int)strLen ];
+			raf.readFully( strBytes );
+			entry.innerPath = new String( strBytes, asciiEncoder.charset().name() );
+			entry.dataOffset = entry.entryOffset + 8 + strLen;
 
 			if ( pathToIndexMap.containsKey( entry.innerPath ) ) {
 				throw new IOException( "InnerPath occurs more than once: "+ entry.innerPath );
@@ -212,6 +370,94 @@ public class FTLPack extends AbstractPack {
 		}
 	}
 
+	/**
+	 * Loads the index from a sidecar cache if possible, or reads it.
+	 */
+	private void openIndex( PackIndexCache indexCache ) throws IOException {
+		if ( indexCache != null ) {
+			ByteBuffer payload = indexCache.load( PackIndexCache.KIND_FTL, datFile, raf );
+			if ( payload != null && loadCachedIndex( payload ) ) return;
+		}
+
+		readIndex();
+
+		if ( indexCache != null ) {
+			indexCache.save( PackIndexCache.KIND_FTL, datFile, raf, encodeCachedIndex() );
+		}
+	}
+
+	/**
+	 * Returns the index in the form a PackIndexCache holds.
+	 *
+	 * That's the slot count, then for each slot: entryOffset (0 if null),
+	 * dataSize, and the innerPath's length and bytes.
+	 */
+	private ByteBuffer encodeCachedIndex() throws IOException {
+		List<byte[]> pathBytesList = new ArrayList<byte[]>( entryList.size() );
+		int payloadSize = 4;
+		for ( DatEntry entry : entryList ) {
+			byte[] pathBytes = ( entry != null ? entry.innerPath.getBytes( asciiEncoder.charset().name() ) : new byte[0] );
+			pathBytesList.add( pathBytes );
+			payloadSize += 8 + 8 + 4 + pathBytes.length;
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate( payloadSize );
+		buf.putInt( entryList.size() );
+		for ( int i=0; i < entryList.size(); i++ ) {
+			DatEntry entry = entryList.get( i );
+			byte[] pathBytes = pathBytesList.get( i );
+
+			buf.putLong( entry != null ? entry.entryOffset : 0 );
+			buf.putLong( entry != null ? entry.dataSize : 0 );
+			buf.putInt( pathBytes.length );
+			buf.put( pathBytes );
+		}
+
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Adopts an index previously encoded by encodeCachedIndex().
+	 *
+	 * @return true if successful, false if the payload didn't make sense
+	 */
+	private boolean loadCachedIndex( ByteBuffer payload ) throws IOException {
+		if ( payload.remaining() < 4 ) return false;
+		int indexSize = payload.getInt();
+		if ( indexSize < 0 || indexSize * 20L > payload.remaining() ) return false;
+
+		entryList = new ArrayList<DatEntry>( indexSize );
+		vacantSlots = new BitSet( indexSize );
+		pathToIndexMap = new HashMap<String, Integer>( indexSize );
+
+		for ( int i=0; i < indexSize; i++ ) {
+			if ( payload.remaining() < 20 ) return false;
+			long entryOffset = payload.getLong();
+			long dataSize = payload.getLong();
+			int strLen = payload.getInt();
+			if ( strLen < 0 || strLen > payload.remaining() ) return false;
+
+			if ( entryOffset == 0 ) {
+				entryList.add( null );
+				vacantSlots.set( i );
+				continue;
+			}
+
+			DatEntry entry = new DatEntry();
+			entry.entryOffset = entryOffset;
+			entry.dataSize = dataSize;
+			entry.innerPath = new String( payload.array(), payload.arrayOffset() + payload.position(), strLen, asciiEncoder.charset().name() );
+			entry.dataOffset = entryOffset + 8 + strLen;
+			payload.position( payload.position() + strLen );
+
+			if ( pathToIndexMap.containsKey( entry.innerPath ) ) return false;
+			entryList.add( entry );
+			pathToIndexMap.put( entry.innerPath, i );
+		}
+		return !payload.hasRemaining();
+	}
+
 	/**
 	 * Moves the nth index's entry to the end of the file.
 	 * It will still be nth in the header, however.
@@ -254,28 +500,28 @@ public class FTLPack extends AbstractPack {
 	private void growIndex( int amount ) throws IOException {
 		int freeRoom = -1;
 
-		while ( true ) {
-			int vacancyCount = Collections.frequency( entryList, null );
+		// Queue entries in the order they appear. Each one moved to EOF
+		// becomes the last.
+		List<DatEntry> tmpEntries = new ArrayList<DatEntry>( pathToIndexMap.size() );
+		for ( DatEntry entry : entryList ) {
+			if ( entry != null ) tmpEntries.add( entry );
+		}
+		Collections.sort( tmpEntries, new DatEntryDataOffsetComparator() );
+		Deque<DatEntry> pendingEntries = new ArrayDeque<DatEntry>( tmpEntries );
 
-			if ( entryList.size() - vacancyCount == 0 ) {
+		while ( true ) {
+			if ( pendingEntries.isEmpty() ) {
 				// There is no innerFile after the index. We can grow
 				// as much as we like. Limit ourselves to amount.
 				freeRoom = amount;
 				break;
 			}
 			else {
-				// Find the used index with the lowest entryOffset.
-				int earliestUsedIndex = -1;
-				long minEntryOffset = Long.MAX_VALUE;
-				for ( int i=0; i < entryList.size(); i++ ) {
-					DatEntry entry = entryList.get( i );
-					if ( entry.entryOffset < minEntryOffset ) {
-						earliestUsedIndex = i;
-						minEntryOffset = entry.entryOffset;
-					}
-				}
+				// The used index with the lowest entryOffset.
+				DatEntry earliestEntry = pendingEntries.peekFirst();
+
 				// (region between header and first innerFile entry) / (possible 4-byte ints).
-				freeRoom = (int)( ( minEntryOffset - getHeaderIndexPosition( entryList.size() ) ) / 4 );
+				freeRoom = (int)( ( earliestEntry.entryOffset - getHeaderIndexPosition( entryList.size() ) ) / 4 );
 
 				if ( freeRoom >= amount ) {
 					freeRoom = amount;  // We don't need hundreds of thousands more.
@@ -283,19 +529,16 @@ public class FTLPack extends AbstractPack {
 				}
 
 				// If it's not enough, move the first file and check again.
-				moveEntryToEOF( earliestUsedIndex );
+				moveEntryToEOF( pathToIndexMap.get( earliestEntry.innerPath ).intValue() );
+				pendingEntries.addLast( pendingEntries.pollFirst() );
 			}
 		}
 		// Expand the header to claim the vacated region.
+		vacantSlots.set( entryList.size(), entryList.size() + freeRoom );
 		for ( int i=0; i < freeRoom; i++ ) {
 			entryList.add( null );
 		}
-		raf.seek( 0 );
-		writeLittleUInt( entryList.size() );
-		raf.seek( getHeaderIndexPosition(entryList.size() - freeRoom) );
-		for ( int i=0; i < freeRoom; i++ ) {
-			writeLittleUInt( 0 );
-		}
+		writeIndex();
 	}
 
 	@Override
@@ -334,10 +577,10 @@ public class FTLPack extends AbstractPack {
 		}
 
 		// Find a vacancy in the header, or create one.
-		int entryIndex = entryList.indexOf( null );
+		int entryIndex = vacantSlots.nextSetBit( 0 );
 		if ( entryIndex == -1 ) {
 			growIndex( 50 );  // Save effort for 49 future adds.
-			entryIndex = entryList.indexOf( null );
+			entryIndex = vacantSlots.nextSetBit( 0 );
 		}
 
 		DatEntry entry = new DatEntry();
@@ -365,9 +608,16 @@ public class FTLPack extends AbstractPack {
 		writeLittleUInt( entry.dataSize );
 
 		entryList.set( entryIndex, entry );
+		vacantSlots.clear( entryIndex );
 		pathToIndexMap.put( innerPath, entryIndex );
 	}
 
+	/**
+	 * Writes the contents of the file with innerPath to an OutputStream.
+	 *
+	 * Data bound for a FileOutputStream will be copied kernel-side with
+	 * FileChannel.transferTo().
+	 */
 	@Override
 	public void extractTo( String innerPath, OutputStream os ) throws FileNotFoundException, IOException {
 		if ( innerPath.contains( "\\" ) ) {
@@ -380,19 +630,48 @@ public class FTLPack extends AbstractPack {
 		int entryIndex = pathToIndexMap.get( innerPath ).intValue();
 		DatEntry entry = entryList.get( entryIndex );
 
-		raf.seek( entry.dataOffset );
+		SharedMapping m = mapping;
 
-		long bytesRemaining = entry.dataSize;
-		byte[] buf = new byte[4096];
-		int len;
-		while ( bytesRemaining > 0 ) {
-			raf.seek( entry.dataOffset + entry.dataSize - bytesRemaining );
-			len = raf.read( buf, 0, (int)Math.min( buf.length, bytesRemaining ) );
-			if ( len == -1 ) {
-				throw new IOException( "EOF prematurely reached reading innerPath: "+  entry.innerPath );
+		// Don't close the destination channel: that would close os.
+
+		if ( os instanceof FileOutputStream ) {
+			FileChannel dstChannel = ((FileOutputStream)os).getChannel();
+			long len = PackUtilities.transferRegion( raf.getChannel(), entry.dataOffset, entry.dataSize, dstChannel );
+			if ( len != entry.dataSize ) {
+				throw new IOException( "EOF prematurely reached reading innerPath: "+ entry.innerPath );
 			}
+		}
+		else if ( m != null ) {
+			// Hand the mapped bytes directly to the destination.
+			m.acquire();
+			try {
+				ByteBuffer regionBuf = getMappedRegion( m, entry );
+				WritableByteChannel dstChannel = Channels.newChannel( os );
+				while ( regionBuf.hasRemaining() ) {
+					dstChannel.write( regionBuf );
+				}
+			}
+			finally {
+				m.release();
+			}
+		}
+		else {
+			// Positional reads leave the raf's seek state alone,
+			// so concurrent extractions won't interfere.
+			InputStream is = null;
+			try {
+				is = getInputStream( innerPath );
 
-			os.write( buf, 0, len );
+				byte[] buf = new byte[4096];
+				int len;
+				while ( (len = is.read( buf )) >= 0 ) {
+					os.write( buf, 0, len );
+				}
+			}
+			finally {
+				try {if ( is != null ) is.close();}
+				catch ( IOException e ) {}
+			}
 		}
 	}
 
@@ -408,6 +687,7 @@ public class FTLPack extends AbstractPack {
 		int entryIndex = pathToIndexMap.get( innerPath ).intValue();
 		pathToIndexMap.remove( innerPath );
 		DatEntry removedEntry = entryList.set( entryIndex, null );
+		vacantSlots.set( entryIndex );
 
 		raf.seek( getHeaderIndexPosition( entryIndex ) );
 		writeLittleUInt( 0 );
@@ -436,19 +716,61 @@ public class FTLPack extends AbstractPack {
 		}
 
 		int entryIndex = pathToIndexMap.get( innerPath ).intValue();
-		DatEntry entry = entryList.get( entryIndex );
+		return openEntryStream( entryList.get( entryIndex ) );
+	}
 
-		// Create a stream that can only see this region.
-		// Multiple read-only streams can coexist (each has its own position).
-		InputStream stream = new FileChannelRegionInputStream( raf.getChannel(), entry.dataOffset, entry.dataSize );
+	/**
+	 * Visits innerFiles in dataOffset order.
+	 */
+	@Override
+	public void forEachEntry( EntryVisitor visitor ) throws IOException {
+		List<DatEntry> orderedEntries = new ArrayList<DatEntry>( entryList.size() );
+		for ( DatEntry entry : entryList ) {
+			if ( entry != null ) orderedEntries.add( entry );
+		}
+		Collections.sort( orderedEntries, new DatEntryDataOffsetComparator() );
+
+		DatVisitedEntry visited = new DatVisitedEntry();
+		try {
+			for ( DatEntry entry : orderedEntries ) {
+				visited.entry = entry;
+				visited.path = entry.innerPath;
+				visited.size = entry.dataSize;
+				visited.storedSize = entry.dataSize;
+				visited.compressed = false;
+
+				boolean proceed = visitor.visit( visited );
+				visited.finish();
+				if ( !proceed ) break;
+			}
+		}
+		finally {
+			visited.finish();
+		}
+	}
 
-		// Mapped regions may not garbage collect promptly.
-		// That would keep the file in use: bad.
-		// Closing raf doesn't affect them. :/
-		// This method has best I/O performance though.
-		//MappedByteBuffer buf = raf.getChannel().map( FileChannel.MapMode.READ_ONLY, entry.dataOffset, entry.dataSize );
-		//buf.load();
-		//InputStream stream = new ByteBufferBackedInputStream( buf );
+	private InputStream openEntryStream( DatEntry entry ) throws IOException {
+		InputStream stream;
+		SharedMapping m = mapping;
+		if ( m != null ) {
+			// Mapped regions may not garbage collect promptly, which would
+			// keep the file in use. So they're opt-in, for read-only dats,
+			// and close() forcibly releases the mapping, once every stream
+			// (each holding a lease) has been closed.
+			m.acquire();
+			try {
+				stream = new ByteBufferBackedInputStream( raf.getChannel(), m, getMappedRegion( m, entry ) );
+			}
+			catch ( IOException e ) {
+				m.release();
+				throw e;
+			}
+		}
+		else {
+			// Create a stream that can only see this region.
+			// Multiple read-only streams can coexist (each has its own position).
+			stream = new FileChannelRegionInputStream( raf.getChannel(), entry.dataOffset, entry.dataSize );
+		}
 
 		return stream;
 	}
@@ -456,25 +778,129 @@ public class FTLPack extends AbstractPack {
 	@Override
 	public void close() throws IOException {
 		raf.close();
+
+		// Streams still open keep the mapping until they're closed.
+		if ( mapping != null ) mapping.close();
+		mapping = null;
 	}
 
 	public List<DatEntry> listMetadata() {
 		return new ArrayList<DatEntry>( entryList );
 	}
 
+	/**
+	 * Copies an innerFile's data, as-is, to a channel.
+	 *
+	 * This is for carrying an entry over to another FTLPack dat.
+	 */
+	void transferRawTo( String innerPath, WritableByteChannel dstChannel ) throws FileNotFoundException, IOException {
+		if ( !pathToIndexMap.containsKey( innerPath ) ) {
+			throw new FileNotFoundException( "InnerPath does not exist: "+ innerPath );
+		}
+
+		DatEntry entry = entryList.get( pathToIndexMap.get( innerPath ).intValue() );
+		long len = PackUtilities.transferRegion( raf.getChannel(), entry.dataOffset, entry.dataSize, dstChannel );
+		if ( len != entry.dataSize ) {
+			throw new IOException( "EOF prematurely reached reading innerPath: "+ entry.innerPath );
+		}
+	}
+
+	/**
+	 * Replaces this dat's contents with an index for the given entries.
+	 *
+	 * The index is written once. Entries are assigned offsets in list
+	 * order, immediately after the index. Each must then be supplied, in
+	 * that same order, by appendRawData().
+	 *
+	 * This is for building a new dat sequentially, and the dat must be
+	 * empty. The list's entries are adopted, not copied.
+	 */
+	void writeLayout( List<DatEntry> entries ) throws IOException {
+		if ( !pathToIndexMap.isEmpty() ) throw new IllegalStateException( "A layout can only be written to an empty dat" );
+
+		long pendingEntryOffset = getHeaderIndexPosition( entries.size() );
+		for ( DatEntry entry : entries ) {
+			entry.entryOffset = pendingEntryOffset;
+			entry.dataOffset = pendingEntryOffset + 4 + 4 + entry.innerPath.length();  // dataSize, innerPath length, innerPath.
+			pendingEntryOffset = entry.dataOffset + entry.dataSize;
+		}
+
+		entryList = new ArrayList<DatEntry>( entries );
+		vacantSlots = new BitSet( entries.size() );
+
+		pathToIndexMap.clear();
+		for ( int i=0; i < entryList.size(); i++ ) {
+			DatEntry entry = entryList.get( i );
+			if ( pathToIndexMap.containsKey( entry.innerPath ) ) {
+				throw new IOException( "InnerPath occurs more than once: "+ entry.innerPath );
+			}
+			pathToIndexMap.put( entry.innerPath, i );
+		}
+
+		raf.setLength( 0 );
+		writeIndex();  // Leaves the file pointer where the first entry begins.
+	}
+
+	/**
+	 * Appends an entry, with data copied as-is from another FTLPack dat.
+	 *
+	 * @param entry an entry given to writeLayout(), whose turn it is
+	 * @see #writeLayout(List)
+	 */
+	void appendRawData( DatEntry entry, FTLPack srcPack ) throws IOException {
+		if ( raf.getFilePointer() != entry.entryOffset ) {
+			throw new IOException( "Data was appended out of order: "+ entry.innerPath );
+		}
+		writeLittleUInt( entry.dataSize );
+		writeLittleUString( entry.innerPath );
+		noteChannelWrite( entry.dataOffset, entry.dataSize );
+		srcPack.transferRawTo( entry.innerPath, raf.getChannel() );
+	}
+
+	/**
+	 * Appends an entry, with data from a buffer.
+	 *
+	 * @param entry an entry given to writeLayout(), whose turn it is
+	 * @param srcBuf exactly entry.dataSize bytes, from position to limit
+	 * @see #writeLayout(List)
+	 */
+	void appendRawData( DatEntry entry, ByteBuffer srcBuf ) throws IOException {
+		if ( raf.getFilePointer() != entry.entryOffset ) {
+			throw new IOException( "Data was appended out of order: "+ entry.innerPath );
+		}
+		if ( srcBuf.remaining() != entry.dataSize ) {
+			throw new IOException( "Data length does not match the layout: "+ entry.innerPath );
+		}
+		writeLittleUInt( entry.dataSize );
+		writeLittleUString( entry.innerPath );
+
+		noteChannelWrite( entry.dataOffset, entry.dataSize );
+		FileChannel dstChannel = raf.getChannel();
+		while ( srcBuf.hasRemaining() ) {
+			dstChannel.write( srcBuf );
+		}
+	}
+
 	/**
 	 * Repacks the dat file. This will remove gaps, which could
 	 * be created when adding, removing or replacing files.
+	 *
+	 * Entries are not simply slid toward the top. A RepackPlanner fills
+	 * gaps with entries from the end of the file where it can, so most
+	 * entries stay put.
+	 *
+	 * If the index has no null entries, and less than the repack threshold
+	 * would be reclaimed, nothing is done.
+	 *
+	 * @see #setRepackThreshold(double)
 	 */
 	@Override
 	public RepackResult repack() throws IOException {
 		long bytesChanged = 0;
 
-		int vacancyCount = Collections.frequency( entryList, null );
-
 		// Build a list of non-null entries, sorted in the order their data appears.
 
-		List<DatEntry> tmpEntries = new ArrayList<DatEntry>( entryList.size() - vacancyCount );
+		List<DatEntry> tmpEntries = new ArrayList<DatEntry>( pathToIndexMap.size() );
 		for ( DatEntry entry : entryList ) {
 			if ( entry != null ) tmpEntries.add( entry );
 		}
@@ -488,59 +914,97 @@ public class FTLPack extends AbstractPack {
 			}
 		}
 
-		pathToIndexMap.clear();  // entryList gets replaced later.
+		long oldDatLength = raf.length();
+		long compactDatLength = getHeaderIndexPosition( tmpEntries.size() );
+		for ( DatEntry entry : tmpEntries ) {
+			compactDatLength += (entry.dataOffset-entry.entryOffset) + entry.dataSize;
+		}
+
+		// Decide where entries will go, each with its dataSize and innerPath.
+		// Gaps up to the threshold may remain.
+		RepackPlanner<DatEntry> planner = new RepackPlanner<DatEntry>( getHeaderIndexPosition( tmpEntries.size() ) );
+		planner.setGapAllowance( (long)(oldDatLength * repackThreshold) );
+		for ( DatEntry entry : tmpEntries ) {
+			planner.addBlock( entry, entry.entryOffset, (entry.dataOffset-entry.entryOffset) + entry.dataSize );
+		}
+		List<RepackPlanner.Move<DatEntry>> moves = planner.plan();
+		long bytesPlanned = planner.getPlannedBytes();
+		long newDatLength = planner.getRegionEnd();
+
+		if ( vacantSlots.isEmpty() ) {
+			double fragmentation = ( oldDatLength > 0 ? (double)(oldDatLength - compactDatLength) / oldDatLength : 0 );
+			if ( fragmentation < repackThreshold ) {
+				return new RepackResult( oldDatLength, oldDatLength, 0, bytesPlanned, 0 );
+			}
+		}
+
+		// Carry out the moves. The header only shrinks, so entries never
+		// move into it, and it's rewritten all at once afterward.
+		ByteBuffer moveBuf = ByteBuffer.allocateDirect( (int)Math.min( MOVE_BUFFER_SIZE, Math.max( 1, bytesPlanned ) ) );
+		long bytesMoved = 0;
 
-		// Write the header size.
-		if ( tmpEntries.size() != entryList.size() ) {
-			raf.seek( 0 );
-			writeLittleUInt( tmpEntries.size() );
-			bytesChanged += 4;
+		for ( RepackPlanner.Move<DatEntry> move : moves ) {
+			PackUtilities.moveRegion( raf.getChannel(), move.srcOffset, move.dstOffset, move.length, moveBuf );
+			noteChannelWrite( move.dstOffset, move.length );
+
+			DatEntry entry = move.key;
+			entry.dataOffset = move.dstOffset + (entry.dataOffset-entry.entryOffset);
+			entry.entryOffset = move.dstOffset;
+			bytesMoved += move.length;
 		}
+		bytesChanged += bytesMoved;
 
-		long pendingEntryOffset = getHeaderIndexPosition( tmpEntries.size() );
+		// Index entries in their new order.
+		Collections.sort( tmpEntries, new DatEntryDataOffsetComparator() );
 
+		pathToIndexMap.clear();
 		for ( int i=0; i < tmpEntries.size(); i++ ) {
-			DatEntry entry = tmpEntries.get ( i );
-			pathToIndexMap.put( entry.innerPath, i );
+			pathToIndexMap.put( tmpEntries.get( i ).innerPath, i );
+		}
+		entryList = tmpEntries;
+		vacantSlots.clear();
 
-			// Write the header index.
-			raf.seek( getHeaderIndexPosition( i ) );
-			writeLittleUInt( pendingEntryOffset );
-			bytesChanged += 4;
+		writeIndex();
+		bytesChanged += getHeaderIndexPosition( entryList.size() );
 
-			// Shift the entry toward the start of the dat.
-			if ( pendingEntryOffset != entry.entryOffset ) {
-				long totalBytes = (entry.dataOffset-entry.entryOffset) + entry.dataSize;
-				long bytesRemaining = totalBytes;
-				byte[] buf = new byte[4096];
-				int len;
-				while ( bytesRemaining > 0 ) {
-					raf.seek( entry.entryOffset + totalBytes - bytesRemaining );
-					len = raf.read( buf, 0, (int)Math.min( buf.length, bytesRemaining ) );
-					if ( len == -1 ) {
-						throw new IOException( "EOF prematurely reached reading innerPath: "+ entry.innerPath );
-					}
-
-					raf.seek( pendingEntryOffset + totalBytes - bytesRemaining );
-					raf.write( buf, 0, len );
-					bytesRemaining -= len;
-				}
+		raf.setLength( newDatLength );  // Trim off deallocated bytes at the end.
 
-				entry.dataOffset = pendingEntryOffset + (entry.dataOffset-entry.entryOffset);
-				entry.entryOffset = pendingEntryOffset;
-				bytesChanged += totalBytes;
-			}
+		return new RepackResult( oldDatLength, newDatLength, bytesChanged, bytesPlanned, bytesMoved );
+	}
 
-			pendingEntryOffset += (entry.dataOffset-entry.entryOffset) + entry.dataSize;
+
+
+	/**
+	 * A VisitedEntry backed by a known DatEntry, needing no lookup.
+	 */
+	private class DatVisitedEntry extends VisitedEntry {
+		public DatEntry entry = null;
+
+		@Override
+		protected InputStream openInputStream() throws IOException {
+			return openEntryStream( entry );
 		}
 
-		entryList = tmpEntries;
+		// A lease on the mapping, held from getStoredBuffer() until finish().
+		private SharedMapping leasedMapping = null;
 
-		long oldDatLength = raf.length();
-		long newDatLength = pendingEntryOffset;
-		raf.setLength( newDatLength );  // Trim off deallocated bytes at the end.
+		@Override
+		public ByteBuffer getStoredBuffer() throws IOException {
+			if ( leasedMapping == null ) {
+				SharedMapping m = mapping;
+				if ( m == null ) return null;
+				m.acquire();
+				leasedMapping = m;
+			}
+			return getMappedRegion( leasedMapping, entry ).asReadOnlyBuffer();
+		}
 
-		return new RepackResult( oldDatLength, newDatLength, bytesChanged );
+		@Override
+		protected void finish() {
+			super.finish();
+			if ( leasedMapping != null ) leasedMapping.release();
+			leasedMapping = null;
+		}
 	}
 
 
@@ -7,12 +7,29 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 
-
+import net.vhati.ftldat.ByteBufferPool;
+
+
+/**
+ * An InputStream that reads a region of a FileChannel.
+ *
+ * Reads are positional, so many of these can share a channel, each with
+ * its own position.
+ *
+ * Small reads are served from a direct buffer, borrowed from a shared pool
+ * and sized to suit the region. Reads at least as big as that buffer go
+ * straight into the caller's array. The buffer goes back to the pool once
+ * the region has been read to the end, or when the stream is closed.
+ */
 public class FileChannelRegionInputStream extends InputStream {
 
+	/** Largest buffer to use, by default. */
+	public static final int DEFAULT_MAX_BUFFER_SIZE = 131072;
+
 	private FileChannel channel;
 	private long regionOffset;
 	private long regionLength;
+	private int bufferSize;
 
 	// A buffer holds an even narrower region of the file.
 	// When possible read() calls will reuse this,
@@ -22,44 +39,46 @@ public class FileChannelRegionInputStream extends InputStream {
 	private int bufLength = 0;
 
 	private long intraPos = 0;
+	private boolean closed = false;
 
 
 	public FileChannelRegionInputStream( FileChannel channel, long offset, long length ) {
-		this( channel, offset, length, 4096 );
+		this( channel, offset, length, DEFAULT_MAX_BUFFER_SIZE );
 	}
 
-	public FileChannelRegionInputStream( FileChannel channel, long offset, long length, int bufferSize ) {
+	/**
+	 * Constructor.
+	 *
+	 * @param channel a channel to read
+	 * @param offset the start of the region
+	 * @param length the length of the region
+	 * @param maxBufferSize an upper bound on the buffer, which may be smaller for short regions
+	 */
+	public FileChannelRegionInputStream( FileChannel channel, long offset, long length, int maxBufferSize ) {
 		this.channel = channel;
 		this.regionOffset = offset;
 		this.regionLength = length;
-		buf = ByteBuffer.allocate( bufferSize );
+		this.bufferSize = ByteBufferPool.getPooledSize( Math.min( length, maxBufferSize ) );
 	}
 
 	@Override
 	public int available() throws IOException {
-		if ( !channel.isOpen() ) throw new ClosedChannelException();
-		return bufLength;
+		ensureOpen();
+		if ( !isBuffered( intraPos ) ) return 0;
+		return bufLength - (int)(intraPos - bufOffset);
 	}
 
 	@Override
 	public int read() throws IOException {
-		if ( !channel.isOpen() ) throw new ClosedChannelException();
-		if ( intraPos >= regionLength ) return -1;
+		ensureOpen();
+		if ( intraPos >= regionLength ) {
+			releaseBuffer();
+			return -1;
+		}
 
-		if ( intraPos < bufOffset || intraPos >= bufOffset+bufLength ) {
+		if ( !isBuffered( intraPos ) ) {
 			// The requested byte isn't currently buffered.
-			bufOffset = intraPos;
-			int len = 0;          // Get *something*.
-			buf.position( 0 );
-			while ( len == 0 ) {
-				len = channel.read( buf, regionOffset + bufOffset );
-			}
-			if ( len == -1 ) {
-				bufLength = 0;
-				return -1;
-			} else {
-				bufLength = len;
-			}
+			if ( !fillBuffer() ) return -1;
 		}
 
 		// Do an absolute get() from the buffer,
@@ -74,59 +93,113 @@ public class FileChannelRegionInputStream extends InputStream {
 		if ( bLen == 0 ) return 0;
 		if ( bOff < 0 ) throw new IndexOutOfBoundsException( String.format( "Index: %d, Size: %d", bOff, bLen ) );
 		if ( bOff + bLen > b.length ) throw new IndexOutOfBoundsException( String.format( "Index: %d, Size: %d", (bOff+bLen), bLen ) );
-		if ( !channel.isOpen() ) throw new ClosedChannelException();
-		if ( intraPos >= regionLength ) return -1;
+		ensureOpen();
+		if ( intraPos >= regionLength ) {
+			releaseBuffer();
+			return -1;
+		}
 
-		int bytesTotal = Math.min( bLen, (int)(regionLength - intraPos) );
-		int bytesRemaining = bytesTotal;
+		int bytesTotal = (int)Math.min( bLen, regionLength - intraPos );
 		int bytesRead = 0;
 
-		if ( intraPos >= bufOffset && intraPos < bufOffset+bufLength ) {
+		if ( isBuffered( intraPos ) ) {
 			// Read part of the current buffer, possibly until the end.
 
 			buf.position( (int)(intraPos - bufOffset) );
-			int bufTodo = Math.min( bytesRemaining, bufLength - (int)(intraPos - bufOffset) );
+			int bufTodo = Math.min( bytesTotal, bufLength - (int)(intraPos - bufOffset) );
 			buf.get( b, bOff, bufTodo );
-			bytesRemaining -= bufTodo;
 			bytesRead += bufTodo;
 			intraPos += bufTodo;
 		}
 
-		if ( bytesRemaining > 0 ) {
-			// Refill the buffer at the current intraPos.
+		while ( bytesRead < bytesTotal ) {
+			int bytesRemaining = bytesTotal - bytesRead;
 
-			bufOffset = intraPos;
-			int len = 0;
-			buf.position( 0 );
-			len = channel.read( buf, regionOffset + bufOffset );
-			if ( len == -1 ) {
-				bufLength = 0;
-				throw new BufferUnderflowException();
-			} else {
-				bufLength = len;
+			if ( bytesRemaining >= bufferSize ) {
+				// Buffering wouldn't save any channel calls. Read directly.
+
+				ByteBuffer dst = ByteBuffer.wrap( b, bOff + bytesRead, bytesRemaining );
+				int len = channel.read( dst, regionOffset + intraPos );
+				if ( len == -1 ) throw new BufferUnderflowException();
+
+				bytesRead += len;
+				intraPos += len;
 			}
+			else {
+				// Refill the buffer at the current intraPos.
 
-			buf.position( 0 );
-			int bufTodo = Math.min( bytesRemaining, bufLength );
-			buf.get( b, bOff + bytesRead, bufTodo );
-			bytesRemaining -= bufTodo;
-			bytesRead += bufTodo;
-			intraPos += bufTodo;
+				if ( !fillBuffer() ) throw new BufferUnderflowException();
+
+				buf.position( 0 );
+				int bufTodo = Math.min( bytesRemaining, bufLength );
+				buf.get( b, bOff + bytesRead, bufTodo );
+				bytesRead += bufTodo;
+				intraPos += bufTodo;
+			}
 		}
 
+		if ( intraPos >= regionLength ) releaseBuffer();
+
 		return bytesRead;
 	}
 
-
 	@Override
 	public long skip( long n ) throws IOException {
-		if ( !channel.isOpen() ) throw new ClosedChannelException();
-		if ( intraPos >= regionLength ) return -1;
+		ensureOpen();
+		if ( n <= 0 ) return 0;
 
-		if ( intraPos + n <= regionLength ) {
-			n = regionLength - intraPos;
-		}
+		n = Math.min( n, regionLength - intraPos );
 		intraPos += n;
 		return n;
 	}
+
+	/**
+	 * Returns the buffer to the pool. The channel is left open.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		releaseBuffer();
+	}
+
+
+	private void ensureOpen() throws IOException {
+		if ( closed ) throw new IOException( "Stream closed" );
+		if ( !channel.isOpen() ) throw new ClosedChannelException();
+	}
+
+	private boolean isBuffered( long pos ) {
+		return ( buf != null && pos >= bufOffset && pos < bufOffset+bufLength );
+	}
+
+	/**
+	 * Buffers bytes from the current intraPos onward.
+	 *
+	 * @return false if the file ended prematurely, true otherwise
+	 */
+	private boolean fillBuffer() throws IOException {
+		if ( buf == null ) buf = ByteBufferPool.acquire( bufferSize );
+
+		bufOffset = intraPos;
+		bufLength = 0;
+		buf.clear();
+		buf.limit( (int)Math.min( buf.capacity(), regionLength - intraPos ) );
+
+		int len = 0;  // Get *something*.
+		while ( len == 0 ) {
+			len = channel.read( buf, regionOffset + bufOffset );
+		}
+		if ( len == -1 ) return false;
+
+		bufLength = len;
+		return true;
+	}
+
+	private void releaseBuffer() {
+		if ( buf == null ) return;
+
+		ByteBufferPool.release( buf );
+		buf = null;
+		bufLength = 0;
+	}
 }
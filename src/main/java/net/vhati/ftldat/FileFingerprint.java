@@ -0,0 +1,151 @@
+package net.vhati.ftldat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+
+/**
+ * A cheap identity for a large file: its length, mtime, and a hash of
+ * blocks sampled evenly across it.
+ *
+ * Two files with equal fingerprints are very likely identical, without
+ * reading either in full. This is meant for spotting a dat that already
+ * matches its backup, not for detecting tampering.
+ */
+public class FileFingerprint {
+
+	private static final int MAGIC = 0x46505254;  // "FPRT"
+
+	/** Number of blocks to sample (the first and last included). */
+	private static final int SAMPLE_COUNT = 16;
+
+	/** Byte count of each sampled block. */
+	private static final int SAMPLE_SIZE = 4096;
+
+	private final long length;
+	private final long lastModified;
+	private final long sampleHash;
+
+
+	public FileFingerprint( long length, long lastModified, long sampleHash ) {
+		this.length = length;
+		this.lastModified = lastModified;
+		this.sampleHash = sampleHash;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public long getSampleHash() {
+		return sampleHash;
+	}
+
+	/**
+	 * Returns true if this describes a file's current length and mtime,
+	 * without reading it.
+	 */
+	public boolean isCurrentFor( File f ) {
+		return ( f.length() == length && f.lastModified() == lastModified );
+	}
+
+	/**
+	 * Reads samples of a file and returns its fingerprint.
+	 */
+	public static FileFingerprint calculate( File f ) throws IOException {
+		FileInputStream is = null;
+		try {
+			is = new FileInputStream( f );
+			FileChannel channel = is.getChannel();
+			long length = channel.size();
+
+			CRC32 crc = new CRC32();
+			ByteBuffer buf = ByteBuffer.allocate( SAMPLE_SIZE );
+
+			long lastOffset = Math.max( 0, length - SAMPLE_SIZE );
+			for ( int i=0; i < SAMPLE_COUNT; i++ ) {
+				long offset = lastOffset * i / (SAMPLE_COUNT - 1);
+
+				buf.clear();
+				while ( buf.hasRemaining() ) {
+					if ( channel.read( buf, offset + buf.position() ) < 0 ) break;
+				}
+				crc.update( buf.array(), 0, buf.position() );
+			}
+
+			return new FileFingerprint( length, f.lastModified(), crc.getValue() );
+		}
+		finally {
+			try {if ( is != null ) is.close();}
+			catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Returns true if two files' fingerprints say they're the same.
+	 *
+	 * The mtime must match too. Samples alone could miss a small in-place
+	 * edit, but any edit would have bumped the mtime, so a copy only
+	 * matches if its mtime was deliberately set to the original's.
+	 */
+	public boolean matches( FileFingerprint other ) {
+		if ( other == null ) return false;
+		if ( length != other.length ) return false;
+		if ( lastModified != other.lastModified ) return false;
+		if ( sampleHash != other.sampleHash ) return false;
+		return true;
+	}
+
+	public void save( File f ) throws IOException {
+		DataOutputStream os = null;
+		try {
+			os = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( f ) ) );
+			os.writeInt( MAGIC );
+			os.writeLong( length );
+			os.writeLong( lastModified );
+			os.writeLong( sampleHash );
+			os.close();
+			os = null;
+		}
+		finally {
+			try {if ( os != null ) os.close();}
+			catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Reads a saved fingerprint.
+	 *
+	 * @return the fingerprint, or null if missing or unreadable
+	 */
+	public static FileFingerprint load( File f ) {
+		if ( !f.isFile() ) return null;
+
+		DataInputStream is = null;
+		try {
+			is = new DataInputStream( new BufferedInputStream( new FileInputStream( f ) ) );
+			if ( is.readInt() != MAGIC ) return null;
+			return new FileFingerprint( is.readLong(), is.readLong(), is.readLong() );
+		}
+		catch ( IOException e ) {
+			return null;
+		}
+		finally {
+			try {if ( is != null ) is.close();}
+			catch ( IOException e ) {}
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package net.vhati.ftldat;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import net.vhati.ftldat.DirtyRangeJournal;
+
+
+/**
+ * A RandomAccessFile that notes where it's written to in a journal.
+ *
+ * Only stream-style writes and setLength() are seen. Anything written via
+ * getChannel() must be noted by the caller.
+ */
+class JournaledFile extends RandomAccessFile {
+
+	private DirtyRangeJournal journal = null;
+
+
+	public JournaledFile( File file, String mode ) throws FileNotFoundException {
+		super( file, mode );
+	}
+
+	/**
+	 * Sets a journal to note writes in, or null.
+	 */
+	public void setJournal( DirtyRangeJournal journal ) {
+		this.journal = journal;
+	}
+
+	public DirtyRangeJournal getJournal() {
+		return journal;
+	}
+
+	@Override
+	public void write( int b ) throws IOException {
+		if ( journal != null ) journal.noteWrite( getFilePointer(), 1 );
+		super.write( b );
+	}
+
+	@Override
+	public void write( byte[] b ) throws IOException {
+		if ( journal != null ) journal.noteWrite( getFilePointer(), b.length );
+		super.write( b );
+	}
+
+	@Override
+	public void write( byte[] b, int off, int len ) throws IOException {
+		if ( journal != null ) journal.noteWrite( getFilePointer(), len );
+		super.write( b, off, len );
+	}
+
+	@Override
+	public void setLength( long newLength ) throws IOException {
+		if ( journal != null ) journal.noteLength( newLength );
+		super.setLength( newLength );
+	}
+}
@@ -0,0 +1,113 @@
+package net.vhati.ftldat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.vhati.ftldat.AbstractPack;
+import net.vhati.ftldat.AbstractPack.PathAndSize;
+
+
+/**
+ * A pseudo-dat held entirely in memory.
+ *
+ * InnerFiles are kept as byte arrays, in the order they were added.
+ * Nothing touches the disk, so this suits small, temporary sets of
+ * changes, such as the delta of an OverlayPack.
+ */
+public class MemoryPack extends AbstractPack {
+
+	private String name;
+	private Map<String, byte[]> dataMap = new LinkedHashMap<String, byte[]>();
+
+
+	public MemoryPack( String name ) {
+		this.name = name;
+	}
+
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public List<String> list() {
+		return new ArrayList<String>( dataMap.keySet() );
+	}
+
+	@Override
+	public List<PathAndSize> listSizes() {
+		List<PathAndSize> result = new ArrayList<PathAndSize>( dataMap.size() );
+		for ( Map.Entry<String, byte[]> entry : dataMap.entrySet() ) {
+			result.add( new PathAndSize( entry.getKey(), entry.getValue().length ) );
+		}
+		return result;
+	}
+
+	@Override
+	public void add( String innerPath, InputStream is ) throws IOException {
+		if ( innerPath.contains( "\\" ) ) {
+			throw new IllegalArgumentException( "InnerPath contains backslashes: "+ innerPath );
+		}
+		if ( dataMap.containsKey( innerPath ) ) {
+			throw new IOException( "InnerPath already exists: "+ innerPath );
+		}
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int len;
+		while ( (len = is.read( buf )) >= 0 ) {
+			os.write( buf, 0, len );
+		}
+		dataMap.put( innerPath, os.toByteArray() );
+	}
+
+	@Override
+	public void extractTo( String innerPath, OutputStream os ) throws FileNotFoundException, IOException {
+		os.write( getBytes( innerPath ) );
+	}
+
+	@Override
+	public void remove( String innerPath ) throws FileNotFoundException, IOException {
+		if ( dataMap.remove( innerPath ) == null ) {
+			throw new FileNotFoundException( "InnerPath does not exist: "+ innerPath );
+		}
+	}
+
+	@Override
+	public boolean contains( String innerPath ) {
+		return dataMap.containsKey( innerPath );
+	}
+
+	@Override
+	public InputStream getInputStream( String innerPath ) throws FileNotFoundException, IOException {
+		return new ByteArrayInputStream( getBytes( innerPath ) );
+	}
+
+	/**
+	 * Discards all innerFiles.
+	 */
+	@Override
+	public void close() throws IOException {
+		dataMap.clear();
+	}
+
+	/**
+	 * Returns an innerFile's bytes (not a copy).
+	 */
+	public byte[] getBytes( String innerPath ) throws FileNotFoundException {
+		byte[] data = dataMap.get( innerPath );
+		if ( data == null ) {
+			throw new FileNotFoundException( "InnerPath does not exist: "+ innerPath );
+		}
+		return data;
+	}
+}
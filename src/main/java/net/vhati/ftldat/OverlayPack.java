@@ -0,0 +1,425 @@
+package net.vhati.ftldat;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.vhati.ftldat.AbstractPack;
+import net.vhati.ftldat.AbstractPack.PathAndSize;
+import net.vhati.ftldat.FTLPack;
+import net.vhati.ftldat.FTLPack.DatEntry;
+import net.vhati.ftldat.FTLPack.DatEntryDataOffsetComparator;
+import net.vhati.ftldat.MemoryPack;
+import net.vhati.ftldat.PkgPack;
+import net.vhati.ftldat.PkgPack.PkgEntry;
+import net.vhati.ftldat.PkgPack.PkgEntryDataOffsetComparator;
+
+
+/**
+ * A copy-on-write layer over a read-only dat.
+ *
+ * The base dat is never modified. Added innerFiles go to a delta, and
+ * removed ones are merely noted. Reads check the delta first, then fall
+ * through to the base. The delta is either held in memory, or in a
+ * temporary dat of the base's format.
+ *
+ * materialize() writes the merged dat sequentially: its index, written
+ * once, then every surviving innerFile of the base, copied as-is, with
+ * replacements written in place of what they replaced, and new innerFiles
+ * last. The finished file is renamed over the destination.
+ *
+ * PkgPack and FTLPack bases are supported.
+ */
+public class OverlayPack extends AbstractPack {
+
+	private AbstractPack basePack = null;
+	private AbstractPack deltaPack = null;
+	private File deltaFile = null;  // Null when the delta is in memory.
+
+	// Base innerPaths that have been removed (or replaced in the delta).
+	private Set<String> removedPaths = new HashSet<String>();
+
+
+	/**
+	 * Constructs an overlay that holds added innerFiles in memory.
+	 *
+	 * @param basePack a dat to layer changes over (ideally opened read-only)
+	 */
+	public OverlayPack( AbstractPack basePack ) {
+		if ( !(basePack instanceof PkgPack) && !(basePack instanceof FTLPack) ) {
+			throw new IllegalArgumentException( "Unsupported base pack: "+ basePack.getClass().getName() );
+		}
+		this.basePack = basePack;
+		deltaPack = new MemoryPack( basePack.getName() );
+	}
+
+	/**
+	 * Constructs an overlay that holds added innerFiles in a temporary dat.
+	 *
+	 * @param basePack a dat to layer changes over (ideally opened read-only)
+	 * @param deltaFile a temporary file to hold added innerFiles (will be erased)
+	 */
+	public OverlayPack( AbstractPack basePack, File deltaFile ) throws IOException {
+		this.basePack = basePack;
+		this.deltaFile = deltaFile;
+
+		if ( basePack instanceof PkgPack ) {
+			PkgPack deltaPkgPack = new PkgPack( deltaFile, "w+" );
+			deltaPkgPack.beginWriteSession();  // Just append. The index never needs committing.
+			deltaPack = deltaPkgPack;
+		}
+		else if ( basePack instanceof FTLPack ) {
+			deltaPack = new FTLPack( deltaFile, "w+" );
+		}
+		else {
+			throw new IllegalArgumentException( "Unsupported base pack: "+ basePack.getClass().getName() );
+		}
+	}
+
+	@Override
+	public String getName() {
+		return basePack.getName();
+	}
+
+	@Override
+	public List<String> list() {
+		List<String> result = new ArrayList<String>();
+		for ( String innerPath : basePack.list() ) {
+			if ( !removedPaths.contains( innerPath ) ) result.add( innerPath );
+		}
+		result.addAll( deltaPack.list() );
+		return result;
+	}
+
+	@Override
+	public List<PathAndSize> listSizes() {
+		List<PathAndSize> result = new ArrayList<PathAndSize>();
+		for ( PathAndSize pas : basePack.listSizes() ) {
+			if ( !removedPaths.contains( pas.path ) ) result.add( pas );
+		}
+		result.addAll( deltaPack.listSizes() );
+		return result;
+	}
+
+	/**
+	 * Visits surviving innerFiles of the base, in whatever order the base
+	 * prefers (by dataOffset, for PkgPack and FTLPack), then the delta's.
+	 */
+	@Override
+	public void forEachEntry( EntryVisitor visitor ) throws IOException {
+		SurvivorVisitor baseVisitor = new SurvivorVisitor( visitor, removedPaths );
+		basePack.forEachEntry( baseVisitor );
+		if ( baseVisitor.stopped ) return;
+
+		deltaPack.forEachEntry( visitor );
+	}
+
+	@Override
+	public void add( String innerPath, InputStream is ) throws IOException {
+		if ( contains( innerPath ) ) {
+			throw new IOException( "InnerPath already exists: "+ innerPath );
+		}
+		deltaPack.add( innerPath, is );
+	}
+
+	@Override
+	public void extractTo( String innerPath, OutputStream os ) throws FileNotFoundException, IOException {
+		getPackContaining( innerPath ).extractTo( innerPath, os );
+	}
+
+	@Override
+	public void remove( String innerPath ) throws FileNotFoundException, IOException {
+		AbstractPack pack = getPackContaining( innerPath );
+		if ( pack == deltaPack ) {
+			deltaPack.remove( innerPath );
+		} else {
+			removedPaths.add( innerPath );
+		}
+	}
+
+	@Override
+	public boolean contains( String innerPath ) {
+		if ( deltaPack.contains( innerPath ) ) return true;
+		return ( !removedPaths.contains( innerPath ) && basePack.contains( innerPath ) );
+	}
+
+	@Override
+	public InputStream getInputStream( String innerPath ) throws FileNotFoundException, IOException {
+		return getPackContaining( innerPath ).getInputStream( innerPath );
+	}
+
+	/**
+	 * Closes the base and delta dats, and deletes the delta's file, if any.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			basePack.close();
+		}
+		finally {
+			deltaPack.close();
+			if ( deltaFile != null ) deltaFile.delete();
+		}
+	}
+
+	public AbstractPack getBasePack() {
+		return basePack;
+	}
+
+	/**
+	 * Returns the pack that currently provides innerPath.
+	 */
+	private AbstractPack getPackContaining( String innerPath ) throws FileNotFoundException {
+		if ( deltaPack.contains( innerPath ) ) return deltaPack;
+		if ( !removedPaths.contains( innerPath ) && basePack.contains( innerPath ) ) return basePack;
+
+		throw new FileNotFoundException( "InnerPath does not exist: "+ innerPath );
+	}
+
+	/**
+	 * Writes a merged dat with all changes, then replaces dstFile with it.
+	 *
+	 * The new dat is built alongside dstFile, as "[name].tmp", and renamed
+	 * when complete. Where the platform allows, that replacement is atomic.
+	 * Otherwise dstFile is deleted first.
+	 *
+	 * The dstFile must not be the base dat.
+	 */
+	public void materialize( File dstFile ) throws IOException {
+		File tmpFile = new File( dstFile.getAbsoluteFile().getParentFile(), dstFile.getName() +".tmp" );
+
+		try {
+			if ( basePack instanceof PkgPack ) {
+				materializePkg( tmpFile );
+			} else {
+				materializeFTL( tmpFile );
+			}
+
+			if ( !tmpFile.renameTo( dstFile ) ) {
+				// Windows won't rename over an existing file.
+				if ( !dstFile.delete() || !tmpFile.renameTo( dstFile ) ) {
+					throw new IOException( String.format( "Could not replace \"%s\" with merged \"%s\"", dstFile.getPath(), tmpFile.getPath() ) );
+				}
+			}
+		}
+		finally {
+			if ( tmpFile.exists() ) tmpFile.delete();
+		}
+	}
+
+	private void materializePkg( File tmpFile ) throws IOException {
+		PkgPack dstPack = new PkgPack( tmpFile, "w+", 0 );
+		try {
+			List<PkgEntry> baseEntries = getLivePkgEntries( (PkgPack)basePack );
+			List<PkgEntry> deltaEntries = getDeltaPkgEntries( dstPack );
+
+			Map<String, PkgEntry> deltaEntryMap = new HashMap<String, PkgEntry>( deltaEntries.size() );
+			for ( PkgEntry entry : deltaEntries ) {
+				deltaEntryMap.put( entry.innerPath, entry );
+			}
+
+			// Base order, with replacements in place, then new innerFiles.
+			List<PkgEntry> layoutEntries = new ArrayList<PkgEntry>( baseEntries.size() + deltaEntries.size() );
+			List<AbstractPack> sourcePacks = new ArrayList<AbstractPack>( baseEntries.size() + deltaEntries.size() );
+
+			for ( PkgEntry entry : baseEntries ) {
+				PkgEntry deltaEntry = deltaEntryMap.remove( entry.innerPath );
+				if ( deltaEntry != null ) {
+					layoutEntries.add( copyPkgEntry( deltaEntry ) );
+					sourcePacks.add( deltaPack );
+				}
+				else if ( !removedPaths.contains( entry.innerPath ) ) {
+					layoutEntries.add( copyPkgEntry( entry ) );
+					sourcePacks.add( basePack );
+				}
+			}
+			for ( PkgEntry entry : deltaEntries ) {
+				if ( !deltaEntryMap.containsKey( entry.innerPath ) ) continue;  // Already placed.
+
+				layoutEntries.add( copyPkgEntry( entry ) );
+				sourcePacks.add( deltaPack );
+			}
+
+			dstPack.writeLayout( layoutEntries );
+			for ( int i=0; i < layoutEntries.size(); i++ ) {
+				PkgEntry entry = layoutEntries.get( i );
+				AbstractPack srcPack = sourcePacks.get( i );
+
+				if ( srcPack instanceof MemoryPack ) {
+					dstPack.appendRawData( entry, ByteBuffer.wrap( ((MemoryPack)srcPack).getBytes( entry.innerPath ) ) );
+				} else {
+					dstPack.appendRawData( entry, (PkgPack)srcPack );
+				}
+			}
+		}
+		finally {
+			dstPack.close();
+		}
+	}
+
+	private void materializeFTL( File tmpFile ) throws IOException {
+		FTLPack dstPack = new FTLPack( tmpFile, "w+", 0 );
+		try {
+			List<DatEntry> baseEntries = getLiveDatEntries( (FTLPack)basePack );
+			List<DatEntry> deltaEntries = getDeltaDatEntries();
+
+			Map<String, DatEntry> deltaEntryMap = new HashMap<String, DatEntry>( deltaEntries.size() );
+			for ( DatEntry entry : deltaEntries ) {
+				deltaEntryMap.put( entry.innerPath, entry );
+			}
+
+			// Base order, with replacements in place, then new innerFiles.
+			List<DatEntry> layoutEntries = new ArrayList<DatEntry>( baseEntries.size() + deltaEntries.size() );
+			List<AbstractPack> sourcePacks = new ArrayList<AbstractPack>( baseEntries.size() + deltaEntries.size() );
+
+			for ( DatEntry entry : baseEntries ) {
+				DatEntry deltaEntry = deltaEntryMap.remove( entry.innerPath );
+				if ( deltaEntry != null ) {
+					layoutEntries.add( copyDatEntry( deltaEntry ) );
+					sourcePacks.add( deltaPack );
+				}
+				else if ( !removedPaths.contains( entry.innerPath ) ) {
+					layoutEntries.add( copyDatEntry( entry ) );
+					sourcePacks.add( basePack );
+				}
+			}
+			for ( DatEntry entry : deltaEntries ) {
+				if ( !deltaEntryMap.containsKey( entry.innerPath ) ) continue;  // Already placed.
+
+				layoutEntries.add( copyDatEntry( entry ) );
+				sourcePacks.add( deltaPack );
+			}
+
+			dstPack.writeLayout( layoutEntries );
+			for ( int i=0; i < layoutEntries.size(); i++ ) {
+				DatEntry entry = layoutEntries.get( i );
+				AbstractPack srcPack = sourcePacks.get( i );
+
+				if ( srcPack instanceof MemoryPack ) {
+					dstPack.appendRawData( entry, ByteBuffer.wrap( ((MemoryPack)srcPack).getBytes( entry.innerPath ) ) );
+				} else {
+					dstPack.appendRawData( entry, (FTLPack)srcPack );
+				}
+			}
+		}
+		finally {
+			dstPack.close();
+		}
+	}
+
+	/**
+	 * Returns non-null entries, in the order their data appears.
+	 */
+	private List<PkgEntry> getLivePkgEntries( PkgPack pack ) {
+		List<PkgEntry> result = new ArrayList<PkgEntry>();
+		for ( PkgEntry entry : pack.listMetadata() ) {
+			if ( entry != null ) result.add( entry );
+		}
+		Collections.sort( result, new PkgEntryDataOffsetComparator() );
+		return result;
+	}
+
+	/**
+	 * Returns non-null entries, in the order their data appears.
+	 */
+	private List<DatEntry> getLiveDatEntries( FTLPack pack ) {
+		List<DatEntry> result = new ArrayList<DatEntry>();
+		for ( DatEntry entry : pack.listMetadata() ) {
+			if ( entry != null ) result.add( entry );
+		}
+		Collections.sort( result, new DatEntryDataOffsetComparator() );
+		return result;
+	}
+
+	/**
+	 * Returns entries describing the delta's innerFiles.
+	 *
+	 * In-memory innerFiles are uncompressed, and listed in the order they
+	 * were added.
+	 *
+	 * @param dstPack a pack to calculate hashes with
+	 */
+	private List<PkgEntry> getDeltaPkgEntries( PkgPack dstPack ) {
+		if ( !(deltaPack instanceof MemoryPack) ) return getLivePkgEntries( (PkgPack)deltaPack );
+
+		List<PkgEntry> result = new ArrayList<PkgEntry>();
+		for ( PathAndSize pas : deltaPack.listSizes() ) {
+			PkgEntry entry = new PkgEntry();
+			entry.innerPath = pas.path;
+			entry.innerPathHash = dstPack.calculatePathHash( pas.path );
+			entry.dataSize = pas.size;
+			entry.unpackedSize = pas.size;
+			result.add( entry );
+		}
+		return result;
+	}
+
+	/**
+	 * Returns entries describing the delta's innerFiles.
+	 *
+	 * In-memory innerFiles are listed in the order they were added.
+	 */
+	private List<DatEntry> getDeltaDatEntries() {
+		if ( !(deltaPack instanceof MemoryPack) ) return getLiveDatEntries( (FTLPack)deltaPack );
+
+		List<DatEntry> result = new ArrayList<DatEntry>();
+		for ( PathAndSize pas : deltaPack.listSizes() ) {
+			DatEntry entry = new DatEntry();
+			entry.innerPath = pas.path;
+			entry.dataSize = pas.size;
+			result.add( entry );
+		}
+		return result;
+	}
+
+	private PkgEntry copyPkgEntry( PkgEntry entry ) {
+		PkgEntry result = new PkgEntry();
+		result.innerPath = entry.innerPath;
+		result.innerPathHash = entry.innerPathHash;
+		result.dataSize = entry.dataSize;
+		result.unpackedSize = entry.unpackedSize;
+		result.dataDeflated = entry.dataDeflated;
+		return result;
+	}
+
+	private DatEntry copyDatEntry( DatEntry entry ) {
+		DatEntry result = new DatEntry();
+		result.innerPath = entry.innerPath;
+		result.dataSize = entry.dataSize;
+		return result;
+	}
+
+
+
+	/**
+	 * Passes along base innerFiles that haven't been removed or replaced.
+	 */
+	private static class SurvivorVisitor implements EntryVisitor {
+		private final EntryVisitor visitor;
+		private final Set<String> removedPaths;
+		public boolean stopped = false;
+
+		public SurvivorVisitor( EntryVisitor visitor, Set<String> removedPaths ) {
+			this.visitor = visitor;
+			this.removedPaths = removedPaths;
+		}
+
+		@Override
+		public boolean visit( VisitedEntry entry ) throws IOException {
+			if ( removedPaths.contains( entry.path ) ) return true;
+
+			if ( !visitor.visit( entry ) ) stopped = true;
+			return !stopped;
+		}
+	}
+}
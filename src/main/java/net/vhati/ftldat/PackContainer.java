@@ -4,8 +4,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import net.vhati.ftldat.AbstractPack;
 
@@ -34,18 +32,12 @@ import net.vhati.ftldat.AbstractPack;
  */
 public class PackContainer {
 
-	/**
-	 * Regex for innerPaths.
-	 *
-	 * Group1: parentPath/ (may be null).
-	 * Group2: root/ (may be null).
-	 * Group3: fileName (never null, if innerPath is valid).
-	 */
-	protected Pattern pathPtn = Pattern.compile( "^(?:(([^/]+/)(?:.*/)?))?([^/]+)$" );
-
 	protected Map<String, AbstractPack> rootMap = new HashMap<String, AbstractPack>();
 	protected AbstractPack defaultPack = null;
 
+	// Lower-cased innerPaths, to their actual case and owning pack.
+	protected Map<String, PathAndPack> lowerPathMap = new HashMap<String, PathAndPack>();
+
 
 	public PackContainer() {
 	}
@@ -86,23 +78,80 @@ public class PackContainer {
 	 * Returns null if no pack is relevant or if innerPath is malformed.
 	 */
 	public AbstractPack getPackFor( String innerPath ) {
-		Matcher m = pathPtn.matcher( innerPath );
-		if ( m.matches() ) {
-			String root = m.group( 2 );
-			AbstractPack rootPack = rootMap.get( root );
+		if ( !isWellFormed( innerPath ) ) return null;
 
-			if ( rootPack != null ) return rootPack;
-			if ( !rootMap.containsKey( root ) ) return null;
-		}
-		else {
-			return null;  // Malformed.
-		}
+		String root = getRoot( innerPath );
+		AbstractPack rootPack = rootMap.get( root );
+
+		if ( rootPack != null ) return rootPack;
+		if ( !rootMap.containsKey( root ) ) return null;
 
 		if ( defaultPack != null ) return defaultPack;
 
 		return null;
 	}
 
+	/**
+	 * Returns true if innerPath has a file name and doesn't begin with a slash.
+	 */
+	public static boolean isWellFormed( String innerPath ) {
+		if ( innerPath.length() == 0 ) return false;
+		if ( innerPath.charAt( 0 ) == '/' ) return false;
+		if ( innerPath.charAt( innerPath.length()-1 ) == '/' ) return false;
+		return true;
+	}
+
+	/**
+	 * Returns the root dir of innerPath, with its trailing slash, or null
+	 * for top-level files.
+	 */
+	public static String getRoot( String innerPath ) {
+		int slashIndex = innerPath.indexOf( '/' );
+		if ( slashIndex == -1 ) return null;
+		return innerPath.substring( 0, slashIndex+1 );
+	}
+
+	/**
+	 * Indexes the innerPaths of all contained packs, ignoring letter case.
+	 *
+	 * This replaces any earlier index. Call it after all packs are set.
+	 * Paths added to packs afterward should be passed to addIndexedPath().
+	 *
+	 * If paths differing only in case exist, the first one listed wins.
+	 */
+	public void indexPaths() {
+		lowerPathMap.clear();
+
+		for ( AbstractPack pack : getPacks() ) {
+			for ( String innerPath : pack.list() ) {
+				String lowerPath = innerPath.toLowerCase();
+				if ( !lowerPathMap.containsKey( lowerPath ) ) {
+					lowerPathMap.put( lowerPath, new PathAndPack( innerPath, pack ) );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds an innerPath to the index, unless one differing only in case is
+	 * already there.
+	 */
+	public void addIndexedPath( String innerPath, AbstractPack pack ) {
+		String lowerPath = innerPath.toLowerCase();
+		if ( !lowerPathMap.containsKey( lowerPath ) ) {
+			lowerPathMap.put( lowerPath, new PathAndPack( innerPath, pack ) );
+		}
+	}
+
+	/**
+	 * Returns the indexed innerPath matching one, ignoring letter case, or null.
+	 *
+	 * @see #indexPaths()
+	 */
+	public PathAndPack getIndexedPath( String innerPath ) {
+		return lowerPathMap.get( innerPath.toLowerCase() );
+	}
+
 	/**
 	 * Returns a list of known root dirs.
 	 *
@@ -125,4 +174,16 @@ public class PackContainer {
 
 		return result;
 	}
+
+
+
+	public static class PathAndPack {
+		public String path = null;
+		public AbstractPack pack = null;
+
+		public PathAndPack( String path, AbstractPack pack ) {
+			this.path = path;
+			this.pack = pack;
+		}
+	}
 }
@@ -0,0 +1,242 @@
+package net.vhati.ftldat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.vhati.ftldat.AbstractPack;
+import net.vhati.ftldat.FolderPack;
+
+
+/**
+ * Copies every innerFile of a dat into a FolderPack, using several threads.
+ *
+ * Workers share nothing but a counter of which innerPath to take next. Each
+ * calls extractTo() on the source independently, so the source must
+ * support concurrent extraction. PkgPack and FTLPack do, in read-only
+ * mode: they use positional channel reads/transfers (or mapped slices),
+ * with no shared seek state.
+ *
+ * If any innerFile fails, remaining work is abandoned and the first error
+ * is thrown, but only after every worker has stopped. The caller can then
+ * safely close the source.
+ */
+public class PackExtractor {
+
+	private int jobs;
+
+
+	/**
+	 * Constructs an extractor with one worker per available processor.
+	 */
+	public PackExtractor() {
+		this( Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param jobs the maximum number of worker threads (at least 1)
+	 */
+	public PackExtractor( int jobs ) {
+		if ( jobs < 1 ) throw new IllegalArgumentException( "Job count must be at least 1: "+ jobs );
+		this.jobs = jobs;
+	}
+
+	public int getJobs() {
+		return jobs;
+	}
+
+	/**
+	 * Extracts all innerFiles from srcPack into dstPack.
+	 *
+	 * Existing files in dstPack will be replaced.
+	 *
+	 * @param observer a thread-safe callback to notify, or null
+	 */
+	public void extract( final AbstractPack srcPack, final FolderPack dstPack, final ExtractObserver observer ) throws IOException {
+		// Hand out innerPaths in the order their data lies, so workers read
+		// the dat roughly front to back.
+		final List<String> innerPaths = new ArrayList<String>();
+		srcPack.forEachEntry( new AbstractPack.EntryVisitor() {
+			@Override
+			public boolean visit( AbstractPack.VisitedEntry entry ) {
+				innerPaths.add( entry.path );
+				return true;
+			}
+		});
+		final int total = innerPaths.size();
+		if ( total == 0 ) return;
+
+		final AtomicInteger nextIndex = new AtomicInteger( 0 );
+		final AtomicInteger doneCount = new AtomicInteger( 0 );
+		final AtomicBoolean aborted = new AtomicBoolean( false );
+
+		int workerCount = Math.min( jobs, total );
+		ExecutorService executor = Executors.newFixedThreadPool( workerCount, new ExtractThreadFactory( srcPack.getName() ) );
+		List<Future<Void>> futures = new ArrayList<Future<Void>>( workerCount );
+		try {
+			for ( int i=0; i < workerCount; i++ ) {
+				futures.add( executor.submit( new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						try {
+							int n;
+							while ( !aborted.get() && (n = nextIndex.getAndIncrement()) < total ) {
+								String innerPath = innerPaths.get( n );
+
+								if ( dstPack.contains( innerPath ) ) {
+									if ( observer != null ) observer.extractionOverwriting( innerPath );
+									dstPack.remove( innerPath );
+								}
+								extractEntry( srcPack, dstPack, innerPath );
+
+								int done = doneCount.incrementAndGet();
+								if ( observer != null ) observer.extractionProgress( innerPath, done, total );
+							}
+						}
+						catch ( IOException e ) {
+							aborted.set( true );
+							throw e;
+						}
+						catch ( RuntimeException e ) {
+							aborted.set( true );
+							throw e;
+						}
+						return null;
+					}
+				}) );
+			}
+
+			// Wait for every worker, even after one fails, so none is still
+			// reading srcPack when the caller closes it.
+			Throwable firstFailure = null;
+			boolean interrupted = false;
+			for ( Future<Void> future : futures ) {
+				while ( true ) {
+					try {
+						future.get();
+					}
+					catch ( ExecutionException e ) {
+						aborted.set( true );
+						if ( firstFailure == null ) firstFailure = e.getCause();
+					}
+					catch ( InterruptedException e ) {
+						// Stop handing out innerPaths, but keep waiting.
+						aborted.set( true );
+						interrupted = true;
+						continue;
+					}
+					break;
+				}
+			}
+
+			if ( interrupted ) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException( "Interrupted while extracting from "+ srcPack.getName() );
+			}
+			if ( firstFailure instanceof IOException ) throw (IOException)firstFailure;
+			if ( firstFailure instanceof RuntimeException ) throw (RuntimeException)firstFailure;
+			if ( firstFailure instanceof Error ) throw (Error)firstFailure;
+			if ( firstFailure != null ) throw new IOException( "Error extracting from "+ srcPack.getName(), firstFailure );
+		}
+		finally {
+			// Workers aren't interrupted. That could abort a transferTo(),
+			// which closes the channel shared by all the others.
+			aborted.set( true );
+			executor.shutdown();
+
+			boolean interrupted = false;
+			while ( !executor.isTerminated() ) {
+				try {
+					executor.awaitTermination( 1, TimeUnit.SECONDS );
+				}
+				catch ( InterruptedException e ) {
+					interrupted = true;
+				}
+			}
+			if ( interrupted ) Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Copies a single innerFile.
+	 *
+	 * The destination is handed to the source's extractTo() as a
+	 * FileOutputStream, so packs can copy uncompressed data kernel-side.
+	 */
+	protected void extractEntry( AbstractPack srcPack, FolderPack dstPack, String innerPath ) throws IOException {
+		File dstFile = dstPack.getFile( innerPath );
+		if ( dstFile.exists() ) throw new IOException( "InnerPath already exists: "+ innerPath );
+
+		dstFile.getParentFile().mkdirs();
+
+		FileOutputStream os = null;
+		try {
+			os = new FileOutputStream( dstFile );
+			srcPack.extractTo( innerPath, os );
+		}
+		finally {
+			try {if ( os != null ) os.close();}
+			catch ( IOException e ) {}
+		}
+	}
+
+
+
+	/**
+	 * Receives notifications as innerFiles are extracted.
+	 *
+	 * Methods will be called from worker threads, so they need to be
+	 * thread-safe.
+	 */
+	public static interface ExtractObserver {
+
+		/**
+		 * An existing file in the destination is about to be replaced.
+		 */
+		public void extractionOverwriting( String innerPath );
+
+		/**
+		 * An innerFile has been extracted.
+		 *
+		 * @param innerPath the innerFile that just finished
+		 * @param done how many innerFiles have finished so far
+		 * @param total how many innerFiles there are
+		 */
+		public void extractionProgress( String innerPath, int done, int total );
+	}
+
+
+
+	/**
+	 * Creates named daemon threads, so stray workers can't stall JVM exit.
+	 */
+	private static class ExtractThreadFactory implements ThreadFactory {
+		private final String namePrefix;
+		private final AtomicInteger threadNumber = new AtomicInteger( 1 );
+
+		public ExtractThreadFactory( String packName ) {
+			namePrefix = "Extract-"+ packName +"-";
+		}
+
+		@Override
+		public Thread newThread( Runnable r ) {
+			Thread t = new Thread( r, namePrefix + threadNumber.getAndIncrement() );
+			t.setDaemon( true );
+			return t;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package net.vhati.ftldat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+
+/**
+ * A sidecar file holding a dat's parsed index, so it needn't be parsed again.
+ *
+ * Packs encode their own index as an opaque payload. This only stores it
+ * along with a key identifying the dat it came from: the dat's length,
+ * modification time, and a CRC32 of its first few KB (where the index
+ * begins). If any of those differ when loading, the cache is ignored.
+ *
+ * A dat modified within the last few seconds is never cached. A later
+ * change might land within the same timestamp granularity, leaving the
+ * mtime as it was, so only an mtime safely in the past can be trusted to
+ * change along with the file.
+ *
+ * Failures to read or write the cache are not errors; the pack simply
+ * parses the dat as usual.
+ */
+public class PackIndexCache {
+
+	/** Format tag for PkgPack payloads. */
+	public static final int KIND_PKG = 1;
+
+	/** Format tag for FTLPack payloads. */
+	public static final int KIND_FTL = 2;
+
+	private static final int MAGIC = 0x46444958;  // "FDIX"
+	private static final int VERSION = 1;
+
+	/** Fixed byte count of the cache file's header. */
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 4 + 4 + 4;
+
+	/** Byte count at the start of the dat to checksum. */
+	private static final int HEAD_CHECK_SIZE = 4096;
+
+	/** Milliseconds a dat must have been untouched before it can be cached. */
+	private static final long RACY_WINDOW = 3000;
+
+	private File cacheFile;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param cacheFile a file to hold the cache (need not exist yet)
+	 */
+	public PackIndexCache( File cacheFile ) {
+		this.cacheFile = cacheFile;
+	}
+
+	public File getFile() {
+		return cacheFile;
+	}
+
+	/**
+	 * Returns the cached payload for a dat, or null if there's no valid cache.
+	 *
+	 * The whole cache file is read with a single call.
+	 *
+	 * @param kind the format tag the payload was saved with
+	 * @param datFile the dat's file, for its mtime
+	 * @param raf the open dat, for its length and head (its pointer will move)
+	 * @return a buffer positioned at the payload, limited to its end
+	 */
+	public ByteBuffer load( int kind, File datFile, RandomAccessFile raf ) throws IOException {
+		if ( !cacheFile.isFile() ) return null;
+
+		long cacheLength = cacheFile.length();
+		if ( cacheLength < HEADER_SIZE || cacheLength > Integer.MAX_VALUE ) return null;
+
+		ByteBuffer buf = ByteBuffer.allocate( (int)cacheLength );
+		RandomAccessFile cacheRaf = null;
+		try {
+			cacheRaf = new RandomAccessFile( cacheFile, "r" );
+			cacheRaf.readFully( buf.array() );
+		}
+		catch ( IOException e ) {
+			return null;
+		}
+		finally {
+			try {if ( cacheRaf != null ) cacheRaf.close();}
+			catch ( IOException e ) {}
+		}
+
+		if ( buf.getInt() != MAGIC ) return null;
+		if ( buf.getInt() != VERSION ) return null;
+		if ( buf.getInt() != kind ) return null;
+		if ( buf.getLong() != raf.length() ) return null;
+		if ( buf.getLong() != datFile.lastModified() ) return null;
+		int headCrc = buf.getInt();
+		int payloadLength = buf.getInt();
+		int payloadCrc = buf.getInt();
+
+		if ( payloadLength != buf.remaining() ) return null;
+
+		CRC32 crc = new CRC32();
+		crc.update( buf.array(), HEADER_SIZE, payloadLength );
+		if ( (int)crc.getValue() != payloadCrc ) return null;
+
+		// Checked last, since it reads the dat.
+		if ( checksumHead( raf ) != headCrc ) return null;
+
+		return buf.slice();
+	}
+
+	/**
+	 * Writes a payload to the cache, keyed to a dat's current state.
+	 *
+	 * Nothing is written if the dat was modified too recently to trust its
+	 * mtime. Any existing cache is then deleted, since it's stale anyway.
+	 *
+	 * @param kind a format tag to check when loading
+	 * @param datFile the dat's file, for its mtime
+	 * @param raf the open dat, for its length and head (its pointer will move)
+	 * @param payload bytes from position to limit will be saved
+	 * @return true if the cache was written, false otherwise
+	 */
+	public boolean save( int kind, File datFile, RandomAccessFile raf, ByteBuffer payload ) {
+		FileOutputStream os = null;
+		try {
+			long datModified = datFile.lastModified();
+			if ( datModified == 0 || System.currentTimeMillis() - datModified < RACY_WINDOW ) {
+				delete();
+				return false;
+			}
+
+			int payloadLength = payload.remaining();
+			CRC32 crc = new CRC32();
+			crc.update( payload.array(), payload.arrayOffset() + payload.position(), payloadLength );
+
+			ByteBuffer headerBuf = ByteBuffer.allocate( HEADER_SIZE );
+			headerBuf.putInt( MAGIC );
+			headerBuf.putInt( VERSION );
+			headerBuf.putInt( kind );
+			headerBuf.putLong( raf.length() );
+			headerBuf.putLong( datModified );
+			headerBuf.putInt( checksumHead( raf ) );
+			headerBuf.putInt( payloadLength );
+			headerBuf.putInt( (int)crc.getValue() );
+
+			os = new FileOutputStream( cacheFile );
+			os.write( headerBuf.array() );
+			os.write( payload.array(), payload.arrayOffset() + payload.position(), payloadLength );
+			os.close();
+			os = null;
+			return true;
+		}
+		catch ( IOException e ) {
+			try {if ( os != null ) os.close();}
+			catch ( IOException f ) {}
+
+			delete();  // Don't leave a partial file around.
+			return false;
+		}
+	}
+
+	/**
+	 * Deletes the cache file, if it exists.
+	 */
+	public void delete() {
+		if ( cacheFile.exists() ) cacheFile.delete();
+	}
+
+	/**
+	 * Returns a CRC32 of the first few KB of a dat.
+	 */
+	private int checksumHead( RandomAccessFile raf ) throws IOException {
+		int len = (int)Math.min( raf.length(), HEAD_CHECK_SIZE );
+		byte[] headBytes = new byte[len];
+		raf.seek( 0 );
+		raf.readFully( headBytes );
+
+		CRC32 crc = new CRC32();
+		crc.update( headBytes );
+		return (int)crc.getValue();
+	}
+}
@@ -7,12 +7,25 @@ import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
 
 
 public class PackUtilities {
 
+	/** Byte count to hand FileChannel.transferTo() at a time, when copying files. */
+	private static final long COPY_CHUNK_SIZE = 64 * 1024 * 1024;
+
+	/** The means to release mappings on this JVM, or null if there are none. */
+	private static final Unmapper UNMAPPER = createUnmapper();
+
 	/**
 	 * Returns segments of a path string, split by each "/" occurrence.
 	 */
@@ -56,6 +69,9 @@ public class PackUtilities {
 
 	/**
 	 * Copies all bytes from one file to another.
+	 *
+	 * This uses FileChannel.transferTo() in large chunks, so the copying can
+	 * happen kernel-side.
 	 */
 	public static void copyFile( File srcFile, File dstFile ) throws IOException {
 		FileInputStream is = null;
@@ -63,11 +79,18 @@ public class PackUtilities {
 		try {
 			is = new FileInputStream( srcFile );
 			os = new FileOutputStream( dstFile );
+			FileChannel srcChannel = is.getChannel();
+			FileChannel dstChannel = os.getChannel();
 
-			byte[] buf = new byte[4096];
-			int len;
-			while ( (len = is.read( buf )) >= 0 ) {
-				os.write( buf, 0, len );
+			long size = srcChannel.size();
+			long pos = 0;
+			while ( pos < size ) {
+				long len = srcChannel.transferTo( pos, Math.min( COPY_CHUNK_SIZE, size - pos ), dstChannel );
+				if ( len <= 0 ) break;
+				pos += len;
+			}
+			if ( pos != size ) {
+				throw new IOException( String.format( "EOF prematurely reached copying \"%s\" (%d of %d bytes)", srcFile.getPath(), pos, size ) );
 			}
 		}
 		finally {
@@ -79,6 +102,188 @@ public class PackUtilities {
 		}
 	}
 
+	/**
+	 * Copies all bytes from one file to another, then confirms the copy.
+	 *
+	 * Both files are read back, and their CRC32s compared.
+	 *
+	 * @throws IOException if the copy failed, or doesn't match
+	 */
+	public static void copyFileVerified( File srcFile, File dstFile ) throws IOException {
+		copyFile( srcFile, dstFile );
+
+		if ( calcFileCRC32( dstFile ) != calcFileCRC32( srcFile ) ) {
+			throw new IOException( String.format( "Copy of \"%s\" does not match the original: %s", srcFile.getPath(), dstFile.getPath() ) );
+		}
+	}
+
+	/**
+	 * Calculates a CRC32 of a file's bytes.
+	 */
+	public static long calcFileCRC32( File f ) throws IOException {
+		CRC32 crc = new CRC32();
+		FileInputStream is = null;
+		try {
+			is = new FileInputStream( f );
+
+			byte[] buf = new byte[1024 * 1024];
+			int len;
+			while ( (len = is.read( buf )) >= 0 ) {
+				crc.update( buf, 0, len );
+			}
+		}
+		finally {
+			try {if ( is != null ) is.close();}
+			catch ( IOException e ) {}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Copies a region of a file to another channel, kernel-side if possible.
+	 *
+	 * This uses positional transfers, so the source channel's position is
+	 * unaffected, and concurrent calls on the same channel are safe.
+	 *
+	 * @return the number of bytes copied, less than length if EOF was reached
+	 */
+	public static long transferRegion( FileChannel srcChannel, long offset, long length, WritableByteChannel dstChannel ) throws IOException {
+		long bytesRemaining = length;
+		while ( bytesRemaining > 0 ) {
+			long len = srcChannel.transferTo( offset + length - bytesRemaining, bytesRemaining, dstChannel );
+			if ( len <= 0 ) break;  // EOF.
+
+			bytesRemaining -= len;
+		}
+		return length - bytesRemaining;
+	}
+
+	/**
+	 * Copies a region of a file to another offset within the same file.
+	 *
+	 * The source and destination may overlap: chunks are copied from the
+	 * end backward when the destination is later, so nothing is read after
+	 * being overwritten. Positional reads/writes are used, so the channel's
+	 * position is unaffected.
+	 *
+	 * @param buf a buffer to copy through (a large direct buffer is best)
+	 */
+	public static void moveRegion( FileChannel channel, long srcOffset, long dstOffset, long length, ByteBuffer buf ) throws IOException {
+		if ( srcOffset == dstOffset || length == 0 ) return;
+
+		boolean backward = ( dstOffset > srcOffset && dstOffset < srcOffset + length );
+		long bytesRemaining = length;
+
+		while ( bytesRemaining > 0 ) {
+			int chunkSize = (int)Math.min( buf.capacity(), bytesRemaining );
+			long chunkOffset = ( backward ? bytesRemaining - chunkSize : length - bytesRemaining );
+
+			buf.clear();
+			buf.limit( chunkSize );
+			while ( buf.hasRemaining() ) {
+				int len = channel.read( buf, srcOffset + chunkOffset + buf.position() );
+				if ( len == -1 ) {
+					throw new IOException( "EOF prematurely reached while moving a region" );
+				}
+			}
+
+			buf.flip();
+			while ( buf.hasRemaining() ) {
+				channel.write( buf, dstOffset + chunkOffset + buf.position() );
+			}
+			bytesRemaining -= chunkSize;
+		}
+	}
+
+	/**
+	 * Maps an entire file into memory, read-only.
+	 *
+	 * A single mapping can't exceed 2 GiB, which is plenty for FTL's dats.
+	 */
+	public static MappedByteBuffer mapReadOnly( FileChannel channel ) throws IOException {
+		long length = channel.size();
+		if ( length > Integer.MAX_VALUE ) {
+			throw new IOException( String.format( "File is too large to memory-map (%d bytes)", length ) );
+		}
+		return channel.map( FileChannel.MapMode.READ_ONLY, 0, length );
+	}
+
+	/**
+	 * Returns true if unmap() can release mappings on this JVM.
+	 *
+	 * Callers should only memory-map a file that may be overwritten later in
+	 * the same session when this is true. Otherwise, the mapping lingers
+	 * until garbage collected.
+	 */
+	public static boolean isUnmapSupported() {
+		return ( UNMAPPER != null );
+	}
+
+	/**
+	 * Attempts to release a memory mapping immediately.
+	 *
+	 * Mapped regions otherwise linger until garbage collected, keeping the
+	 * file in use (on Windows, it can't be overwritten in the meantime).
+	 * Java has no public API for this, so JVM internals are poked at. If
+	 * they're unavailable, nothing happens (see isUnmapSupported()).
+	 *
+	 * Afterward, any access to the buffer, or to slices of it, will crash
+	 * the JVM. Only call this when nothing can read it anymore.
+	 */
+	public static void unmap( MappedByteBuffer buf ) {
+		if ( buf == null || UNMAPPER == null ) return;
+		try {
+			UNMAPPER.unmap( buf );
+		}
+		catch ( Exception e ) {
+			// Leave it to the garbage collector.
+		}
+	}
+
+	/**
+	 * Looks up a way to unmap buffers, or returns null.
+	 *
+	 * Java 9+ offers Unsafe.invokeCleaner(), and hides the older internals
+	 * behind module access checks. Java 6-8 expose a Cleaner on the buffer.
+	 */
+	private static Unmapper createUnmapper() {
+		try {
+			Class<?> unsafeClass = Class.forName( "sun.misc.Unsafe" );
+			final Method invokeCleanerMethod = unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class );
+			Field theUnsafeField = unsafeClass.getDeclaredField( "theUnsafe" );
+			theUnsafeField.setAccessible( true );
+			final Object theUnsafe = theUnsafeField.get( null );
+
+			return new Unmapper() {
+				@Override
+				public void unmap( MappedByteBuffer buf ) throws Exception {
+					invokeCleanerMethod.invoke( theUnsafe, buf );
+				}
+			};
+		}
+		catch ( Exception e ) {
+			// Not Java 9+.
+		}
+
+		try {
+			final Method cleanerMethod = Class.forName( "sun.nio.ch.DirectBuffer" ).getMethod( "cleaner" );
+			final Method cleanMethod = Class.forName( "sun.misc.Cleaner" ).getMethod( "clean" );
+
+			return new Unmapper() {
+				@Override
+				public void unmap( MappedByteBuffer buf ) throws Exception {
+					Object cleaner = cleanerMethod.invoke( buf );
+					if ( cleaner != null ) cleanMethod.invoke( cleaner );
+				}
+			};
+		}
+		catch ( Exception e ) {
+			// Not a JVM with these internals.
+		}
+
+		return null;
+	}
+
 	/**
 	 * Calculates an MD5 hash of data from an InputStream.
 	 *
@@ -86,32 +291,52 @@ public class PackUtilities {
 	 */
 	public static String calcStreamMD5( InputStream is ) throws NoSuchAlgorithmException, IOException {
 		MessageDigest md = MessageDigest.getInstance( "MD5" );
-		byte[] buf = new byte[4096];
+		byte[] buf = new byte[65536];
 		int len;
 		while ( (len = is.read( buf )) >= 0 ) {
 			md.update( buf, 0, len );
 		}
 
-		byte[] hashBytes = md.digest();
-		StringBuilder hashStringBuf = new StringBuilder();
-		for ( byte b : hashBytes ) {
-			hashStringBuf.append( Integer.toString( (b & 0xff) + 0x100, 16 ).substring( 1 ) );
-		}
-		return hashStringBuf.toString();
+		return toHexString( md.digest() );
 	}
 
+	/**
+	 * Calculates an MD5 hash of a file.
+	 *
+	 * The file is read through a channel, in large chunks, straight into
+	 * the digest.
+	 *
+	 * The returned string will be lowercase hexadecimal.
+	 */
 	public static String calcFileMD5( File f ) throws NoSuchAlgorithmException, IOException {
-		String result = null;
+		MessageDigest md = MessageDigest.getInstance( "MD5" );
+
 		FileInputStream is = null;
 		try {
 			is = new FileInputStream( f );
-			result = PackUtilities.calcStreamMD5( is );
+			FileChannel channel = is.getChannel();
+
+			ByteBuffer buf = ByteBuffer.allocate( 1024*1024 );
+			while ( channel.read( buf ) >= 0 ) {
+				buf.flip();
+				md.update( buf );
+				buf.clear();
+			}
 		}
 		finally {
 			try {if (is != null) is.close();}
 			catch ( Exception e ) {}
 		}
-		return result;
+
+		return toHexString( md.digest() );
+	}
+
+	private static String toHexString( byte[] hashBytes ) {
+		StringBuilder hashStringBuf = new StringBuilder();
+		for ( byte b : hashBytes ) {
+			hashStringBuf.append( Integer.toString( (b & 0xff) + 0x100, 16 ).substring( 1 ) );
+		}
+		return hashStringBuf.toString();
 	}
 
 
@@ -125,4 +350,13 @@ public class PackUtilities {
 		String pre = (si ? "kMGTPE" : "KMGTPE").charAt( exp-1 ) + (si ? "" : "i");
 		return String.format( "%.1f %sB", (bytes / Math.pow( unit, exp )), pre );
 	}
+
+
+
+	/**
+	 * Releases a buffer's mapping, by whichever means the JVM offers.
+	 */
+	private static abstract class Unmapper {
+		public abstract void unmap( MappedByteBuffer buf ) throws Exception;
+	}
 }
@@ -2,6 +2,7 @@ package net.vhati.ftldat;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -9,24 +10,34 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.zip.DeflaterInputStream;
 import java.util.zip.InflaterInputStream;
 
 import net.vhati.ftldat.AbstractPack;
 import net.vhati.ftldat.AbstractPack.PathAndSize;
 import net.vhati.ftldat.AbstractPack.RepackResult;
+import net.vhati.ftldat.ByteBufferBackedInputStream;
+import net.vhati.ftldat.DirtyRangeJournal;
 import net.vhati.ftldat.FileChannelRegionInputStream;
+import net.vhati.ftldat.JournaledFile;
 import net.vhati.ftldat.MeteredInputStream;
+import net.vhati.ftldat.PackUtilities;
+import net.vhati.ftldat.SharedMapping;
 
 
 /**
@@ -63,6 +74,9 @@ public class PkgPack extends AbstractPack {
 	/** Byte count to pre-allocate per innerPath in newly created dats. */
 	private static final int TYPICAL_PATH_LENGTH = 70;
 
+	/** Byte count of the buffer repack() copies data through. */
+	private static final int MOVE_BUFFER_SIZE = 1024 * 1024;
+
 	private final int[] signature = new int[] {0x50, 0x4B, 0x47, 0x0A};  // "PKG\n"
 
 	private CharsetEncoder asciiEncoder = Charset.forName( "US-ASCII" ).newEncoder();
@@ -72,11 +86,34 @@ public class PkgPack extends AbstractPack {
 
 	private File datFile = null;
 	private RandomAccessFile raf = null;
+	private boolean readOnly = false;
+	private volatile SharedMapping mapping = null;
 	private List<PkgEntry> entryList = null;
 	private Map<String, Integer> pathToIndexMap = null;
 
+	// Null slots in entryList, kept in sync to avoid scanning for vacancies.
+	// The live entry count is pathToIndexMap.size().
+	private BitSet vacantSlots = null;
+
+	// Live entries in the order their data appears, mapped to their slots.
+	// Remove an entry before changing its dataOffset, then put it back.
+	private TreeMap<PkgEntry, Integer> dataOrderMap = null;
+
+	// A copy of the paths region, while innerPaths are decoded on demand.
+	// Until then, pathToIndexMap and dataOrderMap are null.
+	// Written last, after those maps, when the index is fully decoded.
+	private volatile ByteBuffer lazyPathsBuf = null;
+
+	// Slots of live entries, sorted by innerPathHash, for lazy lookups.
+	private int[] hashOrder = null;
+
 	private int pathsRegionSize = 0;
+	private int nextInnerPathOffset = 0;
 	private boolean compressNewAdditions = false;
+	private double repackThreshold = 0;
+
+	private boolean writeSession = false;
+	private long writeSessionStartLength = 0;
 
 
 	/**
@@ -97,15 +134,39 @@ public class PkgPack extends AbstractPack {
 	 *   r+ - opens an existing dat, read/write.
 	 *   w+ - creates a new empty dat, read/write.
 	 *
+	 * In read-only mode, innerPaths aren't decoded up front. Lookups
+	 * binary-search the entries by hash instead, until something like
+	 * list() needs them all.
+	 *
 	 * @param datFile a file to open/create
 	 * @param mode see above
 	 * @param entryCount size of the initial index if creating
 	 */
 	public PkgPack( File datFile, String mode, int entryCount ) throws IOException {
+		this( datFile, mode, entryCount, null );
+	}
+
+	/**
+	 * Opens an existing dat, using a sidecar cache of its parsed index.
+	 *
+	 * If the cache is valid for the dat, the index is loaded from it
+	 * instead of being parsed. Otherwise the dat is parsed as usual, and
+	 * the cache is rewritten (if the dat's mtime can be trusted).
+	 *
+	 * @param datFile a file to open
+	 * @param mode "r" or "r+"
+	 * @param indexCache a cache to consult, or null
+	 * @see PackIndexCache
+	 */
+	public PkgPack( File datFile, String mode, PackIndexCache indexCache ) throws IOException {
+		this( datFile, mode, 2048, indexCache );
+	}
+
+	private PkgPack( File datFile, String mode, int entryCount, PackIndexCache indexCache ) throws IOException {
 		bigByteBuf = ByteBuffer.allocate( TYPICAL_PATH_LENGTH * 3000 );  // Arbitrary default.
 
-		// A reusable buffer large enough for the unsigned read methods.
-		smallByteBuf = ByteBuffer.allocate( 4 );  // Defaults to BIG_ENDIAN.
+		// A reusable buffer large enough for one encoded entry.
+		smallByteBuf = ByteBuffer.allocate( ENTRY_SIZE );  // Defaults to BIG_ENDIAN.
 
 		if ( mode.equals( "r" ) ) {
 			if ( !datFile.exists() )
@@ -113,19 +174,20 @@ public class PkgPack extends AbstractPack {
 
 			this.datFile = datFile;
 			raf = new RandomAccessFile( datFile, "r" );
-			readIndex();
+			readOnly = true;
+			openIndex( indexCache );
 		}
 		else if ( mode.equals( "r+" ) ) {
 			if ( !datFile.exists() )
 				throw new FileNotFoundException( String.format( "The datFile was not found: %s", datFile.getPath() ) );
 
 			this.datFile = datFile;
-			raf = new RandomAccessFile( datFile, "rw" );
-			readIndex();
+			raf = new JournaledFile( datFile, "rw" );
+			openIndex( indexCache );
 		}
 		else if ( mode.equals( "w+" ) ) {
 			this.datFile = datFile;
-			raf = new RandomAccessFile( datFile, "rw" );
+			raf = new JournaledFile( datFile, "rw" );
 			createIndex( entryCount );
 		}
 		else {
@@ -140,6 +202,179 @@ public class PkgPack extends AbstractPack {
 		compressNewAdditions = b;
 	}
 
+	/**
+	 * Toggles whether innerFiles should be read from a memory-mapped copy of
+	 * the dat.
+	 *
+	 * When enabled, getInputStream() and extractTo() will serve slices of
+	 * the mapping, rather than seeking and reading through the file.
+	 *
+	 * This is only allowed in read-only mode. The mapping is released by
+	 * close() (or when disabled), as soon as no stream is still reading it.
+	 * If PackUtilities.isUnmapSupported() is false, it lingers until garbage
+	 * collected instead, keeping the file locked on Windows.
+	 */
+	public void setMemoryMapped( boolean b ) throws IOException {
+		if ( b && !readOnly ) {
+			throw new IllegalStateException( "Memory-mapping is only supported in read-only mode" );
+		}
+
+		if ( b && mapping == null ) {
+			mapping = new SharedMapping( PackUtilities.mapReadOnly( raf.getChannel() ) );
+		}
+		else if ( !b && mapping != null ) {
+			mapping.close();
+			mapping = null;
+		}
+	}
+
+	public boolean isMemoryMapped() {
+		return ( mapping != null );
+	}
+
+	/**
+	 * Sets a journal to note every byte range this dat writes, or null.
+	 *
+	 * This is not allowed in read-only mode.
+	 *
+	 * @see DirtyRangeJournal
+	 */
+	public void setWriteJournal( DirtyRangeJournal journal ) {
+		if ( readOnly ) throw new IllegalStateException( "Write journals are not supported in read-only mode" );
+
+		((JournaledFile)raf).setJournal( journal );
+	}
+
+	/**
+	 * Notes bytes written through the channel, which the journal can't see.
+	 */
+	private void noteChannelWrite( long offset, long length ) {
+		DirtyRangeJournal journal = ((JournaledFile)raf).getJournal();
+		if ( journal != null ) journal.noteWrite( offset, length );
+	}
+
+	/**
+	 * Sets how fragmented the dat must be for repack() to bother moving data.
+	 *
+	 * This is the fraction of the file (0.0 to 1.0) that would be reclaimed.
+	 * When a repack does happen, gaps up to this much may be left behind,
+	 * if filling them would mean sliding lots of data.
+	 * Below it, if the index is already tidy, repack() leaves the dat alone.
+	 * The default, 0, always repacks.
+	 */
+	public void setRepackThreshold( double threshold ) {
+		repackThreshold = threshold;
+	}
+
+	public double getRepackThreshold() {
+		return repackThreshold;
+	}
+
+	/**
+	 * Begins a batch of add() and remove() calls, deferring index changes.
+	 *
+	 * Normally each add() writes its data, innerPath and entry immediately,
+	 * growing the index as needed, which shuffles early data to EOF again
+	 * and again. During a session, data is simply appended to the end of
+	 * the file, while new entries and innerPaths are kept in memory. Reading
+	 * works as usual.
+	 *
+	 * The index on disk is left untouched until commitWriteSession() writes
+	 * it all at once, sized for the final entries. If the session is rolled
+	 * back (or the dat is closed first), the index on disk remains as it was.
+	 *
+	 * @see #commitWriteSession()
+	 * @see #rollbackWriteSession()
+	 */
+	public void beginWriteSession() throws IOException {
+		if ( readOnly ) throw new IllegalStateException( "Write sessions are not supported in read-only mode" );
+		if ( writeSession ) throw new IllegalStateException( "A write session is already active" );
+
+		writeSession = true;
+		writeSessionStartLength = raf.length();
+	}
+
+	/**
+	 * Writes the index and paths region for all changes since
+	 * beginWriteSession().
+	 *
+	 * Null entries will be omitted, and entries will be sorted by
+	 * innerPathHash (then innerPath, ignoring case), as in repack(). Only
+	 * data in the way of the resized index will be moved, once.
+	 *
+	 * Gaps may remain between data. Call repack() afterward to remove them.
+	 */
+	public void commitWriteSession() throws IOException {
+		if ( !writeSession ) throw new IllegalStateException( "No write session is active" );
+
+		List<PkgEntry> tmpEntries = new ArrayList<PkgEntry>( pathToIndexMap.size() );
+		for ( PkgEntry entry : entryList ) {
+			if ( entry != null ) tmpEntries.add( entry );
+		}
+
+		int neededPathsRegionSize = 0;
+		for ( PkgEntry entry : tmpEntries ) {
+			neededPathsRegionSize += entry.innerPath.length() + 1;
+		}
+
+		long neededPathsRegionOffset = HEADER_SIZE + tmpEntries.size() * ENTRY_SIZE;
+		long neededMinDataOffset = neededPathsRegionOffset + neededPathsRegionSize;
+
+		// Even if all entries are 0-sized, ensure that they move.
+		if ( neededMinDataOffset > raf.length() ) raf.setLength( neededMinDataOffset );
+
+		// Move data out of the way, to EOF, in the order it appears.
+		List<PkgEntry> movedEntries = new ArrayList<PkgEntry>();
+		for ( PkgEntry entry : dataOrderMap.keySet() ) {
+			if ( entry.dataOffset >= neededMinDataOffset ) break;
+			movedEntries.add( entry );
+		}
+		for ( PkgEntry entry : movedEntries ) {
+			copyEntryDataToEOF( entry );
+		}
+
+		// Lay out innerPath strings in the paths region.
+		int pendingInnerPathOffset = 0;
+		for ( PkgEntry entry : tmpEntries ) {
+			entry.innerPathOffset = pendingInnerPathOffset;
+			pendingInnerPathOffset += entry.innerPath.length() + 1;  // Null termination.
+		}
+		pathsRegionSize = neededPathsRegionSize;
+		nextInnerPathOffset = neededPathsRegionSize;
+
+		Collections.sort( tmpEntries, new PkgEntryHashComparator() );
+		entryList = tmpEntries;
+		vacantSlots.clear();
+
+		pathToIndexMap.clear();
+		for ( PkgEntry entry : entryList ) {
+			pathToIndexMap.put( entry.innerPath, pathToIndexMap.size() );
+		}
+		rebuildDataOrderMap();
+
+		writeIndex();
+
+		writeSession = false;
+	}
+
+	/**
+	 * Discards all changes since beginWriteSession().
+	 *
+	 * Appended data will be truncated, and the in-memory index will be
+	 * re-read from the file.
+	 */
+	public void rollbackWriteSession() throws IOException {
+		if ( !writeSession ) throw new IllegalStateException( "No write session is active" );
+
+		writeSession = false;
+		raf.setLength( writeSessionStartLength );
+		readIndex();
+	}
+
+	public boolean isWriteSessionActive() {
+		return writeSession;
+	}
+
 	/**
 	 * Calculates a PKG hash of a path.
 	 *
@@ -197,24 +432,6 @@ public class PkgPack extends AbstractPack {
 	}
 
 
-	/**
-	 * Reads a big-endian unsigned int.
-	 *
-	 * Java doesn't have an unsigned int primitive,
-	 * so a long holds the value instead.
-	 */
-	private long readBigUInt() throws IOException {
-		smallByteBuf.clear();
-		raf.readFully( smallByteBuf.array(), 0, 4 );
-
-		// Read a signed int, then discard sign
-		// by casting to long and hacking off bits.
-		long result = smallByteBuf.getInt( 0 );
-		result &= 0x00000000FFFFFFFFL;
-
-		return result;
-	}
-
 	private void writeBigUInt( long n ) throws IOException {
 		smallByteBuf.clear();
 
@@ -225,34 +442,6 @@ public class PkgPack extends AbstractPack {
 		raf.write( smallByteBuf.array(), 0, 4 );
 	}
 
-	/**
-	 * Reads a big-endian unsigned short.
-	 *
-	 * Java doesn't have an unsigned short primitive,
-	 * so an int holds the value instead.
-	 */
-	private int readBigUShort() throws IOException {
-		smallByteBuf.clear();
-		raf.readFully( smallByteBuf.array(), 0, 2 );
-
-		// Read a signed short, then discard sign
-		// by casting to int and hacking off bits.
-		int result = smallByteBuf.getShort( 0 );
-		result &= 0x0000FFFF;
-
-		return result;
-	}
-
-	private void writeBigUShort( int n ) throws IOException {
-		smallByteBuf.clear();
-
-		// Write a signed short, after discarding sign
-		// by casting from int and hacking off bits.
-		smallByteBuf.putShort( 0, (short)(n & 0x0000FFFF) );
-
-		raf.write( smallByteBuf.array(), 0, 2 );
-	}
-
 	/**
 	 * Returns a null terminated string of ASCII bytes.
 	 *
@@ -296,13 +485,27 @@ public class PkgPack extends AbstractPack {
 		return dstBuf.position() - start;
 	}
 
+	/**
+	 * Writes a single entry at the current file pointer.
+	 */
 	private void writePkgEntry( PkgEntry entry ) throws IOException {
+		smallByteBuf.clear();
+		encodePkgEntry( smallByteBuf, entry );
+		raf.write( smallByteBuf.array(), 0, ENTRY_SIZE );
+	}
+
+	/**
+	 * Puts an entry's ENTRY_SIZE bytes into a buffer, at its position.
+	 *
+	 * A null entry is encoded as zeroes.
+	 */
+	private void encodePkgEntry( ByteBuffer dstBuf, PkgEntry entry ) {
 		if ( entry == null ) {
-			writeBigUInt( 0 );  // Hash.
-			writeBigUInt( 0 );  // pathOffsetAndFlags.
-			writeBigUInt( 0 );  // dataOffset.
-			writeBigUInt( 0 );  // dataSize.
-			writeBigUInt( 0 );  // unpackedSize.
+			dstBuf.putInt( 0 );  // Hash.
+			dstBuf.putInt( 0 );  // pathOffsetAndFlags.
+			dstBuf.putInt( 0 );  // dataOffset.
+			dstBuf.putInt( 0 );  // dataSize.
+			dstBuf.putInt( 0 );  // unpackedSize.
 		}
 		else {
 			long pathOffsetAndFlags = entry.innerPathOffset;
@@ -310,12 +513,92 @@ public class PkgPack extends AbstractPack {
 				pathOffsetAndFlags |= PKGF_DEFLATED;
 			}
 
-			writeBigUInt( entry.innerPathHash );  // Hash.
-			writeBigUInt( pathOffsetAndFlags );   // pathOffsetAndFlags.
-			writeBigUInt( entry.dataOffset );	  // dataOffset.
-			writeBigUInt( entry.dataSize );       // dataSize.
-			writeBigUInt( entry.unpackedSize );   // unpackedSize.
+			// Write signed ints, after discarding sign
+			// by casting from long and hacking off bits.
+			dstBuf.putInt( (int)(entry.innerPathHash & 0x00000000FFFFFFFFL) );  // Hash.
+			dstBuf.putInt( (int)(pathOffsetAndFlags & 0x00000000FFFFFFFFL) );   // pathOffsetAndFlags.
+			dstBuf.putInt( (int)(entry.dataOffset & 0x00000000FFFFFFFFL) );     // dataOffset.
+			dstBuf.putInt( (int)(entry.dataSize & 0x00000000FFFFFFFFL) );       // dataSize.
+			dstBuf.putInt( (int)(entry.unpackedSize & 0x00000000FFFFFFFFL) );   // unpackedSize.
+		}
+	}
+
+	/**
+	 * Gets an entry's ENTRY_SIZE bytes from a buffer, at its position.
+	 *
+	 * The innerPath is left unset. A zero dataOffset means the slot is null,
+	 * which is for the caller to decide.
+	 */
+	private PkgEntry decodePkgEntry( ByteBuffer srcBuf ) {
+		// Read signed ints, then discard sign
+		// by casting to long and hacking off bits.
+		PkgEntry entry = new PkgEntry();
+		entry.innerPathHash = srcBuf.getInt() & 0x00000000FFFFFFFFL;
+
+		// Top 8 bits of the path offset field were set aside to store flags.
+		// 0x00FFFFFF == 0000 0000:1111 1111 1111 1111 1111 1111 (8:24 bits).
+		// 1 << 24    == 0000 0001:0000 0000 0000 0000 0000 0000
+		long pathOffsetAndFlags = srcBuf.getInt() & 0x00000000FFFFFFFFL;
+		entry.innerPathOffset = (int)(pathOffsetAndFlags & 0x00FFFFFFL);
+		entry.dataDeflated = ((pathOffsetAndFlags & PKGF_DEFLATED) != 0);
+
+		entry.dataOffset = srcBuf.getInt() & 0x00000000FFFFFFFFL;
+		entry.dataSize = srcBuf.getInt() & 0x00000000FFFFFFFFL;
+		entry.unpackedSize = srcBuf.getInt() & 0x00000000FFFFFFFFL;
+
+		return entry;
+	}
+
+	/**
+	 * Writes the header, every entry, and the paths region, all at once.
+	 *
+	 * These are contiguous at the top of the file, so they're encoded into
+	 * one buffer and written with a single call.
+	 *
+	 * Each non-null entry must already have an innerPathOffset within
+	 * pathsRegionSize. Any data there will be overwritten.
+	 */
+	private void writeIndex() throws IOException {
+		int pathsRegionOffset = HEADER_SIZE + entryList.size() * ENTRY_SIZE;
+		int indexSize = pathsRegionOffset + pathsRegionSize;
+
+		recycleBigByteBuffer( indexSize );
+		bigByteBuf.limit( indexSize );
+
+		for ( int x : signature ) {
+			bigByteBuf.put( (byte)x );
+		}
+		bigByteBuf.putShort( (short)HEADER_SIZE );
+		bigByteBuf.putShort( (short)ENTRY_SIZE );
+		bigByteBuf.putInt( entryList.size() );  // entryCount.
+		bigByteBuf.putInt( pathsRegionSize );
+
+		for ( PkgEntry entry : entryList ) {
+			encodePkgEntry( bigByteBuf, entry );
+		}
+
+		Arrays.fill( bigByteBuf.array(), pathsRegionOffset, indexSize, (byte)0 );
+		for ( PkgEntry entry : entryList ) {
+			if ( entry == null ) continue;
+
+			bigByteBuf.position( pathsRegionOffset + entry.innerPathOffset );
+			writeNullTerminatedString( bigByteBuf, entry.innerPath );
+		}
+
+		raf.seek( 0 );
+		raf.write( bigByteBuf.array(), 0, indexSize );
+	}
+
+	/**
+	 * Returns a region of the memory-mapped dat as an independent buffer.
+	 *
+	 * The caller must hold a lease on the mapping while using it.
+	 */
+	private ByteBuffer getMappedRegion( SharedMapping m, PkgEntry entry ) throws IOException {
+		if ( entry.dataOffset + entry.dataSize > m.capacity() ) {
+			throw new IOException( "EOF prematurely reached reading innerPath: "+ entry.innerPath );
 		}
+		return m.getRegion( entry.dataOffset, entry.dataSize );
 	}
 
 	/**
@@ -325,22 +608,28 @@ public class PkgPack extends AbstractPack {
 	 * the file.
 	 */
 	private PkgEntry getEntryWithEarliestData() {
-		PkgEntry result = null;
-		for ( PkgEntry entry : entryList ) {
-			if ( entry != null && (result == null || entry.dataOffset < result.dataOffset) ) {
-				result = entry;
-			}
+		return ( dataOrderMap.isEmpty() ? null : dataOrderMap.firstKey() );
+	}
+
+	/**
+	 * Repopulates dataOrderMap from entryList.
+	 */
+	private void rebuildDataOrderMap() {
+		dataOrderMap = new TreeMap<PkgEntry, Integer>( new PkgEntryDataOffsetComparator() );
+		for ( int i=0; i < entryList.size(); i++ ) {
+			PkgEntry entry = entryList.get( i );
+			if ( entry != null ) dataOrderMap.put( entry, i );
 		}
-		return result;
 	}
 
 	/**
-	 * Returns the offset, within the paths region, where the next innerPath
-	 * would be written.
+	 * Returns the offset, within the paths region, after the last innerPath's
+	 * null-terminated string.
 	 *
-	 * This will be after the last innerPath's null-terminated string.
+	 * This scans all entries, so it's only for (re-)initializing
+	 * nextInnerPathOffset. Thereafter, add() advances that as it goes.
 	 */
-	private int getNextInnerPathOffset() {
+	private int findNextInnerPathOffset() {
 		int result = 0;
 		PkgEntry foundEntry = null;
 		for ( PkgEntry entry : entryList ) {
@@ -357,90 +646,332 @@ public class PkgPack extends AbstractPack {
 
 	private void createIndex( int entryCount ) throws IOException {
 		pathsRegionSize = 0;
+		nextInnerPathOffset = 0;
 
 		entryList = new ArrayList<PkgEntry>( entryCount );
+		vacantSlots = new BitSet( entryCount );
+		dataOrderMap = new TreeMap<PkgEntry, Integer>( new PkgEntryDataOffsetComparator() );
 
 		pathToIndexMap = new HashMap<String, Integer>( entryCount );
 
-		raf.seek( 0 );
 		raf.setLength( 0 );
-		for ( int x : signature ) {
-			raf.writeByte( x );
-		}
-		writeBigUShort( HEADER_SIZE );
-		writeBigUShort( ENTRY_SIZE );
-		writeBigUInt( 0 );  // entryCount.
-		writeBigUInt( pathsRegionSize );
+		writeIndex();  // Just the header, so far.
 
 		growIndex( entryCount );
 	}
 
-	private void readIndex()  throws IOException {
+	/**
+	 * Reads the header, every entry, and the paths region.
+	 *
+	 * That's two reads: the fixed-size header, then the entries and paths
+	 * region together, since they're contiguous. Decoding happens in memory.
+	 */
+	private void readIndex() throws IOException {
+		recycleBigByteBuffer( HEADER_SIZE );
+		bigByteBuf.limit( HEADER_SIZE );
 		raf.seek( 0 );
+		raf.readFully( bigByteBuf.array(), 0, HEADER_SIZE );
 
 		// Check the file signature.
 		for ( int x : signature ) {
-			if ( raf.readUnsignedByte() != x ) {
+			if ( (bigByteBuf.get() & 0xFF) != x ) {
 				throw new IOException( "Unexpected file signature" );
 			}
 		}
 
 		// Other header values.
-		int headerSize = readBigUShort();
+		int headerSize = bigByteBuf.getShort() & 0x0000FFFF;
 		if ( headerSize != HEADER_SIZE ) {
 			throw new IOException( String.format( "Corrupt dat file (%s): header claims header size is %d bytes (expected %d)", getName(), headerSize, HEADER_SIZE ) );
 		}
-		int entrySize = readBigUShort();
+		int entrySize = bigByteBuf.getShort() & 0x0000FFFF;
 		if ( entrySize != ENTRY_SIZE ) {
 			throw new IOException( String.format( "Corrupt dat file (%s): header claims entries are %d bytes (expected %d)", getName(), entrySize, ENTRY_SIZE ) );
 		}
-		int entryCount = (int)readBigUInt();   // Risky casting to signed.
-		if ( entryCount * entrySize > raf.length() ) {
+		long entryCountLong = bigByteBuf.getInt() & 0x00000000FFFFFFFFL;
+		if ( entryCountLong * entrySize > raf.length() ) {
 			throw new IOException( String.format( "Corrupt dat file (%s): header claims entries combined are larger than the entire file", getName() ) );
 		}
-		pathsRegionSize = (int)readBigUInt();  // Risky casting to signed.
-		if ( pathsRegionSize > raf.length() ) {
+		long pathsRegionSizeLong = bigByteBuf.getInt() & 0x00000000FFFFFFFFL;
+		if ( pathsRegionSizeLong > raf.length() ) {
 			throw new IOException( String.format( "Corrupt dat file (%s): header claims path strings are larger than the entire file", getName() ) );
 		}
+		int entryCount = (int)entryCountLong;
+		pathsRegionSize = (int)pathsRegionSizeLong;
+
+		// The entries and paths region follow the header.
+		int pathsRegionOffset = entryCount * ENTRY_SIZE;  // Relative to the buffer.
+		int tableSize = pathsRegionOffset + pathsRegionSize;
+		if ( HEADER_SIZE + (long)tableSize > raf.length() ) {
+			throw new IOException( String.format( "Corrupt dat file (%s): header claims entries and path strings extend beyond the end of the file", getName() ) );
+		}
+		recycleBigByteBuffer( tableSize );
+		bigByteBuf.limit( tableSize );
+		raf.readFully( bigByteBuf.array(), 0, tableSize );
 
+		adoptIndexTable( bigByteBuf, entryCount, null );
+	}
+
+	/**
+	 * Decodes entries and sets up innerPath lookups, from the bytes that
+	 * follow the header: every entry, then the paths region.
+	 *
+	 * @param tableBuf a buffer positioned at the first entry, limited to the end of the paths region
+	 * @param knownHashOrder slots of live entries sorted by hash, or null to work that out
+	 */
+	private void adoptIndexTable( ByteBuffer tableBuf, int entryCount, int[] knownHashOrder ) throws IOException {
 		entryList = new ArrayList<PkgEntry>( entryCount );
+		vacantSlots = new BitSet( entryCount );
 		for ( int i=0; i < entryCount; i++ ) {
-			PkgEntry entry = new PkgEntry();
-			entry.innerPathHash = readBigUInt();
-
-			// Top 8 bits of the path offset field were set aside to store flags.
-			// 0x00FFFFFF == 0000 0000:1111 1111 1111 1111 1111 1111 (8:24 bits).
-			// 1 << 24    == 0000 0001:0000 0000 0000 0000 0000 0000
-			long pathOffsetAndFlags = readBigUInt();
-			entry.innerPathOffset = (int)(pathOffsetAndFlags & 0x00FFFFFFL);
-			entry.dataDeflated = ((pathOffsetAndFlags & PKGF_DEFLATED) != 0);
-
-			entry.dataOffset = readBigUInt();
-			entry.dataSize = readBigUInt();
-			entry.unpackedSize = readBigUInt();
+			PkgEntry entry = decodePkgEntry( tableBuf );
 
 			if ( entry.dataOffset == 0 ) {  // Null entry, dat wasn't repacked.
 				entryList.add( null );
+				vacantSlots.set( i );
 			} else {
 				entryList.add( entry );
 			}
 		}
 
-		pathToIndexMap = new HashMap<String, Integer>( entryCount );
+		ByteBuffer pathsBuf = tableBuf.slice();
 
-		recycleBigByteBuffer( pathsRegionSize );
-		bigByteBuf.limit( pathsRegionSize );
-		raf.readFully( bigByteBuf.array(), 0, pathsRegionSize );
+		// In read-only mode, lookups can binary-search entries by hash.
+		// Anything unusual gets decoded eagerly, to fail (or not) as usual.
+		if ( readOnly && (knownHashOrder != null || isLazyDecodable( pathsBuf )) ) {
+			byte[] pathsBytes = new byte[pathsRegionSize];  // The source buffer may be reused.
+			pathsBuf.get( pathsBytes );
 
-		for ( int i=0; i < entryCount; i++ ) {
+			pathToIndexMap = null;
+			dataOrderMap = null;
+			nextInnerPathOffset = 0;
+			hashOrder = ( knownHashOrder != null ? knownHashOrder : buildHashOrder() );
+			lazyPathsBuf = ByteBuffer.wrap( pathsBytes );
+		}
+		else {
+			hashOrder = null;
+			lazyPathsBuf = null;
+			decodeIndexPaths( pathsBuf );
+		}
+	}
+
+	/**
+	 * Loads the index from a sidecar cache if possible, or reads it.
+	 */
+	private void openIndex( PackIndexCache indexCache ) throws IOException {
+		if ( indexCache != null ) {
+			ByteBuffer payload = indexCache.load( PackIndexCache.KIND_PKG, datFile, raf );
+			if ( payload != null && loadCachedIndex( payload ) ) return;
+		}
+
+		readIndex();
+
+		if ( indexCache != null ) {
+			indexCache.save( PackIndexCache.KIND_PKG, datFile, raf, encodeCachedIndex() );
+		}
+	}
+
+	/**
+	 * Returns the index in the form a PackIndexCache holds.
+	 *
+	 * That's the entry and paths region as they'd be written to the dat,
+	 * followed by hashOrder.
+	 */
+	private ByteBuffer encodeCachedIndex() throws IOException {
+		int[] order = ( lazyPathsBuf != null ? hashOrder : buildHashOrder() );
+		int tableSize = entryList.size() * ENTRY_SIZE + pathsRegionSize;
+
+		ByteBuffer buf = ByteBuffer.allocate( 4 + 4 + tableSize + 4 + order.length * 4 );
+		buf.putInt( entryList.size() );
+		buf.putInt( pathsRegionSize );
+
+		for ( PkgEntry entry : entryList ) {
+			encodePkgEntry( buf, entry );
+		}
+
+		int pathsRegionOffset = buf.position();
+		ByteBuffer pathsBuf = lazyPathsBuf;
+		if ( pathsBuf != null ) {
+			buf.put( pathsBuf.duplicate() );
+		}
+		else {
+			for ( PkgEntry entry : entryList ) {
+				if ( entry == null ) continue;
+
+				buf.position( pathsRegionOffset + entry.innerPathOffset );
+				writeNullTerminatedString( buf, entry.innerPath );
+			}
+			buf.position( pathsRegionOffset + pathsRegionSize );
+		}
+
+		buf.putInt( order.length );
+		for ( int slot : order ) {
+			buf.putInt( slot );
+		}
+
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Adopts an index previously encoded by encodeCachedIndex().
+	 *
+	 * @return true if successful, false if the payload didn't make sense
+	 */
+	private boolean loadCachedIndex( ByteBuffer payload ) throws IOException {
+		if ( payload.remaining() < 8 ) return false;
+		int entryCount = payload.getInt();
+		int cachedPathsRegionSize = payload.getInt();
+
+		long tableSize = (long)entryCount * ENTRY_SIZE + cachedPathsRegionSize;
+		if ( entryCount < 0 || cachedPathsRegionSize < 0 || tableSize + 4 > payload.remaining() ) return false;
+
+		ByteBuffer tableBuf = payload.duplicate();
+		tableBuf.limit( tableBuf.position() + (int)tableSize );
+		payload.position( tableBuf.limit() );
+
+		int[] order = new int[payload.getInt()];
+		if ( order.length * 4L != payload.remaining() ) return false;
+		for ( int i=0; i < order.length; i++ ) {
+			order[i] = payload.getInt();
+			if ( order[i] < 0 || order[i] >= entryCount ) return false;
+		}
+
+		pathsRegionSize = cachedPathsRegionSize;
+		adoptIndexTable( tableBuf, entryCount, order );
+		return true;
+	}
+
+	/**
+	 * Returns the slots of live entries, sorted by innerPathHash.
+	 */
+	private int[] buildHashOrder() {
+		// Pack each 32bit hash and 31bit slot into one long, to sort primitives.
+		long[] keys = new long[entryList.size() - vacantSlots.cardinality()];
+		int n = 0;
+		for ( int i=0; i < entryList.size(); i++ ) {
+			PkgEntry entry = entryList.get( i );
+			if ( entry != null ) keys[n++] = (entry.innerPathHash << 31) | i;
+		}
+		Arrays.sort( keys );
+
+		int[] result = new int[n];
+		for ( int i=0; i < n; i++ ) {
+			result[i] = (int)(keys[i] & 0x7FFFFFFFL);
+		}
+		return result;
+	}
+
+	/**
+	 * Reads every innerPath, and builds the maps that depend on them.
+	 */
+	private void decodeIndexPaths( ByteBuffer pathsBuf ) throws IOException {
+		Map<String, Integer> newPathMap = new HashMap<String, Integer>( entryList.size() );
+
+		for ( int i=0; i < entryList.size(); i++ ) {
 			PkgEntry entry = entryList.get( i );
 			if ( entry == null ) continue;
 
-			bigByteBuf.position( entry.innerPathOffset );
-			entry.innerPath = readNullTerminatedString( bigByteBuf );
+			pathsBuf.position( entry.innerPathOffset );
+			entry.innerPath = readNullTerminatedString( pathsBuf );
+
+			newPathMap.put( entry.innerPath, i );
+		}
+
+		pathToIndexMap = newPathMap;
+		rebuildDataOrderMap();
+		nextInnerPathOffset = findNextInnerPathOffset();
+	}
+
+	/**
+	 * Decodes all innerPaths, if they were left for lookups to examine.
+	 *
+	 * Anything needing every innerPath, or changing the index, calls this
+	 * first.
+	 */
+	private synchronized void ensureIndexDecoded() {
+		if ( lazyPathsBuf == null ) return;
+
+		try {
+			decodeIndexPaths( lazyPathsBuf.duplicate() );
+		}
+		catch ( IOException e ) {
+			// Should never happen: readIndex() vetted the paths region.
+			throw new IllegalStateException( "Could not decode innerPaths: "+ getName(), e );
+		}
+		lazyPathsBuf = null;
+	}
+
+	/**
+	 * Returns true if every innerPathOffset lands within the paths region,
+	 * and the region is entirely ASCII, so decoding later can't fail.
+	 */
+	private boolean isLazyDecodable( ByteBuffer pathsBuf ) {
+		for ( PkgEntry entry : entryList ) {
+			if ( entry != null && entry.innerPathOffset > pathsBuf.limit() ) return false;
+		}
+		for ( int i=pathsBuf.position(); i < pathsBuf.limit(); i++ ) {
+			if ( (pathsBuf.get( i ) & 0x80) != 0 ) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the index of the entry with innerPath, or -1.
+	 *
+	 * When innerPaths are decoded on demand, this binary-searches live
+	 * entries by hash. Only entries sharing that hash have their innerPath bytes
+	 * compared, in place. The matching entry's innerPath is then filled in.
+	 *
+	 * Lookups can run concurrently in read-only mode.
+	 */
+	private int findEntryIndex( String innerPath ) {
+		ByteBuffer pathsBuf = lazyPathsBuf;
+		if ( pathsBuf == null ) {
+			Integer entryIndex = pathToIndexMap.get( innerPath );
+			return ( entryIndex != null ? entryIndex.intValue() : -1 );
+		}
+
+		long hash = calculatePathHash( innerPath );
 
-			pathToIndexMap.put( entry.innerPath, i );
+		// Find the first entry with that hash.
+		int[] order = hashOrder;
+		int lo = 0;
+		int hi = order.length;
+		while ( lo < hi ) {
+			int mid = (lo + hi) >>> 1;
+			if ( entryList.get( order[mid] ).innerPathHash < hash ) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+
+		for ( int i=lo; i < order.length; i++ ) {
+			PkgEntry entry = entryList.get( order[i] );
+			if ( entry.innerPathHash != hash ) break;
+
+			if ( innerPathEquals( pathsBuf, entry.innerPathOffset, innerPath ) ) {
+				entry.innerPath = innerPath;
+				return order[i];
+			}
 		}
+		return -1;
+	}
+
+	/**
+	 * Returns true if the null-terminated string at an offset in the paths
+	 * region matches s exactly.
+	 *
+	 * Only absolute gets are used, so the buffer can be shared.
+	 */
+	private boolean innerPathEquals( ByteBuffer pathsBuf, int offset, String s ) {
+		int len = s.length();
+		if ( offset + len > pathsBuf.limit() ) return false;
+
+		for ( int i=0; i < len; i++ ) {
+			if ( (char)pathsBuf.get( offset + i ) != s.charAt( i ) ) return false;
+		}
+		return ( offset + len == pathsBuf.limit() || pathsBuf.get( offset + len ) == 0 );
 	}
 
 	/**
@@ -453,6 +984,20 @@ public class PkgPack extends AbstractPack {
 	 * gap between the paths region and the new earliest data.
 	 */
 	private void moveEntryDataToEOF( PkgEntry entry ) throws IOException {
+		int entryIndex = dataOrderMap.get( entry ).intValue();
+		copyEntryDataToEOF( entry );
+
+		// Update the index.
+		raf.seek( HEADER_SIZE + entryIndex * ENTRY_SIZE + 4 + 4 );  // Skip hash and pathOffsetAndFlags.
+		writeBigUInt( entry.dataOffset );
+	}
+
+	/**
+	 * Copies an entry's data to the end of the file, and updates its
+	 * dataOffset in memory only.
+	 */
+	private void copyEntryDataToEOF( PkgEntry entry ) throws IOException {
+		Integer entryIndex = dataOrderMap.remove( entry );
 		long oldOffset = entry.dataOffset;
 		long newOffset = raf.length();
 
@@ -471,10 +1016,8 @@ public class PkgPack extends AbstractPack {
 			raf.write( buf, 0, len );
 			bytesRemaining -= len;
 		}
-		// Update the entry.
 		entry.dataOffset = newOffset;
-		raf.seek( HEADER_SIZE + entryList.indexOf( entry ) * ENTRY_SIZE + 4 + 4 );  // Skip hash and pathOffsetAndFlags.
-		writeBigUInt( entry.dataOffset );
+		dataOrderMap.put( entry, entryIndex );
 	}
 
 	/**
@@ -485,7 +1028,7 @@ public class PkgPack extends AbstractPack {
 	 * be filled with additional indeces.
 	 */
 	private void growIndex( int amount ) throws IOException {
-		long neededEntriesGrowth = amount * ENTRY_SIZE;
+		int neededEntriesGrowth = amount * ENTRY_SIZE;
 		int neededPathsRegionGrowth = amount * TYPICAL_PATH_LENGTH;
 
 		// Where to start writing grown entries - after existing ones.
@@ -516,27 +1059,28 @@ public class PkgPack extends AbstractPack {
 		// Partially fill with current bytes
 		// Fill the needed remainder with 0's.
 		// Write it all back, a little farther down in the file.
+		// Null grown entries are all 0's, so they precede the paths region
+		// in the same buffer, and get written in the same call.
 
-		recycleBigByteBuffer( neededPathsRegionSize );
-		bigByteBuf.limit( neededPathsRegionSize );
+		int growthSize = neededEntriesGrowth + neededPathsRegionSize;
+		recycleBigByteBuffer( growthSize );
+		bigByteBuf.limit( growthSize );
 
-		raf.readFully( bigByteBuf.array(), 0, pathsRegionSize );
-		Arrays.fill( bigByteBuf.array(), pathsRegionSize+1, neededPathsRegionSize, (byte)0 );
-		bigByteBuf.rewind();  // The backing array was modified directly, so this is a NOP.
+		raf.seek( firstGrowthEntryOffset );  // The current paths region follows the current entries.
+		raf.readFully( bigByteBuf.array(), neededEntriesGrowth, pathsRegionSize );
+		Arrays.fill( bigByteBuf.array(), 0, neededEntriesGrowth, (byte)0 );
+		Arrays.fill( bigByteBuf.array(), neededEntriesGrowth + pathsRegionSize, growthSize, (byte)0 );
 
-		raf.seek( neededPathsRegionOffset );  // Seeking past EOF is okay; write() will grow the file.
-		raf.write( bigByteBuf.array(), bigByteBuf.position(), bigByteBuf.limit() );
+		raf.seek( firstGrowthEntryOffset );  // Seeking past EOF is okay; write() will grow the file.
+		raf.write( bigByteBuf.array(), 0, growthSize );
 
 		pathsRegionSize = neededPathsRegionSize;
 
-		// Add/write the grown entries.
+		// Add the grown entries.
+		vacantSlots.set( entryList.size(), entryList.size() + amount );
 		for ( int i=0; i < amount; i++ ) {
 			entryList.add( null );
 		}
-		raf.seek( firstGrowthEntryOffset );
-		for ( int i=0; i < amount; i++ ) {
-			writePkgEntry( null );
-		}
 
 		// Update the header.
 		raf.seek( signature.length + 2 + 2 );  // Skip HEADER_SIZE and ENTRY_SIZE.
@@ -551,6 +1095,8 @@ public class PkgPack extends AbstractPack {
 
 	@Override
 	public List<String> list() {
+		ensureIndexDecoded();
+
 		List<String> result = new ArrayList<String>();
 		result.addAll( pathToIndexMap.keySet() );
 		return result;
@@ -558,6 +1104,8 @@ public class PkgPack extends AbstractPack {
 
 	@Override
 	public List<PathAndSize> listSizes() {
+		ensureIndexDecoded();
+
 		List<PathAndSize> result = new ArrayList<PathAndSize>();
 		for ( PkgEntry entry : entryList ) {
 			if ( entry == null ) continue;
@@ -572,6 +1120,8 @@ public class PkgPack extends AbstractPack {
 	 */
 	@Override
 	public void add( String innerPath, InputStream is ) throws IOException {
+		ensureIndexDecoded();
+
 		if ( innerPath.contains( "\\" ) ) {
 			throw new IllegalArgumentException( "InnerPath contains backslashes: "+ innerPath );
 		}
@@ -582,21 +1132,31 @@ public class PkgPack extends AbstractPack {
 			throw new IllegalArgumentException( "InnerPath contains non-ascii characters: "+ innerPath );
 		}
 
-		// Find a vacancy in the header, or create one.
-		int entryIndex = entryList.indexOf( null );
-		if ( entryIndex == -1 ) {
-			growIndex( 50 );  // Save effort for 49 future adds.
-			entryIndex = entryList.indexOf( null );
+		int entryIndex;
+		int innerPathOffset = 0;
+
+		if ( writeSession ) {
+			// The index will be rewritten on commit. Just append a slot.
+			entryIndex = entryList.size();
+			entryList.add( null );
 		}
+		else {
+			// Find a vacancy in the header, or create one.
+			entryIndex = vacantSlots.nextSetBit( 0 );
+			if ( entryIndex == -1 ) {
+				growIndex( 50 );  // Save effort for 49 future adds.
+				entryIndex = vacantSlots.nextSetBit( 0 );
+			}
 
-		// Make room for the innerPath null-terminated string.
-		int innerPathOffset = getNextInnerPathOffset();
-		while ( innerPathOffset + innerPath.length() + 1  > pathsRegionSize ) {
-			growIndex( 50 );
+			// Make room for the innerPath null-terminated string.
+			innerPathOffset = nextInnerPathOffset;
+			while ( innerPathOffset + innerPath.length() + 1  > pathsRegionSize ) {
+				growIndex( 50 );
+			}
 		}
 
 		PkgEntry entry = new PkgEntry();
-		entry.innerPathOffset = 0;  // Write this later.
+		entry.innerPathOffset = innerPathOffset;
 		entry.innerPath = innerPath;
 		entry.innerPathHash = calculatePathHash( innerPath );
 		entry.dataOffset = raf.length();
@@ -628,24 +1188,77 @@ public class PkgPack extends AbstractPack {
 		entry.dataSize = raf.getChannel().position() - entry.dataOffset;
 		entry.unpackedSize = srcMeterStream.getCount();
 
-		// Write the innerPath string.
+		entryList.set( entryIndex, entry );
+		pathToIndexMap.put( innerPath, entryIndex );
+		dataOrderMap.put( entry, entryIndex );
+
+		if ( writeSession ) return;  // Leave the rest for commitWriteSession().
+
+		vacantSlots.clear( entryIndex );
+		nextInnerPathOffset = innerPathOffset + innerPath.length() + 1;  // Null termination.
+
+		// Write the innerPath string, within the paths region after the entries.
 		recycleBigByteBuffer( innerPath.length() + 1 );
 		bigByteBuf.limit( innerPath.length() + 1 );
 		writeNullTerminatedString( bigByteBuf, innerPath );
 		bigByteBuf.rewind();
-		raf.seek( innerPathOffset );
+		raf.seek( HEADER_SIZE + entryList.size() * ENTRY_SIZE + innerPathOffset );
 		raf.write( bigByteBuf.array(), bigByteBuf.position(), bigByteBuf.limit() );
 
-		entryList.set( entryIndex, entry );
-		pathToIndexMap.put( innerPath, entryIndex );
-
 		// Write the entry itself.
 		raf.seek( HEADER_SIZE + entryIndex * ENTRY_SIZE );
 		writePkgEntry( entry );
 	}
 
+	/**
+	 * Writes the contents of the file with innerPath to an OutputStream.
+	 *
+	 * Uncompressed data bound for a FileOutputStream will be copied
+	 * kernel-side with FileChannel.transferTo(). Only deflated data needs to
+	 * pass through the JVM.
+	 */
 	@Override
 	public void extractTo( String innerPath, OutputStream os ) throws FileNotFoundException, IOException {
+		if ( innerPath.contains( "\\" ) ) {
+			throw new IllegalArgumentException( "InnerPath contains backslashes: "+ innerPath );
+		}
+		int entryIndex = findEntryIndex( innerPath );
+		if ( entryIndex == -1 ) {
+			throw new FileNotFoundException( "InnerPath does not exist: "+ innerPath );
+		}
+
+		PkgEntry entry = entryList.get( entryIndex );
+
+		if ( !entry.dataDeflated ) {
+			SharedMapping m = mapping;
+
+			// Don't close the destination channel: that would close os.
+
+			if ( os instanceof FileOutputStream ) {
+				FileChannel dstChannel = ((FileOutputStream)os).getChannel();
+				long len = PackUtilities.transferRegion( raf.getChannel(), entry.dataOffset, entry.dataSize, dstChannel );
+				if ( len != entry.dataSize ) {
+					throw new IOException( "EOF prematurely reached reading innerPath: "+ entry.innerPath );
+				}
+				return;
+			}
+			else if ( m != null ) {
+				// Hand the mapped bytes directly to the destination.
+				m.acquire();
+				try {
+					ByteBuffer regionBuf = getMappedRegion( m, entry );
+					WritableByteChannel dstChannel = Channels.newChannel( os );
+					while ( regionBuf.hasRemaining() ) {
+						dstChannel.write( regionBuf );
+					}
+				}
+				finally {
+					m.release();
+				}
+				return;
+			}
+		}
+
 		InputStream is = null;
 
 		try {
@@ -665,6 +1278,8 @@ public class PkgPack extends AbstractPack {
 
 	@Override
 	public void remove( String innerPath ) throws FileNotFoundException, IOException {
+		ensureIndexDecoded();
+
 		if ( innerPath.contains( "\\" ) ) {
 			throw new IllegalArgumentException( "InnerPath contains backslashes: "+ innerPath );
 		}
@@ -675,13 +1290,23 @@ public class PkgPack extends AbstractPack {
 		int entryIndex = pathToIndexMap.get( innerPath ).intValue();
 		pathToIndexMap.remove( innerPath );
 		PkgEntry removedEntry = entryList.set( entryIndex, null );
+		dataOrderMap.remove( removedEntry );
+
+		// The index on disk still refers to the data, until commit.
+		if ( writeSession ) return;
+
+		vacantSlots.set( entryIndex );
 
 		raf.seek( HEADER_SIZE + entryIndex * ENTRY_SIZE );
 		writePkgEntry( null );
 
 		// If data was at the end, truncate.
+		// But not if empty entries still claim offsets there.
+		PkgEntry lastDataEntry = ( dataOrderMap.isEmpty() ? null : dataOrderMap.lastKey() );
 		if ( removedEntry.dataOffset + removedEntry.dataSize == raf.length() ) {
-			raf.setLength( removedEntry.dataOffset );
+			if ( lastDataEntry == null || lastDataEntry.dataOffset + lastDataEntry.dataSize <= removedEntry.dataOffset ) {
+				raf.setLength( removedEntry.dataOffset );
+			}
 		}
 	}
 
@@ -690,7 +1315,7 @@ public class PkgPack extends AbstractPack {
 		if ( innerPath.contains( "\\" ) ) {
 			throw new IllegalArgumentException( "InnerPath contains backslashes: "+ innerPath );
 		}
-		return pathToIndexMap.containsKey( innerPath );
+		return ( findEntryIndex( innerPath ) != -1 );
 	}
 
 	@Override
@@ -698,16 +1323,65 @@ public class PkgPack extends AbstractPack {
 		if ( innerPath.contains( "\\" ) ) {
 			throw new IllegalArgumentException( "InnerPath contains backslashes: "+ innerPath );
 		}
-		if ( !pathToIndexMap.containsKey( innerPath ) ) {
+		int entryIndex = findEntryIndex( innerPath );
+		if ( entryIndex == -1 ) {
 			throw new FileNotFoundException( "InnerPath does not exist: "+ innerPath );
 		}
 
-		int entryIndex = pathToIndexMap.get( innerPath ).intValue();
-		PkgEntry entry = entryList.get( entryIndex );
+		return openEntryStream( entryList.get( entryIndex ) );
+	}
+
+	/**
+	 * Visits innerFiles in dataOffset order.
+	 *
+	 * Deflated innerFiles are inflated by their stream. Their stored buffer
+	 * is the raw deflated bytes, if this dat is memory-mapped.
+	 */
+	@Override
+	public void forEachEntry( EntryVisitor visitor ) throws IOException {
+		ensureIndexDecoded();
+
+		List<PkgEntry> orderedEntries = new ArrayList<PkgEntry>( dataOrderMap.keySet() );
 
-		// Create a stream that can only see this region.
-		// Multiple read-only streams can coexist (each has its own position).
-		InputStream stream = new FileChannelRegionInputStream( raf.getChannel(), entry.dataOffset, entry.dataSize );
+		PkgVisitedEntry visited = new PkgVisitedEntry();
+		try {
+			for ( PkgEntry entry : orderedEntries ) {
+				visited.entry = entry;
+				visited.path = entry.innerPath;
+				visited.size = entry.unpackedSize;
+				visited.storedSize = entry.dataSize;
+				visited.compressed = entry.dataDeflated;
+
+				boolean proceed = visitor.visit( visited );
+				visited.finish();
+				if ( !proceed ) break;
+			}
+		}
+		finally {
+			visited.finish();
+		}
+	}
+
+	private InputStream openEntryStream( PkgEntry entry ) throws IOException {
+		InputStream stream;
+		SharedMapping m = mapping;
+		if ( m != null ) {
+			// Slices of the mapping are independent and can be inflated in place.
+			// The stream holds a lease until it's closed.
+			m.acquire();
+			try {
+				stream = new ByteBufferBackedInputStream( raf.getChannel(), m, getMappedRegion( m, entry ) );
+			}
+			catch ( IOException e ) {
+				m.release();
+				throw e;
+			}
+		}
+		else {
+			// Create a stream that can only see this region.
+			// Multiple read-only streams can coexist (each has its own position).
+			stream = new FileChannelRegionInputStream( raf.getChannel(), entry.dataOffset, entry.dataSize );
+		}
 
 		if ( entry.dataDeflated ) {
 			stream = new InflaterInputStream( stream );
@@ -716,15 +1390,129 @@ public class PkgPack extends AbstractPack {
 		return stream;
 	}
 
+	/**
+	 * Closes this dat.
+	 *
+	 * If a write session is active, its changes are discarded, without
+	 * truncating appended data.
+	 */
 	@Override
 	public void close() throws IOException {
+		writeSession = false;
 		raf.close();
+
+		// Streams still open keep the mapping until they're closed.
+		if ( mapping != null ) mapping.close();
+		mapping = null;
 	}
 
 	public List<PkgEntry> listMetadata() {
+		ensureIndexDecoded();
 		return new ArrayList<PkgEntry>( entryList );
 	}
 
+	/**
+	 * Copies an innerFile's stored bytes, as-is, to a channel.
+	 *
+	 * Deflated data stays deflated. This is for carrying an entry over to
+	 * another PKG dat, along with its metadata.
+	 */
+	void transferRawTo( String innerPath, WritableByteChannel dstChannel ) throws FileNotFoundException, IOException {
+		int entryIndex = findEntryIndex( innerPath );
+		if ( entryIndex == -1 ) {
+			throw new FileNotFoundException( "InnerPath does not exist: "+ innerPath );
+		}
+
+		PkgEntry entry = entryList.get( entryIndex );
+		long len = PackUtilities.transferRegion( raf.getChannel(), entry.dataOffset, entry.dataSize, dstChannel );
+		if ( len != entry.dataSize ) {
+			throw new IOException( "EOF prematurely reached reading innerPath: "+ entry.innerPath );
+		}
+	}
+
+	/**
+	 * Replaces this dat's contents with an index for the given entries.
+	 *
+	 * The index is written once. Entries are assigned data offsets in list
+	 * order, immediately after the index. Their data must then be supplied,
+	 * in that same order, by appendRawData().
+	 *
+	 * This is for building a new dat sequentially, and the dat must be
+	 * empty. The list's entries are adopted, not copied.
+	 */
+	void writeLayout( List<PkgEntry> entries ) throws IOException {
+		if ( !pathToIndexMap.isEmpty() ) throw new IllegalStateException( "A layout can only be written to an empty dat" );
+
+		int neededPathsRegionSize = 0;
+		for ( PkgEntry entry : entries ) {
+			neededPathsRegionSize += entry.innerPath.length() + 1;
+		}
+
+		int pendingInnerPathOffset = 0;
+		long pendingDataOffset = HEADER_SIZE + entries.size() * ENTRY_SIZE + neededPathsRegionSize;
+		for ( PkgEntry entry : entries ) {
+			entry.innerPathOffset = pendingInnerPathOffset;
+			pendingInnerPathOffset += entry.innerPath.length() + 1;  // Null termination.
+
+			entry.dataOffset = pendingDataOffset;
+			pendingDataOffset += entry.dataSize;
+		}
+		pathsRegionSize = neededPathsRegionSize;
+		nextInnerPathOffset = neededPathsRegionSize;
+
+		List<PkgEntry> tmpEntries = new ArrayList<PkgEntry>( entries );
+		Collections.sort( tmpEntries, new PkgEntryHashComparator() );
+		entryList = tmpEntries;
+		vacantSlots.clear();
+
+		pathToIndexMap.clear();
+		for ( PkgEntry entry : entryList ) {
+			if ( pathToIndexMap.containsKey( entry.innerPath ) ) {
+				throw new IOException( "InnerPath occurs more than once: "+ entry.innerPath );
+			}
+			pathToIndexMap.put( entry.innerPath, pathToIndexMap.size() );
+		}
+		rebuildDataOrderMap();
+
+		raf.setLength( 0 );
+		writeIndex();  // Leaves the file pointer where data begins.
+	}
+
+	/**
+	 * Appends an entry's data, copied as-is from another PKG dat.
+	 *
+	 * @param entry an entry given to writeLayout(), whose turn it is
+	 * @see #writeLayout(List)
+	 */
+	void appendRawData( PkgEntry entry, PkgPack srcPack ) throws IOException {
+		if ( raf.getFilePointer() != entry.dataOffset ) {
+			throw new IOException( "Data was appended out of order: "+ entry.innerPath );
+		}
+		noteChannelWrite( entry.dataOffset, entry.dataSize );
+		srcPack.transferRawTo( entry.innerPath, raf.getChannel() );
+	}
+
+	/**
+	 * Appends an entry's data from a buffer, as-is.
+	 *
+	 * @param entry an entry given to writeLayout(), whose turn it is
+	 * @param srcBuf exactly entry.dataSize bytes, from position to limit
+	 * @see #writeLayout(List)
+	 */
+	void appendRawData( PkgEntry entry, ByteBuffer srcBuf ) throws IOException {
+		if ( raf.getFilePointer() != entry.dataOffset ) {
+			throw new IOException( "Data was appended out of order: "+ entry.innerPath );
+		}
+		if ( srcBuf.remaining() != entry.dataSize ) {
+			throw new IOException( "Data length does not match the layout: "+ entry.innerPath );
+		}
+		noteChannelWrite( entry.dataOffset, entry.dataSize );
+		FileChannel dstChannel = raf.getChannel();
+		while ( srcBuf.hasRemaining() ) {
+			dstChannel.write( srcBuf );
+		}
+	}
+
 	/**
 	 * Repacks the dat file. This will remove gaps, which could
 	 * be created when adding, removing or replacing files.
@@ -735,20 +1523,26 @@ public class PkgPack extends AbstractPack {
 	 *
 	 * All innerPaths will be rewritten to the paths region, sorted by
 	 * dataOffset.
+	 *
+	 * Data is not simply slid toward the top. A RepackPlanner fills gaps
+	 * with data that has to move anyway, or with data from the end of the
+	 * file, so most innerFiles stay put.
+	 *
+	 * If the index is already tidy, and less than the repack threshold
+	 * would be reclaimed, nothing is done.
+	 *
+	 * @see #setRepackThreshold(double)
 	 */
 	@Override
 	public RepackResult repack() throws IOException {
-		long bytesChanged = 0;
+		if ( writeSession ) throw new IllegalStateException( "Commit the active write session before repacking" );
+		ensureIndexDecoded();
 
-		int vacancyCount = Collections.frequency( entryList, null );
+		long bytesChanged = 0;
 
 		// Build a list of non-null entries, sorted in the order their data appears.
 
-		List<PkgEntry> tmpEntries = new ArrayList<PkgEntry>( entryList.size() - vacancyCount );
-		for ( PkgEntry entry : entryList ) {
-			if ( entry != null ) tmpEntries.add( entry );
-		}
-		Collections.sort( tmpEntries, new PkgEntryDataOffsetComparator() );
+		List<PkgEntry> tmpEntries = new ArrayList<PkgEntry>( dataOrderMap.keySet() );
 
 		for ( int i=0; i < tmpEntries.size()-1; i++ ) {
 			PkgEntry a = tmpEntries.get( i );
@@ -769,94 +1563,122 @@ public class PkgPack extends AbstractPack {
 		long neededPathsRegionOffset = HEADER_SIZE + tmpEntries.size() * ENTRY_SIZE;
 		long neededMinDataOffset = neededPathsRegionOffset + neededPathsRegionSize;
 
-		// If there's data, move it out of the way, to EOF.
-		if ( !tmpEntries.isEmpty() ) {
-			PkgEntry earliestDataEntry = tmpEntries.get( 0 );
-
-			// Even if all entries are 0-sized, ensure that they move.
-			if ( neededMinDataOffset > raf.length() ) {
-				bytesChanged += neededMinDataOffset - raf.length();
-				raf.setLength( neededMinDataOffset );
-			}
-
-			while ( neededMinDataOffset > earliestDataEntry.dataOffset ) {
-				moveEntryDataToEOF( earliestDataEntry );
-				bytesChanged += earliestDataEntry.dataSize;
-
-				tmpEntries.remove( 0 );  // Move the entry to the end of the sorted list.
-				tmpEntries.add( earliestDataEntry );
-
-				earliestDataEntry = tmpEntries.get( 0 );  // What's earliest now?
-			}
+		long oldDatLength = raf.length();
+		long compactDatLength = neededMinDataOffset;
+		for ( PkgEntry entry : tmpEntries ) {
+			compactDatLength += entry.dataSize;
 		}
 
-		// Write innerPath strings to paths region.
-		recycleBigByteBuffer( neededPathsRegionSize );
-		bigByteBuf.limit( neededPathsRegionSize );
+		// Decide where data will go. Gaps up to the threshold may remain.
+		RepackPlanner<PkgEntry> planner = new RepackPlanner<PkgEntry>( neededMinDataOffset );
+		planner.setGapAllowance( (long)(oldDatLength * repackThreshold) );
 		for ( PkgEntry entry : tmpEntries ) {
-			entry.innerPathOffset = bigByteBuf.position();
-			writeNullTerminatedString( bigByteBuf, entry.innerPath );
+			planner.addBlock( entry, entry.dataOffset, entry.dataSize );
 		}
-		bigByteBuf.rewind();
-		raf.seek( neededPathsRegionOffset );
-		raf.write( bigByteBuf.array(), bigByteBuf.position(), bigByteBuf.limit() );
+		List<RepackPlanner.Move<PkgEntry>> moves = planner.plan();
+		long bytesPlanned = planner.getPlannedBytes();
 
-		pathsRegionSize = neededPathsRegionSize;
-
-		// Move data toward the top.
-		long pendingDataOffset = neededMinDataOffset;
-
-		for ( PkgEntry entry : tmpEntries ) {
+		if ( isIndexTidy( neededPathsRegionSize ) ) {
+			double fragmentation = ( oldDatLength > 0 ? (double)(oldDatLength - compactDatLength) / oldDatLength : 0 );
+			if ( fragmentation < repackThreshold ) {
+				return new RepackResult( oldDatLength, oldDatLength, 0, bytesPlanned, 0 );
+			}
+		}
 
-			if ( pendingDataOffset != entry.dataOffset ) {
-				long totalBytes = entry.dataSize;
-				long bytesRemaining = totalBytes;
-				byte[] buf = new byte[4096];
-				int len;
-				while ( bytesRemaining > 0 ) {
-					raf.seek( entry.dataOffset + totalBytes - bytesRemaining );
-					len = raf.read( buf, 0, (int)Math.min( buf.length, bytesRemaining ) );
-					if ( len == -1 ) {
-						throw new IOException( "EOF prematurely reached reading innerPath: "+ entry.innerPath );
-					}
+		long newDatLength = planner.getRegionEnd();
 
-					raf.seek( pendingDataOffset + totalBytes - bytesRemaining );
-					raf.write( buf, 0, len );
-					bytesRemaining -= len;
-				}
+		// Carry out the moves. Until the index is rewritten, data in front of
+		// neededMinDataOffset is still intact to be read.
+		ByteBuffer moveBuf = ByteBuffer.allocateDirect( (int)Math.min( MOVE_BUFFER_SIZE, Math.max( 1, bytesPlanned ) ) );
+		long bytesMoved = 0;
 
-				entry.dataOffset = pendingDataOffset;
-				bytesChanged += totalBytes;
-			}
+		for ( RepackPlanner.Move<PkgEntry> move : moves ) {
+			PackUtilities.moveRegion( raf.getChannel(), move.srcOffset, move.dstOffset, move.length, moveBuf );
+			noteChannelWrite( move.dstOffset, move.length );
+			move.key.dataOffset = move.dstOffset;  // dataOrderMap is rebuilt afterward.
+			bytesMoved += move.length;
+		}
+		bytesChanged += bytesMoved;
 
-			pendingDataOffset += entry.dataSize;
+		// Lay out innerPath strings in the paths region (written with the index, below).
+		int pendingInnerPathOffset = 0;
+		for ( PkgEntry entry : tmpEntries ) {
+			entry.innerPathOffset = pendingInnerPathOffset;
+			pendingInnerPathOffset += entry.innerPath.length() + 1;  // Null termination.
 		}
+		pathsRegionSize = neededPathsRegionSize;
+		nextInnerPathOffset = neededPathsRegionSize;
 
 		// Re-sort entries, this time by hash.
 		Collections.sort( tmpEntries, new PkgEntryHashComparator() );
 		entryList = tmpEntries;
+		vacantSlots.clear();
 
 		pathToIndexMap.clear();
 		for ( PkgEntry entry : entryList ) {
 			pathToIndexMap.put( entry.innerPath, pathToIndexMap.size() );
 		}
+		rebuildDataOrderMap();
 
-		// Update the header.
-		raf.seek( signature.length + 2 + 2 );  // Skip HEADER_SIZE and ENTRY_SIZE.
-		writeBigUInt( entryList.size() );
-		writeBigUInt( pathsRegionSize );
+		// Write the header, entries, and paths region.
+		writeIndex();
 		bytesChanged += 4 + 4;
 
-		// Write the entries.
-		for ( PkgEntry entry : entryList ) {
-			writePkgEntry( entry );
+		raf.setLength( newDatLength );  // Trim off deallocated bytes at the end.
+
+		return new RepackResult( oldDatLength, newDatLength, bytesChanged, bytesPlanned, bytesMoved );
+	}
+
+	/**
+	 * Returns true if the index has no null entries, is sorted by hash, and
+	 * its paths region is exactly the given size.
+	 *
+	 * Such an index doesn't need rewriting by repack().
+	 */
+	private boolean isIndexTidy( int neededPathsRegionSize ) {
+		if ( !vacantSlots.isEmpty() ) return false;
+		if ( pathsRegionSize != neededPathsRegionSize ) return false;
+
+		Comparator<PkgEntry> hashComparator = new PkgEntryHashComparator();
+		for ( int i=0; i < entryList.size()-1; i++ ) {
+			if ( hashComparator.compare( entryList.get( i ), entryList.get( i+1 ) ) > 0 ) return false;
 		}
+		return true;
+	}
+
 
-		long oldDatLength = raf.length();
-		long newDatLength = pendingDataOffset;
-		raf.setLength( newDatLength );  // Trim off deallocated bytes at the end.
 
-		return new RepackResult( oldDatLength, newDatLength, bytesChanged );
+	/**
+	 * A VisitedEntry backed by a known PkgEntry, needing no lookup.
+	 */
+	private class PkgVisitedEntry extends VisitedEntry {
+		public PkgEntry entry = null;
+
+		@Override
+		protected InputStream openInputStream() throws IOException {
+			return openEntryStream( entry );
+		}
+
+		// A lease on the mapping, held from getStoredBuffer() until finish().
+		private SharedMapping leasedMapping = null;
+
+		@Override
+		public ByteBuffer getStoredBuffer() throws IOException {
+			if ( leasedMapping == null ) {
+				SharedMapping m = mapping;
+				if ( m == null ) return null;
+				m.acquire();
+				leasedMapping = m;
+			}
+			return getMappedRegion( leasedMapping, entry ).asReadOnlyBuffer();
+		}
+
+		@Override
+		protected void finish() {
+			super.finish();
+			if ( leasedMapping != null ) leasedMapping.release();
+			leasedMapping = null;
+		}
 	}
 
 
@@ -914,7 +1736,11 @@ public class PkgPack extends AbstractPack {
 	}
 
 	/**
-	 * A Comparator to sort by dataOffset (asc).
+	 * A Comparator to sort by dataOffset (asc), then dataSize (asc), then by
+	 * innerPath (asc).
+	 *
+	 * Empty entries may share a dataOffset with each other, or with the
+	 * entry after them. Ties are broken so that empty ones come first.
 	 */
 	public static class PkgEntryDataOffsetComparator implements Comparator<PkgEntry> {
 		@Override
@@ -923,7 +1749,9 @@ public class PkgPack extends AbstractPack {
 			if ( a == null ) return 1;
 			if ( a.dataOffset < b.dataOffset ) return -1;
 			if ( a.dataOffset > b.dataOffset ) return 1;
-			return 0;
+			if ( a.dataSize < b.dataSize ) return -1;
+			if ( a.dataSize > b.dataSize ) return 1;
+			return a.innerPath.compareTo( b.innerPath );
 		}
 		@Override
 		public boolean equals( Object o ) {
@@ -0,0 +1,351 @@
+package net.vhati.ftldat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+
+/**
+ * Decides where blocks of data should go to close the gaps in a dat.
+ *
+ * Blocks are regions of a file (an innerFile's data, along with anything
+ * bundled with it), which must end up contiguous, starting at regionStart.
+ * Their order doesn't matter.
+ *
+ * Rather than sliding every block after the first gap toward the start,
+ * holes are filled by blocks that have to move anyway (those in front of
+ * regionStart), or by blocks from the end of the file. When nothing fits a
+ * hole, it may be left as a gap (within an allowance), or the block after
+ * it is slid down, or if that would drag too much along with it, moved to
+ * the end of the file to widen the hole.
+ *
+ * Planning performs no I/O. Moves are returned in the order they must be
+ * performed; each one's source is intact until it has been copied, so long
+ * as the copy tolerates overlap with its own destination.
+ *
+ * @see PackUtilities#moveRegion(java.nio.channels.FileChannel, long, long, long, java.nio.ByteBuffer)
+ */
+public class RepackPlanner<T> {
+
+	/** How many blocks at the end of the file to consider for each hole. */
+	private static final int TAIL_WINDOW = 32;
+
+	private long regionStart;
+	private long gapAllowance = 0;
+	private List<Block<T>> blocks = new ArrayList<Block<T>>();
+
+	private long plannedBytes = 0;
+	private long regionEnd = 0;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param regionStart the offset where the first block should begin
+	 */
+	public RepackPlanner( long regionStart ) {
+		this.regionStart = regionStart;
+		this.regionEnd = regionStart;
+	}
+
+	/**
+	 * Sets how many bytes of holes may be left, in total, rather than filled.
+	 *
+	 * A small hole that nothing fits would otherwise require sliding every
+	 * block after it. The default, 0, leaves the blocks fully contiguous.
+	 */
+	public void setGapAllowance( long bytes ) {
+		gapAllowance = bytes;
+	}
+
+	/**
+	 * Registers a block to be placed.
+	 *
+	 * Blocks must not overlap one another.
+	 *
+	 * @param key an object to identify the block in returned moves
+	 */
+	public void addBlock( T key, long offset, long length ) {
+		blocks.add( new Block<T>( key, offset, length, blocks.size() ) );
+	}
+
+	/**
+	 * Returns a list of moves that will leave all blocks contiguous (apart
+	 * from gaps within the allowance).
+	 *
+	 * Blocks that are already in place will not be mentioned. A block may be
+	 * moved more than once: first out of the way, to the end of the file,
+	 * then into a hole.
+	 *
+	 * The cheapest of a few strategies is returned. At worst, that's the
+	 * same as sliding everything down.
+	 */
+	public List<Move<T>> plan() {
+		// Each strategy wins in some layouts, and planning is cheap. Try them all.
+		List<Move<T>> bestMoves = null;
+		long bestBytes = 0;
+		long bestEnd = regionStart;
+
+		for ( int strategy=0; strategy < 3; strategy++ ) {
+			List<Move<T>> moves = plan( strategy > 0, strategy > 1 );
+			if ( bestMoves == null || plannedBytes < bestBytes ) {
+				bestMoves = moves;
+				bestBytes = plannedBytes;
+				bestEnd = regionEnd;
+			}
+		}
+		plannedBytes = bestBytes;
+		regionEnd = bestEnd;
+		return bestMoves;
+	}
+
+	/**
+	 * Plans moves with a particular strategy.
+	 *
+	 * @param fillHoles true to fill holes with homeless or tail blocks, false to only slide blocks down
+	 * @param evict true to move blocks that don't fit out of the way, rather than sliding them
+	 */
+	private List<Move<T>> plan( boolean fillHoles, boolean evict ) {
+		List<Move<T>> moves = new ArrayList<Move<T>>();
+		plannedBytes = 0;
+
+		TreeSet<Block<T>> placedBlocks = new TreeSet<Block<T>>( new BlockOffsetComparator<T>() );
+		TreeSet<Block<T>> pendingBlocks = new TreeSet<Block<T>>( new BlockLengthComparator<T>() );
+		Block<T> straddlingBlock = null;
+		long placedBytes = 0;
+		long gapBudget = gapAllowance;
+		long tailOffset = regionStart;  // Where evicted blocks can go, past everything.
+
+		for ( Block<T> original : blocks ) {
+			Block<T> block = new Block<T>( original.key, original.offset, original.length, original.id );
+			tailOffset = Math.max( tailOffset, block.offset + block.length );
+
+			if ( block.offset < regionStart ) {
+				if ( block.offset + block.length > regionStart ) {
+					straddlingBlock = block;
+				} else {
+					pendingBlocks.add( block );
+				}
+			}
+			else {
+				placedBlocks.add( block );
+				placedBytes += block.length;
+			}
+		}
+
+		long cursor = regionStart;
+
+		// A block crossing regionStart has bytes where the first hole would be
+		// filled. Move it before anything else can clobber them. It can go
+		// straight to regionStart only if no other block lies in the way.
+		// Otherwise it's evicted to the tail, and becomes homeless.
+		if ( straddlingBlock != null ) {
+			Block<T> firstPlaced = ( placedBlocks.isEmpty() ? null : placedBlocks.first() );
+			if ( firstPlaced == null || firstPlaced.offset >= regionStart + straddlingBlock.length ) {
+				cursor = addMove( moves, straddlingBlock, cursor );
+			}
+			else {
+				tailOffset = addMove( moves, straddlingBlock, tailOffset );
+				pendingBlocks.add( straddlingBlock );
+			}
+		}
+
+		// Blocks evicted to the tail while trying to fill the current hole.
+		// They'd fit right back where they were, which gains nothing.
+		List<Block<T>> evictedBlocks = new ArrayList<Block<T>>();
+
+		Block<T> probe = new Block<T>( null, 0, 0, Integer.MAX_VALUE );
+
+		while ( true ) {
+			Block<T> nextBlock = ( placedBlocks.isEmpty() ? null : placedBlocks.first() );
+
+			if ( nextBlock != null && nextBlock.offset == cursor ) {  // Already in place.
+				placedBlocks.pollFirst();
+				placedBytes -= nextBlock.length;
+				cursor += nextBlock.length;
+				evictedBlocks.clear();
+				continue;
+			}
+
+			if ( nextBlock == null ) {
+				// Only homeless blocks remain. Evicted ones sit past cursor, in
+				// the order they were evicted, so take them in that order to
+				// slide each down without clobbering the rest.
+				List<Block<T>> tailBlocks = new ArrayList<Block<T>>();
+				for ( Block<T> block : pendingBlocks ) {
+					if ( block.offset >= regionStart ) tailBlocks.add( block );
+				}
+				Collections.sort( tailBlocks, new BlockOffsetComparator<T>() );
+				for ( Block<T> block : tailBlocks ) {
+					pendingBlocks.remove( block );
+					cursor = addMove( moves, block, cursor );
+				}
+
+				for ( Block<T> block : pendingBlocks ) {
+					cursor = addMove( moves, block, cursor );
+				}
+				pendingBlocks.clear();
+				break;
+			}
+
+			long holeSize = nextBlock.offset - cursor;
+			if ( holeSize < 0 ) {
+				// Only possible if blocks overlapped. Moving anything now would corrupt data.
+				throw new IllegalStateException( String.format( "Block at %d overlaps the region ending at %d", nextBlock.offset, cursor ) );
+			}
+
+			// Prefer the largest homeless block that fits.
+			probe.length = holeSize;
+			Block<T> fillBlock = ( fillHoles ? pendingBlocks.floor( probe ) : null );
+			while ( fillBlock != null && evictedBlocks.contains( fillBlock ) ) {
+				fillBlock = pendingBlocks.lower( fillBlock );
+			}
+			if ( fillBlock != null ) {
+				pendingBlocks.remove( fillBlock );
+				cursor = addMove( moves, fillBlock, cursor );
+				continue;
+			}
+
+			// Then the latest block near the end of the file that fits.
+			int checked = 0;
+			for ( Iterator<Block<T>> it = placedBlocks.descendingIterator(); fillHoles && it.hasNext() && checked < TAIL_WINDOW; checked++ ) {
+				Block<T> block = it.next();
+				if ( block == nextBlock ) break;
+
+				if ( block.length <= holeSize ) {
+					fillBlock = block;
+					break;
+				}
+			}
+			if ( fillBlock != null ) {
+				placedBlocks.remove( fillBlock );
+				placedBytes -= fillBlock.length;
+				cursor = addMove( moves, fillBlock, cursor );
+				continue;
+			}
+
+			// Nothing fits. If allowed, just leave the hole.
+			if ( holeSize <= gapBudget ) {
+				gapBudget -= holeSize;
+				cursor = nextBlock.offset;
+				continue;
+			}
+
+			// Sliding the next block down would shift the hole
+			// past it, and likely everything after. If the block is smaller
+			// than what follows, copying it twice is cheaper: evict it to the
+			// tail, widening the hole.
+			placedBlocks.pollFirst();
+			placedBytes -= nextBlock.length;
+
+			if ( evict && nextBlock.length > 0 && nextBlock.length < placedBytes ) {
+				tailOffset = addMove( moves, nextBlock, tailOffset );
+				pendingBlocks.add( nextBlock );
+				evictedBlocks.add( nextBlock );
+			}
+			else {
+				cursor = addMove( moves, nextBlock, cursor );
+			}
+		}
+
+		regionEnd = cursor;
+		return moves;
+	}
+
+	/**
+	 * Returns the number of bytes the last plan() would copy.
+	 */
+	public long getPlannedBytes() {
+		return plannedBytes;
+	}
+
+	/**
+	 * Returns the offset after the last block, once the last plan() is done.
+	 *
+	 * This includes any gaps left within the allowance.
+	 */
+	public long getRegionEnd() {
+		return regionEnd;
+	}
+
+	/**
+	 * Records a move, if needed, and updates the block's offset.
+	 *
+	 * @return the offset after the block's new location
+	 */
+	private long addMove( List<Move<T>> moves, Block<T> block, long dstOffset ) {
+		if ( block.offset != dstOffset ) {
+			moves.add( new Move<T>( block.key, block.offset, dstOffset, block.length ) );
+			plannedBytes += block.length;
+			block.offset = dstOffset;
+		}
+		return dstOffset + block.length;
+	}
+
+
+
+	/**
+	 * A planned copy of one block to a new offset.
+	 */
+	public static class Move<T> {
+		public final T key;
+		public final long srcOffset;
+		public final long dstOffset;
+		public final long length;
+
+		public Move( T key, long srcOffset, long dstOffset, long length ) {
+			this.key = key;
+			this.srcOffset = srcOffset;
+			this.dstOffset = dstOffset;
+			this.length = length;
+		}
+	}
+
+
+
+	private static class Block<T> {
+		public T key;
+		public long offset;
+		public long length;
+		public int id;
+
+		public Block( T key, long offset, long length, int id ) {
+			this.key = key;
+			this.offset = offset;
+			this.length = length;
+			this.id = id;
+		}
+	}
+
+
+
+	/**
+	 * Sorts blocks by offset, then length, then insertion order.
+	 *
+	 * Empty blocks can share an offset with another block.
+	 */
+	private static class BlockOffsetComparator<T> implements Comparator<Block<T>> {
+		@Override
+		public int compare( Block<T> a, Block<T> b ) {
+			if ( a.offset != b.offset ) return ( a.offset < b.offset ? -1 : 1 );
+			if ( a.length != b.length ) return ( a.length < b.length ? -1 : 1 );
+			if ( a.id != b.id ) return ( a.id < b.id ? -1 : 1 );
+			return 0;
+		}
+	}
+
+	/**
+	 * Sorts blocks by length, then insertion order.
+	 */
+	private static class BlockLengthComparator<T> implements Comparator<Block<T>> {
+		@Override
+		public int compare( Block<T> a, Block<T> b ) {
+			if ( a.length != b.length ) return ( a.length < b.length ? -1 : 1 );
+			if ( a.id != b.id ) return ( a.id < b.id ? -1 : 1 );
+			return 0;
+		}
+	}
+}
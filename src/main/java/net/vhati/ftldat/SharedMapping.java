@@ -0,0 +1,91 @@
+package net.vhati.ftldat;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+import net.vhati.ftldat.PackUtilities;
+
+
+/**
+ * A read-only memory mapping of a dat, shared by streams on many threads.
+ *
+ * Forcibly unmapping a buffer crashes the JVM if anything still reads it.
+ * So every reader holds a lease while it may touch the mapping. After
+ * close(), the mapping is unmapped once the last lease is released. A
+ * lease that's never released just leaves the mapping for the garbage
+ * collector.
+ */
+final class SharedMapping {
+
+	private MappedByteBuffer buf;
+	private final int capacity;
+	private int leaseCount = 0;
+	private boolean closed = false;
+
+
+	public SharedMapping( MappedByteBuffer buf ) {
+		this.buf = buf;
+		this.capacity = buf.capacity();
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Takes a lease. Each call must be matched by a release().
+	 *
+	 * @throws ClosedChannelException if this mapping has been closed
+	 */
+	public synchronized void acquire() throws ClosedChannelException {
+		if ( closed ) throw new ClosedChannelException();
+		leaseCount++;
+	}
+
+	/**
+	 * Returns a lease, unmapping if it was the last one after close().
+	 */
+	public void release() {
+		MappedByteBuffer doomedBuf = null;
+		synchronized ( this ) {
+			if ( leaseCount <= 0 ) throw new IllegalStateException( "No lease to release" );
+			leaseCount--;
+			if ( closed && leaseCount == 0 ) {
+				doomedBuf = buf;
+				buf = null;
+			}
+		}
+		PackUtilities.unmap( doomedBuf );
+	}
+
+	/**
+	 * Returns a region of the mapping as an independent buffer.
+	 *
+	 * The caller must hold a lease for as long as the region is used.
+	 */
+	public synchronized ByteBuffer getRegion( long offset, long length ) {
+		if ( buf == null ) throw new IllegalStateException( "Mapping was released" );
+
+		ByteBuffer regionBuf = buf.duplicate();
+		regionBuf.position( (int)offset );
+		regionBuf.limit( (int)(offset + length) );
+		return regionBuf.slice();
+	}
+
+	/**
+	 * Refuses further leases, and unmaps now if none are outstanding.
+	 */
+	public void close() {
+		MappedByteBuffer doomedBuf = null;
+		synchronized ( this ) {
+			if ( closed ) return;
+			closed = true;
+			if ( leaseCount == 0 ) {
+				doomedBuf = buf;
+				buf = null;
+			}
+		}
+		PackUtilities.unmap( doomedBuf );
+	}
+}
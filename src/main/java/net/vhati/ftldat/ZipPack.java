@@ -0,0 +1,469 @@
+package net.vhati.ftldat;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import net.vhati.ftldat.AbstractPack;
+import net.vhati.ftldat.AbstractPack.PathAndSize;
+import net.vhati.ftldat.FileChannelRegionInputStream;
+import net.vhati.ftldat.PackUtilities;
+
+
+/**
+ * A read-only pseudo-dat over a zip archive, such as a mod.
+ *
+ * Only the central directory at the end of the zip is read up front.
+ * InnerFiles are then read with positional channel reads, so they can be
+ * opened in any order, and several streams can be read at once, from any
+ * threads.
+ *
+ * InnerPaths are the zip's entry names, as-is, so non-standard zips may
+ * have backslashes. Directory entries are omitted. If names repeat, the
+ * first entry wins.
+ *
+ * Only stored and deflated entries can be read. Zip64 archives (over 4GB
+ * or 65535 entries) are rejected, as are encrypted entries, when read.
+ */
+public class ZipPack extends AbstractPack {
+
+	private static final int LOCAL_HEADER_SIG = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+	private static final int END_HEADER_SIG = 0x06054b50;
+
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_HEADER_SIZE = 22;
+	private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+	public static final int METHOD_STORED = 0;
+	public static final int METHOD_DEFLATED = 8;
+
+	private File zipFile = null;
+	private RandomAccessFile raf = null;
+
+	private Map<String, ZipPackEntry> pathToEntryMap = new LinkedHashMap<String, ZipPackEntry>();
+
+
+	public ZipPack( File zipFile ) throws IOException {
+		if ( !zipFile.exists() )
+			throw new FileNotFoundException( String.format( "The zipFile was not found: %s", zipFile.getPath() ) );
+
+		this.zipFile = zipFile;
+		raf = new RandomAccessFile( zipFile, "r" );
+		try {
+			readCentralDirectory();
+		}
+		catch ( IOException e ) {
+			try {raf.close();}
+			catch ( IOException f ) {}
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the end record, then every entry in the central directory.
+	 */
+	private void readCentralDirectory() throws IOException {
+		FileChannel channel = raf.getChannel();
+		long fileSize = channel.size();
+		if ( fileSize < END_HEADER_SIZE ) {
+			throw new IOException( "Not a zip file (too short): "+ zipFile.getName() );
+		}
+
+		// The end record is followed by a variable-length comment.
+		// Search backward through the most the two could span.
+		int tailSize = (int)Math.min( fileSize, END_HEADER_SIZE + MAX_COMMENT_SIZE );
+		long tailOffset = fileSize - tailSize;
+		ByteBuffer tailBuf = ByteBuffer.allocate( tailSize );
+		tailBuf.order( ByteOrder.LITTLE_ENDIAN );
+		readFully( channel, tailBuf, tailOffset );
+
+		int endPos = -1;
+		for ( int i=tailSize - END_HEADER_SIZE; i >= 0; i-- ) {
+			if ( tailBuf.getInt( i ) != END_HEADER_SIG ) continue;
+
+			int commentLength = tailBuf.getShort( i + 20 ) & 0xFFFF;
+			if ( i + END_HEADER_SIZE + commentLength <= tailSize ) {
+				endPos = i;
+				break;
+			}
+		}
+		if ( endPos == -1 ) {
+			throw new IOException( "Not a zip file (no central directory): "+ zipFile.getName() );
+		}
+
+		int totalEntries = tailBuf.getShort( endPos + 10 ) & 0xFFFF;
+		long cdSize = tailBuf.getInt( endPos + 12 ) & 0xFFFFFFFFL;
+		long cdOffset = tailBuf.getInt( endPos + 16 ) & 0xFFFFFFFFL;
+
+		if ( totalEntries == 0xFFFF || cdSize == 0xFFFFFFFFL || cdOffset == 0xFFFFFFFFL ) {
+			throw new IOException( "Zip64 archives are not supported: "+ zipFile.getName() );
+		}
+		if ( cdOffset + cdSize > tailOffset + endPos ) {
+			throw new IOException( "Central directory overlaps its end record: "+ zipFile.getName() );
+		}
+
+		ByteBuffer cdBuf = ByteBuffer.allocate( (int)cdSize );
+		cdBuf.order( ByteOrder.LITTLE_ENDIAN );
+		readFully( channel, cdBuf, cdOffset );
+
+		int pos = 0;
+		while ( pos + CENTRAL_HEADER_SIZE <= cdSize ) {
+			if ( cdBuf.getInt( pos ) != CENTRAL_HEADER_SIG ) {
+				throw new IOException( String.format( "Bad central directory entry at offset %d: %s", cdOffset + pos, zipFile.getName() ) );
+			}
+
+			int flags = cdBuf.getShort( pos + 8 ) & 0xFFFF;
+			int method = cdBuf.getShort( pos + 10 ) & 0xFFFF;
+			int dosTime = cdBuf.getInt( pos + 12 );
+			long crc = cdBuf.getInt( pos + 16 ) & 0xFFFFFFFFL;
+			long compressedSize = cdBuf.getInt( pos + 20 ) & 0xFFFFFFFFL;
+			long size = cdBuf.getInt( pos + 24 ) & 0xFFFFFFFFL;
+			int nameLength = cdBuf.getShort( pos + 28 ) & 0xFFFF;
+			int extraLength = cdBuf.getShort( pos + 30 ) & 0xFFFF;
+			int commentLength = cdBuf.getShort( pos + 32 ) & 0xFFFF;
+			long localHeaderOffset = cdBuf.getInt( pos + 42 ) & 0xFFFFFFFFL;
+
+			int recordSize = CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+			if ( pos + recordSize > cdSize ) {
+				throw new IOException( String.format( "Truncated central directory entry at offset %d: %s", cdOffset + pos, zipFile.getName() ) );
+			}
+			if ( compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL ) {
+				throw new IOException( "Zip64 archives are not supported: "+ zipFile.getName() );
+			}
+
+			byte[] nameBytes = new byte[nameLength];
+			cdBuf.position( pos + CENTRAL_HEADER_SIZE );
+			cdBuf.get( nameBytes );
+			String innerPath = new String( nameBytes, "UTF-8" );  // As ZipInputStream decodes.
+
+			long unixTime = findExtendedTime( cdBuf, pos + CENTRAL_HEADER_SIZE + nameLength, extraLength );
+
+			pos += recordSize;
+
+			if ( innerPath.endsWith( "/" ) ) continue;  // Directory.
+			if ( pathToEntryMap.containsKey( innerPath ) ) continue;
+
+			ZipPackEntry entry = new ZipPackEntry();
+			entry.innerPath = innerPath;
+			entry.method = method;
+			entry.encrypted = ( (flags & 0x1) != 0 );
+			entry.dosTime = dosTime;
+			entry.unixTime = unixTime;
+			entry.crc = crc;
+			entry.compressedSize = compressedSize;
+			entry.size = size;
+			entry.localHeaderOffset = localHeaderOffset;
+			pathToEntryMap.put( innerPath, entry );
+		}
+	}
+
+	/**
+	 * Returns the modification time from an "extended timestamp" extra
+	 * field (0x5455), in epoch seconds, or -1.
+	 *
+	 * Unix zip tools add this, since MS-DOS times are local, with 2-second
+	 * precision.
+	 */
+	private long findExtendedTime( ByteBuffer buf, int extraOffset, int extraLength ) {
+		int pos = extraOffset;
+		int end = extraOffset + extraLength;
+		while ( pos + 4 <= end ) {
+			int tag = buf.getShort( pos ) & 0xFFFF;
+			int dataLength = buf.getShort( pos + 2 ) & 0xFFFF;
+			if ( pos + 4 + dataLength > end ) break;
+
+			if ( tag == 0x5455 && dataLength >= 5 && (buf.get( pos + 4 ) & 0x1) != 0 ) {
+				return buf.getInt( pos + 5 ) & 0xFFFFFFFFL;
+			}
+			pos += 4 + dataLength;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns where an entry's data begins, reading its local header once.
+	 *
+	 * The local header's name and extra field lengths can differ from the
+	 * central directory's, so they must be read from there.
+	 */
+	private long getDataOffset( ZipPackEntry entry ) throws IOException {
+		long result = entry.dataOffset;
+		if ( result != -1 ) return result;
+
+		ByteBuffer headerBuf = ByteBuffer.allocate( LOCAL_HEADER_SIZE );
+		headerBuf.order( ByteOrder.LITTLE_ENDIAN );
+		readFully( raf.getChannel(), headerBuf, entry.localHeaderOffset );
+
+		if ( headerBuf.getInt( 0 ) != LOCAL_HEADER_SIG ) {
+			throw new IOException( "Bad local header for innerPath: "+ entry.innerPath );
+		}
+		int nameLength = headerBuf.getShort( 26 ) & 0xFFFF;
+		int extraLength = headerBuf.getShort( 28 ) & 0xFFFF;
+
+		result = entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+		if ( result + entry.compressedSize > raf.getChannel().size() ) {
+			throw new IOException( "EOF prematurely reached reading innerPath: "+ entry.innerPath );
+		}
+
+		// Racing threads would only compute the same value.
+		entry.dataOffset = result;
+		return result;
+	}
+
+	/**
+	 * Reads from a channel until a buffer is full.
+	 */
+	private void readFully( FileChannel channel, ByteBuffer buf, long offset ) throws IOException {
+		while ( buf.hasRemaining() ) {
+			int len = channel.read( buf, offset + buf.position() );
+			if ( len == -1 ) throw new EOFException( "EOF prematurely reached reading: "+ zipFile.getName() );
+		}
+	}
+
+	private ZipPackEntry getEntry( String innerPath ) throws FileNotFoundException {
+		ZipPackEntry entry = pathToEntryMap.get( innerPath );
+		if ( entry == null ) {
+			throw new FileNotFoundException( "InnerPath does not exist: "+ innerPath );
+		}
+		return entry;
+	}
+
+
+	@Override
+	public String getName() {
+		return zipFile.getName();
+	}
+
+	@Override
+	public List<String> list() {
+		return new ArrayList<String>( pathToEntryMap.keySet() );
+	}
+
+	@Override
+	public List<PathAndSize> listSizes() {
+		List<PathAndSize> result = new ArrayList<PathAndSize>( pathToEntryMap.size() );
+		for ( ZipPackEntry entry : pathToEntryMap.values() ) {
+			result.add( new PathAndSize( entry.innerPath, entry.size ) );
+		}
+		return result;
+	}
+
+	public List<ZipPackEntry> listMetadata() {
+		return new ArrayList<ZipPackEntry>( pathToEntryMap.values() );
+	}
+
+	@Override
+	public boolean contains( String innerPath ) {
+		return pathToEntryMap.containsKey( innerPath );
+	}
+
+	@Override
+	public InputStream getInputStream( String innerPath ) throws FileNotFoundException, IOException {
+		return openEntryStream( getEntry( innerPath ) );
+	}
+
+	private InputStream openEntryStream( ZipPackEntry entry ) throws IOException {
+		if ( entry.encrypted ) {
+			throw new IOException( "InnerPath is encrypted: "+ entry.innerPath );
+		}
+		if ( entry.method != METHOD_STORED && entry.method != METHOD_DEFLATED ) {
+			throw new IOException( String.format( "Unsupported compression method (%d) for innerPath: %s", entry.method, entry.innerPath ) );
+		}
+
+		InputStream stream = new FileChannelRegionInputStream( raf.getChannel(), getDataOffset( entry ), entry.compressedSize );
+
+		if ( entry.method == METHOD_DEFLATED ) {
+			stream = new EntryInflaterInputStream( stream, entry.compressedSize );
+		}
+		return stream;
+	}
+
+	@Override
+	public void extractTo( String innerPath, OutputStream os ) throws FileNotFoundException, IOException {
+		ZipPackEntry entry = getEntry( innerPath );
+
+		if ( entry.method == METHOD_STORED && !entry.encrypted && os instanceof FileOutputStream ) {
+			// Don't close the destination channel: that would close os.
+			FileChannel dstChannel = ((FileOutputStream)os).getChannel();
+			long len = PackUtilities.transferRegion( raf.getChannel(), getDataOffset( entry ), entry.compressedSize, dstChannel );
+			if ( len != entry.compressedSize ) {
+				throw new IOException( "EOF prematurely reached reading innerPath: "+ innerPath );
+			}
+			return;
+		}
+
+		InputStream is = null;
+		try {
+			is = openEntryStream( entry );
+
+			byte[] buf = new byte[8192];
+			int len;
+			while ( (len = is.read( buf )) >= 0 ) {
+				os.write( buf, 0, len );
+			}
+		}
+		finally {
+			try {if ( is != null ) is.close();}
+			catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Visits innerFiles in the order their data appears in the zip.
+	 */
+	@Override
+	public void forEachEntry( EntryVisitor visitor ) throws IOException {
+		List<ZipPackEntry> orderedEntries = new ArrayList<ZipPackEntry>( pathToEntryMap.values() );
+		Collections.sort( orderedEntries, new Comparator<ZipPackEntry>() {
+			@Override
+			public int compare( ZipPackEntry a, ZipPackEntry b ) {
+				if ( a.localHeaderOffset < b.localHeaderOffset ) return -1;
+				if ( a.localHeaderOffset > b.localHeaderOffset ) return 1;
+				return 0;
+			}
+		});
+
+		ZipVisitedEntry visited = new ZipVisitedEntry();
+		try {
+			for ( ZipPackEntry entry : orderedEntries ) {
+				visited.entry = entry;
+				visited.path = entry.innerPath;
+				visited.size = entry.size;
+				visited.storedSize = entry.compressedSize;
+				visited.compressed = ( entry.method != METHOD_STORED );
+
+				boolean proceed = visitor.visit( visited );
+				visited.finish();
+				if ( !proceed ) break;
+			}
+		}
+		finally {
+			visited.finish();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+
+
+	/**
+	 * A VisitedEntry backed by a known ZipPackEntry, needing no lookup.
+	 */
+	private class ZipVisitedEntry extends VisitedEntry {
+		public ZipPackEntry entry = null;
+
+		@Override
+		protected InputStream openInputStream() throws IOException {
+			return openEntryStream( entry );
+		}
+	}
+
+
+
+	/**
+	 * An InflaterInputStream for raw deflate data, which owns its Inflater.
+	 *
+	 * A raw Inflater may want one byte past the end of the data before it
+	 * finishes, so a dummy byte is supplied at EOF, as ZipFile does.
+	 */
+	private static class EntryInflaterInputStream extends InflaterInputStream {
+		private boolean eofPadded = false;
+		private boolean closed = false;
+
+		public EntryInflaterInputStream( InputStream in, long compressedSize ) {
+			super( in, new Inflater( true ), (int)Math.max( 512, Math.min( compressedSize, 65536 ) ) );
+		}
+
+		@Override
+		protected void fill() throws IOException {
+			if ( eofPadded ) throw new EOFException( "Unexpected end of deflated zip entry" );
+
+			len = in.read( buf, 0, buf.length );
+			if ( len == -1 ) {
+				buf[0] = 0;
+				len = 1;
+				eofPadded = true;
+			}
+			inf.setInput( buf, 0, len );
+		}
+
+		@Override
+		public void close() throws IOException {
+			if ( closed ) return;
+			closed = true;
+
+			super.close();
+			inf.end();
+		}
+	}
+
+
+
+	/**
+	 * Information about an innerFile within a zip, from its central directory.
+	 */
+	public static class ZipPackEntry {
+		public String innerPath = null;
+
+		/** Compression method: METHOD_STORED, METHOD_DEFLATED, or something unsupported. */
+		public int method = METHOD_STORED;
+
+		public boolean encrypted = false;
+
+		/** Modification time, as packed MS-DOS date (high 16 bits) and time (low 16 bits). */
+		public int dosTime = 0;
+
+		public long crc = 0;
+		public long compressedSize = 0;
+		public long size = 0;
+		public long localHeaderOffset = 0;
+
+		// Found on first read, by getDataOffset().
+		volatile long dataOffset = -1;
+
+		public ZipPackEntry() {
+		}
+
+		/** Modification time from an extended timestamp field, in epoch seconds, or -1. */
+		public long unixTime = -1;
+
+		/**
+		 * Returns the modification time, as epoch milliseconds.
+		 *
+		 * An extended timestamp is preferred, if present. Otherwise the
+		 * MS-DOS time is interpreted as local time.
+		 *
+		 * @see java.util.zip.ZipEntry#getTime()
+		 */
+		public long getTime() {
+			if ( unixTime != -1 ) return unixTime * 1000;
+
+			Calendar cal = Calendar.getInstance();
+			cal.clear();
+			cal.set( ((dosTime >> 25) & 0x7f) + 1980, ((dosTime >> 21) & 0x0f) - 1, (dosTime >> 16) & 0x1f, (dosTime >> 11) & 0x1f, (dosTime >> 5) & 0x3f, (dosTime << 1) & 0x3e );
+			return cal.getTimeInMillis();
+		}
+	}
+}
@@ -28,6 +28,8 @@ import org.slf4j.LoggerFactory;
 
 import net.vhati.ftldat.AbstractPack;
 import net.vhati.ftldat.FolderPack;
+import net.vhati.ftldat.PackExtractor;
+import net.vhati.ftldat.PackUtilities;
 import net.vhati.ftldat.PkgPack;
 import net.vhati.ftldat.FTLPack;
 import net.vhati.modmanager.FTLModManager;
@@ -74,6 +76,11 @@ public class SlipstreamCLI {
 			System.exit( 1 );
 		}
 
+		if ( slipstreamCmd.jobs < 0 ) {  // Zero means the default.
+			System.err.println( "Error parsing commandline: --jobs can't be negative: "+ slipstreamCmd.jobs );
+			System.exit( 1 );
+		}
+
 		if ( commandLine.isUsageHelpRequested() ) {
 			commandLine.usage( System.out );
 			System.exit( 0 );
@@ -171,21 +178,36 @@ public class SlipstreamCLI {
 
 			FolderPack dstPack = null;
 			List<AbstractPack> srcPacks = new ArrayList<AbstractPack>( 2 );
-			InputStream is = null;
 			try {
+				PackExtractor extractor;
+				if ( slipstreamCmd.jobs > 0 ) {
+					extractor = new PackExtractor( slipstreamCmd.jobs );
+				} else {
+					extractor = new PackExtractor();
+				}
+				log.info( String.format( "Using %d extraction job(s)", extractor.getJobs() ) );
+
 				File ftlDatFile = new File( datsDir, "ftl.dat" );
 				File dataDatFile = new File( datsDir, "data.dat" );
 				File resourceDatFile = new File( datsDir, "resource.dat" );
 
+				// Only map if the mapping can be released promptly afterward, or the
+				// dats would stay locked (on Windows) against patching.
+				boolean mapDats = PackUtilities.isUnmapSupported();
+
 				if ( ftlDatFile.exists() ) {  // FTL 1.6.1.
-					AbstractPack ftlPack = new PkgPack( ftlDatFile, "r" );
+					PkgPack ftlPack = new PkgPack( ftlDatFile, "r" );
 					srcPacks.add( ftlPack );
+					ftlPack.setMemoryMapped( mapDats );
 				}
 				else if ( dataDatFile.exists() && resourceDatFile.exists() ) {  // FTL 1.01-1.5.13.
-					AbstractPack dataPack = new FTLPack( dataDatFile, "r" );
-					AbstractPack resourcePack = new FTLPack( resourceDatFile, "r" );
+					FTLPack dataPack = new FTLPack( dataDatFile, "r" );
 					srcPacks.add( dataPack );
+					dataPack.setMemoryMapped( mapDats );
+
+					FTLPack resourcePack = new FTLPack( resourceDatFile, "r" );
 					srcPacks.add( resourcePack );
+					resourcePack.setMemoryMapped( mapDats );
 				}
 				else {
 					throw new FileNotFoundException( String.format( "Could not find either \"%s\" or both \"%s\" and \"%s\"", ftlDatFile.getName(), dataDatFile.getName(), resourceDatFile.getName() ) );
@@ -195,17 +217,19 @@ public class SlipstreamCLI {
 
 				dstPack = new FolderPack( extractDir );
 
-				for ( AbstractPack srcPack : srcPacks ) {
-					List<String> innerPaths = srcPack.list();
+				PackExtractor.ExtractObserver extractObserver = new PackExtractor.ExtractObserver() {
+					@Override
+					public void extractionOverwriting( String innerPath ) {
+						log.info( "While extracting resources, this file was overwritten: "+ innerPath );
+					}
 
-					for ( String innerPath : innerPaths ) {
-						if ( dstPack.contains( innerPath ) ) {
-							log.info( "While extracting resources, this file was overwritten: "+ innerPath );
-							dstPack.remove( innerPath );
-						}
-						is = srcPack.getInputStream( innerPath );
-						dstPack.add( innerPath, is );
+					@Override
+					public void extractionProgress( String innerPath, int done, int total ) {
 					}
+				};
+
+				for ( AbstractPack srcPack : srcPacks ) {
+					extractor.extract( srcPack, dstPack, extractObserver );
 					srcPack.close();
 				}
 			}
@@ -214,9 +238,6 @@ public class SlipstreamCLI {
 				System.exit( 1 );
 			}
 			finally {
-				try {if ( is != null ) is.close();}
-				catch ( IOException ex ) {}
-
 				try {if ( dstPack != null ) dstPack.close();}
 				catch ( IOException ex ) {}
 
@@ -257,6 +278,7 @@ public class SlipstreamCLI {
 
 			SilentPatchObserver patchObserver = new SilentPatchObserver();
 			ModPatchThread patchThread = new ModPatchThread( modFiles, datsDir, backupDir, globalPanic, patchObserver );
+			patchThread.setRebuildDats( slipstreamCmd.rebuildDats );
 			patchThread.setDefaultUncaughtExceptionHandler( exceptionHandler );
 			deleteHook.addWatchedThread( patchThread );
 
@@ -465,9 +487,15 @@ public class SlipstreamCLI {
 		@Option(names = "--extract-dats", paramLabel = "DIR", description = "extract FTL resources into a dir")
 		File extractDatsDir;
 
+		@Option(names = "--jobs", paramLabel = "N", description = "threads to use for 'extract-dats' (default: all cores)")
+		int jobs;
+
 		@Option(names = "--global-panic", description = "patch as if advanced find tags had panic='true'")
 		boolean globalPanic;
 
+		@Option(names = "--rebuild-dats", description = "with 'patch', write new dats from backups, rather than modify in place")
+		boolean rebuildDats;
+
 		@Option(names = "--list-mods", description = "list available mod names")
 		boolean listMods;
 
@@ -1,7 +1,6 @@
 package net.vhati.modmanager.core;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -9,8 +8,8 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import net.vhati.ftldat.PackUtilities;
 import net.vhati.modmanager.core.HashObserver;
+import net.vhati.modmanager.core.ParallelHasher;
 
 
 /**
@@ -34,26 +33,15 @@ public class HashThread extends Thread {
 
 
 	public void run() {
-		for ( File f : fileList ) {
-			String hash = calcFileMD5( f );
-			if ( hash != null ) {
+		ParallelHasher hasher = new ParallelHasher();
+		hasher.hashFiles( fileList, new ParallelHasher.HashListener() {
+			@Override
+			public void hashCalculated( File f, String hash ) {
 				hashObserver.hashCalculated( f, hash );
 			}
-		}
+		});
 
 		log.info( "Background hashing finished." );
 		hashObserver.hashingEnded();
 	}
-
-
-	private String calcFileMD5( File f ) {
-		String result = null;
-		try {
-			result = PackUtilities.calcFileMD5( f );
-		}
-		catch ( Exception e ) {
-			log.error( "Error while calculating hash for file: "+ f.getPath(), e );
-		}
-		return result;
-	}
 }
@@ -1,14 +1,25 @@
 package net.vhati.modmanager.core;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import net.vhati.modmanager.core.ModInfo;
 import net.vhati.modmanager.core.ModsInfo;
 
 
+/**
+ * A catalog of ModInfos, indexed by file hash and by (title, url) series.
+ *
+ * ModInfos shouldn't be modified while in a ModDB, or the indexes will
+ * disagree with them.
+ *
+ * Once frozen, a ModDB is read-only and safe to share between threads.
+ */
 public class ModDB {
 
 	public static final String EXACT = "exact";
@@ -19,6 +30,14 @@ public class ModDB {
 
 	private List<ModInfo> catalog = new ArrayList<ModInfo>();
 
+	// The first ModInfo in the catalog with each fileHash.
+	private Map<String,ModInfo> hashIndex = new HashMap<String,ModInfo>();
+
+	// ModInfos sharing a title and url, in catalog order.
+	private Map<SeriesKey,List<ModInfo>> seriesIndex = new HashMap<SeriesKey,List<ModInfo>>();
+
+	private volatile boolean frozen = false;
+
 
 	public ModDB() {
 	}
@@ -26,11 +45,32 @@ public class ModDB {
 	/**
 	 * Constructs a shallow copy of an existing ModDB.
 	 *
-	 * Different catalog list, same ModInfos.
+	 * Different catalog list, same ModInfos. The copy isn't frozen.
 	 */
 	public ModDB( ModDB srcDB ) {
 		threadHashMap.putAll( srcDB.getThreadHashMap() );
-		catalog.addAll( srcDB.getCatalog() );
+		for ( ModInfo modInfo : srcDB.getCatalog() ) {
+			addMod( modInfo );
+		}
+	}
+
+
+	/**
+	 * Makes this ModDB read-only.
+	 *
+	 * Afterward, methods that would modify it throw
+	 * UnsupportedOperationException.
+	 */
+	public void freeze() {
+		frozen = true;
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	private void checkNotFrozen() {
+		if ( frozen ) throw new UnsupportedOperationException( "This ModDB is frozen" );
 	}
 
 
@@ -40,20 +80,50 @@ public class ModDB {
 	public ModInfo getModInfo( String hash ) {
 		if ( hash == null ) return null;
 
-		for ( ModInfo modInfo : catalog ) {
-			if ( modInfo.getFileHash().equals(hash) ) {
-				return modInfo;
-			}
-		}
-		return null;
+		return hashIndex.get( hash );
 	}
 
 	public void addMod( ModInfo modInfo ) {
+		checkNotFrozen();
+
 		catalog.add( modInfo );
+
+		if ( !hashIndex.containsKey( modInfo.getFileHash() ) ) {
+			hashIndex.put( modInfo.getFileHash(), modInfo );
+		}
+
+		SeriesKey key = new SeriesKey( modInfo );
+		List<ModInfo> series = seriesIndex.get( key );
+		if ( series == null ) {
+			series = new ArrayList<ModInfo>( 1 );
+			seriesIndex.put( key, series );
+		}
+		series.add( modInfo );
 	}
 
 	public void removeMod( ModInfo modInfo ) {
-		catalog.remove( modInfo );
+		checkNotFrozen();
+
+		int catalogIndex = catalog.indexOf( modInfo );
+		if ( catalogIndex == -1 ) return;
+		ModInfo removedInfo = catalog.remove( catalogIndex );
+
+		SeriesKey key = new SeriesKey( removedInfo );
+		List<ModInfo> series = seriesIndex.get( key );
+		series.remove( removedInfo );
+		if ( series.isEmpty() ) seriesIndex.remove( key );
+
+		String hash = removedInfo.getFileHash();
+		if ( hashIndex.get( hash ) == removedInfo ) {
+			// Promote the next ModInfo with that hash, if any.
+			hashIndex.remove( hash );
+			for ( ModInfo altInfo : catalog ) {
+				if ( altInfo.getFileHash().equals( hash ) ) {
+					hashIndex.put( hash, altInfo );
+					break;
+				}
+			}
+		}
 	}
 
 
@@ -61,6 +131,7 @@ public class ModDB {
 	 * Stores the first-post content hash of a forum thread.
 	 */
 	public void putThreadHash( String url, String threadHash ) {
+		checkNotFrozen();
 		threadHashMap.put( url, threadHash );
 	}
 
@@ -69,23 +140,31 @@ public class ModDB {
 	}
 
 	public void clear() {
+		checkNotFrozen();
 		threadHashMap.clear();
 		catalog.clear();
+		hashIndex.clear();
+		seriesIndex.clear();
 	}
 
 
 	/**
-	 * Returns the internal Map of forum thread urls and hashes of their first posts' content.
+	 * Returns the Map of forum thread urls and hashes of their first posts' content.
+	 *
+	 * This is the internal map, unless frozen.
 	 */
 	public Map<String,String> getThreadHashMap() {
+		if ( frozen ) return Collections.unmodifiableMap( threadHashMap );
 		return threadHashMap;
 	}
 
 	/**
-	 * Returns the internal List of mod info.
+	 * Returns a read-only view of the List of mod info.
+	 *
+	 * Use addMod() and removeMod() to make changes.
 	 */
 	public List<ModInfo> getCatalog() {
-		return catalog;
+		return Collections.unmodifiableList( catalog );
 	}
 
 
@@ -103,19 +182,18 @@ public class ModDB {
 		resultsMap.put( EXACT, new ArrayList<ModInfo>() );
 		resultsMap.put( FUZZY, new ArrayList<ModInfo>() );
 
-		for ( ModInfo altInfo : catalog ) {
-			if ( altInfo.getTitle().equals( modInfo.getTitle() ) ) {
-				if ( altInfo.getURL().equals( modInfo.getURL() ) ) {
-					boolean exact = true;
+		List<ModInfo> series = seriesIndex.get( new SeriesKey( modInfo ) );
+		if ( series == null ) return resultsMap;
 
-					if ( !altInfo.getDescription().equals( modInfo.getDescription() ) )
-						exact = false;
-					else if ( !altInfo.getAuthor().equals( modInfo.getAuthor() ) )
-						exact = false;
+		for ( ModInfo altInfo : series ) {
+			boolean exact = true;
 
-					resultsMap.get( exact ? EXACT : FUZZY ).add( altInfo );
-				}
-			}
+			if ( !altInfo.getDescription().equals( modInfo.getDescription() ) )
+				exact = false;
+			else if ( !altInfo.getAuthor().equals( modInfo.getAuthor() ) )
+				exact = false;
+
+			resultsMap.get( exact ? EXACT : FUZZY ).add( altInfo );
 		}
 
 		return resultsMap;
@@ -127,11 +205,10 @@ public class ModDB {
 	 */
 	public List<ModsInfo> getCollatedModInfo() {
 		List<ModsInfo> results = new ArrayList<ModsInfo>();
-		List<ModInfo> seenList = new ArrayList<ModInfo>();
+		Set<ModInfo> seenSet = new HashSet<ModInfo>();
 
 		for ( ModInfo modInfo : catalog ) {
-			if ( seenList.contains( modInfo ) ) continue;
-			seenList.add( modInfo );
+			if ( !seenSet.add( modInfo ) ) continue;
 
 			ModsInfo modsInfo = new ModsInfo();
 			modsInfo.setTitle( modInfo.getTitle() );
@@ -146,8 +223,7 @@ public class ModDB {
 
 			Map<String,List<ModInfo>> similarMods = getSimilarMods( modInfo );
 			for ( ModInfo altInfo : similarMods.get( ModDB.EXACT ) ) {
-				if ( seenList.contains( altInfo ) ) continue;
-				seenList.add( altInfo );
+				if ( !seenSet.add( altInfo ) ) continue;
 
 				modsInfo.putVersion( altInfo.getFileHash(), altInfo.getVersion() );
 			}
@@ -157,4 +233,32 @@ public class ModDB {
 
 		return results;
 	}
+
+
+
+	/**
+	 * A (title, url) pair identifying a series of mod revisions.
+	 */
+	private static class SeriesKey {
+		private final String title;
+		private final String url;
+
+		public SeriesKey( ModInfo modInfo ) {
+			this.title = modInfo.getTitle();
+			this.url = modInfo.getURL();
+		}
+
+		@Override
+		public boolean equals( Object o ) {
+			if ( o == this ) return true;
+			if ( o instanceof SeriesKey == false ) return false;
+			SeriesKey other = (SeriesKey)o;
+			return ( title.equals( other.title ) && url.equals( other.url ) );
+		}
+
+		@Override
+		public int hashCode() {
+			return title.hashCode() * 31 + url.hashCode();
+		}
+	}
 }
@@ -0,0 +1,298 @@
+package net.vhati.modmanager.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.vhati.modmanager.core.ModDB;
+import net.vhati.modmanager.core.ModInfo;
+
+
+/**
+ * Reads and writes a binary copy of a ModDB, to skip parsing json.
+ *
+ * Snapshots are small, so they're read whole into a heap buffer rather
+ * than mapped. A mapping would outlive read() until garbage collected, and
+ * Windows won't replace a file while it's mapped.
+ *
+ * The json a snapshot was made from remains the source of truth. A
+ * snapshot records that file's length, mtime, and ETag (if any), and is
+ * ignored once they no longer match.
+ *
+ * Layout (big-endian):
+ *   int magic, int format version
+ *   long source length, long source mtime
+ *   int ETag string index (-1 for none)
+ *   int string count, int mod count, int thread hash count
+ *   mod records: int[6] string indexes
+ *     (title, author, url, description, fileHash, version)
+ *   thread hash records: int[2] string indexes (url, threadHash)
+ *   string offsets: int[string count + 1], relative to the string data
+ *   string data: UTF-8 bytes
+ *
+ * Each distinct string is stored once. Most appear in several records,
+ * since every version of a mod repeats its title, author, etc.
+ */
+public class ModDBSnapshot {
+
+	private static final int MAGIC = 0x534D4442;  // "SMDB"
+	private static final int FORMAT_VERSION = 1;
+
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 4 + 4;
+	private static final int MOD_FIELDS = 6;
+	private static final int THREAD_FIELDS = 2;
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+
+	/**
+	 * Reads a snapshot, if it's still current for a source file.
+	 *
+	 * @param snapshotFile a file written by write()
+	 * @param sourceFile the json the snapshot was made from
+	 * @param sourceETag the source's current ETag, or null
+	 * @return a new ModDB, or null if the snapshot is absent or stale
+	 * @throws IOException if the snapshot couldn't be read or is malformed
+	 */
+	public static ModDB read( File snapshotFile, File sourceFile, String sourceETag ) throws IOException {
+		if ( !snapshotFile.exists() || !sourceFile.exists() ) return null;
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile( snapshotFile, "r" );
+			FileChannel channel = raf.getChannel();
+			long fileSize = channel.size();
+			if ( fileSize < HEADER_SIZE || fileSize > Integer.MAX_VALUE ) {
+				throw new IOException( "Bad snapshot size: "+ fileSize );
+			}
+
+			ByteBuffer buf = ByteBuffer.allocate( (int)fileSize );
+			while ( buf.hasRemaining() ) {
+				if ( channel.read( buf ) == -1 ) throw new IOException( "Truncated snapshot" );
+			}
+			buf.flip();
+
+			if ( buf.getInt() != MAGIC ) throw new IOException( "Not a ModDB snapshot" );
+			if ( buf.getInt() != FORMAT_VERSION ) return null;
+
+			long sourceLength = buf.getLong();
+			long sourceModified = buf.getLong();
+			int eTagIndex = buf.getInt();
+			int stringCount = buf.getInt();
+			int modCount = buf.getInt();
+			int threadCount = buf.getInt();
+
+			if ( sourceLength != sourceFile.length() ) return null;
+			if ( sourceModified != sourceFile.lastModified() ) return null;
+
+			if ( stringCount < 0 || modCount < 0 || threadCount < 0 ) {
+				throw new IOException( "Bad snapshot counts" );
+			}
+			long offsetsPos = HEADER_SIZE + 4L * MOD_FIELDS * modCount + 4L * THREAD_FIELDS * threadCount;
+			long dataPos = offsetsPos + 4L * (stringCount + 1);
+			if ( dataPos > fileSize ) throw new IOException( "Truncated snapshot" );
+
+			String[] strings = readStrings( buf, (int)offsetsPos, (int)dataPos, (int)fileSize - (int)dataPos, stringCount );
+
+			String snapshotETag = getString( strings, eTagIndex );
+			if ( sourceETag == null ? snapshotETag != null : !sourceETag.equals( snapshotETag ) ) return null;
+
+			ModDB modDB = new ModDB();
+
+			buf.position( HEADER_SIZE );
+			for ( int i=0; i < modCount; i++ ) {
+				ModInfo modInfo = new ModInfo();
+				modInfo.setTitle( getString( strings, buf.getInt() ) );
+				modInfo.setAuthor( getString( strings, buf.getInt() ) );
+				modInfo.setURL( getString( strings, buf.getInt() ) );
+				modInfo.setDescription( getString( strings, buf.getInt() ) );
+				modInfo.setFileHash( getString( strings, buf.getInt() ) );
+				modInfo.setVersion( getString( strings, buf.getInt() ) );
+				modDB.addMod( modInfo );
+			}
+			for ( int i=0; i < threadCount; i++ ) {
+				String url = getString( strings, buf.getInt() );
+				String threadHash = getString( strings, buf.getInt() );
+				modDB.putThreadHash( url, threadHash );
+			}
+
+			return modDB;
+		}
+		catch ( BufferUnderflowException e ) {
+			throw new IOException( "Truncated snapshot", e );
+		}
+		finally {
+			try {if ( raf != null ) raf.close();}
+			catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Decodes the string table.
+	 */
+	private static String[] readStrings( ByteBuffer buf, int offsetsPos, int dataPos, int dataLength, int stringCount ) throws IOException {
+		byte[] data = new byte[dataLength];
+		buf.position( dataPos );
+		buf.get( data );
+
+		String[] result = new String[stringCount];
+		buf.position( offsetsPos );
+		int start = buf.getInt();
+		for ( int i=0; i < stringCount; i++ ) {
+			int end = buf.getInt();
+			if ( start < 0 || end < start || end > dataLength ) {
+				throw new IOException( "Bad snapshot string offset: "+ end );
+			}
+			result[i] = new String( data, start, end - start, UTF8 );
+			start = end;
+		}
+		return result;
+	}
+
+	private static String getString( String[] strings, int index ) throws IOException {
+		if ( index == -1 ) return null;
+		if ( index < 0 || index >= strings.length ) {
+			throw new IOException( "Bad snapshot string index: "+ index );
+		}
+		return strings[index];
+	}
+
+
+	/**
+	 * Writes a snapshot of a ModDB.
+	 *
+	 * This should be called just after the ModDB was parsed from the source
+	 * (or the source was written), so the source's length and mtime describe
+	 * what the ModDB holds.
+	 *
+	 * @param modDB the ModDB to save
+	 * @param snapshotFile the file to write
+	 * @param sourceFile the json the ModDB was parsed from
+	 * @param sourceETag the source's ETag, or null
+	 */
+	public static void write( ModDB modDB, File snapshotFile, File sourceFile, String sourceETag ) throws IOException {
+		StringTable strings = new StringTable();
+		int eTagIndex = strings.indexOf( sourceETag );
+
+		List<ModInfo> catalog = modDB.getCatalog();
+		Map<String,String> threadHashMap = modDB.getThreadHashMap();
+
+		int recordsSize = 4 * MOD_FIELDS * catalog.size() + 4 * THREAD_FIELDS * threadHashMap.size();
+		ByteBuffer records = ByteBuffer.allocate( recordsSize );
+
+		for ( ModInfo modInfo : catalog ) {
+			records.putInt( strings.indexOf( modInfo.getTitle() ) );
+			records.putInt( strings.indexOf( modInfo.getAuthor() ) );
+			records.putInt( strings.indexOf( modInfo.getURL() ) );
+			records.putInt( strings.indexOf( modInfo.getDescription() ) );
+			records.putInt( strings.indexOf( modInfo.getFileHash() ) );
+			records.putInt( strings.indexOf( modInfo.getVersion() ) );
+		}
+		for ( Map.Entry<String,String> entry : threadHashMap.entrySet() ) {
+			records.putInt( strings.indexOf( entry.getKey() ) );
+			records.putInt( strings.indexOf( entry.getValue() ) );
+		}
+
+		List<byte[]> encodedStrings = new ArrayList<byte[]>( strings.size() );
+		ByteBuffer offsets = ByteBuffer.allocate( 4 * (strings.size() + 1) );
+		int dataLength = 0;
+		offsets.putInt( dataLength );
+		for ( String s : strings.getStrings() ) {
+			byte[] bytes = s.getBytes( UTF8 );
+			encodedStrings.add( bytes );
+			dataLength += bytes.length;
+			offsets.putInt( dataLength );
+		}
+
+		ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+		header.putInt( MAGIC );
+		header.putInt( FORMAT_VERSION );
+		header.putLong( sourceFile.length() );
+		header.putLong( sourceFile.lastModified() );
+		header.putInt( eTagIndex );
+		header.putInt( strings.size() );
+		header.putInt( catalog.size() );
+		header.putInt( threadHashMap.size() );
+
+		// Build the snapshot alongside, then swap it in, so a failed write
+		// can't leave a truncated snapshot behind.
+		File tmpFile = new File( snapshotFile.getAbsoluteFile().getParentFile(), snapshotFile.getName() +".tmp" );
+		FileOutputStream os = null;
+		try {
+			os = new FileOutputStream( tmpFile );
+			FileChannel channel = os.getChannel();
+
+			header.flip();
+			records.flip();
+			offsets.flip();
+			while ( header.hasRemaining() ) channel.write( header );
+			while ( records.hasRemaining() ) channel.write( records );
+			while ( offsets.hasRemaining() ) channel.write( offsets );
+
+			ByteBuffer data = ByteBuffer.allocate( dataLength );
+			for ( byte[] bytes : encodedStrings ) {
+				data.put( bytes );
+			}
+			data.flip();
+			while ( data.hasRemaining() ) channel.write( data );
+
+			os.close();
+			os = null;
+
+			if ( !tmpFile.renameTo( snapshotFile ) ) {
+				// Windows won't rename over an existing file.
+				if ( !snapshotFile.delete() || !tmpFile.renameTo( snapshotFile ) ) {
+					throw new IOException( String.format( "Could not replace \"%s\" with \"%s\"", snapshotFile.getPath(), tmpFile.getPath() ) );
+				}
+			}
+		}
+		finally {
+			try {if ( os != null ) os.close();}
+			catch ( IOException e ) {}
+
+			if ( tmpFile.exists() ) tmpFile.delete();
+		}
+	}
+
+
+
+	/**
+	 * Assigns an index to each distinct string, in order of appearance.
+	 */
+	private static class StringTable {
+		private Map<String,Integer> indexMap = new HashMap<String,Integer>();
+		private List<String> strings = new ArrayList<String>();
+
+		/**
+		 * Returns a string's index, adding it if new, or -1 for null.
+		 */
+		public int indexOf( String s ) {
+			if ( s == null ) return -1;
+
+			Integer index = indexMap.get( s );
+			if ( index == null ) {
+				index = new Integer( strings.size() );
+				indexMap.put( s, index );
+				strings.add( s );
+			}
+			return index.intValue();
+		}
+
+		public List<String> getStrings() {
+			return strings;
+		}
+
+		public int size() {
+			return strings.size();
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package net.vhati.modmanager.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+
+/**
+ * Remembers MD5 hashes of files, keyed by path, length and mtime.
+ *
+ * A file whose length and mtime still match its recorded ones is assumed
+ * unchanged, so its hash can be reused without reading it.
+ *
+ * The file format is one tab-separated line per file:
+ *   hash, length, lastModified, absolute path
+ *
+ * This class is not thread-safe.
+ */
+public class ModHashCache {
+
+	private static final Pattern TAB_PTN = Pattern.compile( "\t" );
+
+	/** Milliseconds after a file's mtime during which its hash isn't cached. */
+	private static final long RACY_WINDOW = 3000;
+
+	private Map<String, CachedHash> pathMap = new HashMap<String, CachedHash>();
+
+
+	public ModHashCache() {
+	}
+
+	/**
+	 * Returns a file's cached hash, or null if it's absent or stale.
+	 *
+	 * @param length the file's current length
+	 * @param lastModified the file's current mtime
+	 */
+	public String getHash( File f, long length, long lastModified ) {
+		CachedHash cached = pathMap.get( f.getAbsolutePath() );
+		if ( cached == null ) return null;
+		if ( cached.length != length || cached.lastModified != lastModified ) return null;
+		return cached.hash;
+	}
+
+	/**
+	 * Records a file's hash.
+	 *
+	 * The length and mtime should be taken before the file was read, so a
+	 * change made while hashing won't be mistaken for the hashed state.
+	 *
+	 * Files modified very recently are forgotten instead. On filesystems with
+	 * coarse mtimes, another edit could follow without changing either.
+	 */
+	public void putHash( File f, long length, long lastModified, String hash ) {
+		if ( Math.abs( System.currentTimeMillis() - lastModified ) < RACY_WINDOW ) {
+			pathMap.remove( f.getAbsolutePath() );
+			return;
+		}
+		pathMap.put( f.getAbsolutePath(), new CachedHash( length, lastModified, hash ) );
+	}
+
+	/**
+	 * Forgets every file.
+	 */
+	public void clear() {
+		pathMap.clear();
+	}
+
+	public int size() {
+		return pathMap.size();
+	}
+
+	/**
+	 * Reads a cache file, replacing this cache's content.
+	 *
+	 * Malformed lines are skipped.
+	 */
+	public void load( File cacheFile ) throws IOException {
+		pathMap.clear();
+
+		BufferedReader br = null;
+		try {
+			FileInputStream is = new FileInputStream( cacheFile );
+			br = new BufferedReader(new InputStreamReader( is, Charset.forName( "UTF-8" ) ));
+
+			String line;
+			while ( (line = br.readLine()) != null ) {
+				String[] chunks = TAB_PTN.split( line, 4 );
+				if ( chunks.length != 4 ) continue;
+
+				try {
+					long length = Long.parseLong( chunks[1] );
+					long lastModified = Long.parseLong( chunks[2] );
+					pathMap.put( chunks[3], new CachedHash( length, lastModified, chunks[0] ) );
+				}
+				catch ( NumberFormatException e ) {
+					continue;
+				}
+			}
+		}
+		finally {
+			try {if ( br != null ) br.close();}
+			catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Writes this cache to a file.
+	 */
+	public void save( File cacheFile ) throws IOException {
+		BufferedWriter bw = null;
+		try {
+			FileOutputStream os = new FileOutputStream( cacheFile );
+			bw = new BufferedWriter(new OutputStreamWriter( os, Charset.forName( "UTF-8" ) ));
+
+			for ( Map.Entry<String, CachedHash> entry : pathMap.entrySet() ) {
+				CachedHash cached = entry.getValue();
+				bw.write( cached.hash );
+				bw.write( "\t" );
+				bw.write( Long.toString( cached.length ) );
+				bw.write( "\t" );
+				bw.write( Long.toString( cached.lastModified ) );
+				bw.write( "\t" );
+				bw.write( entry.getKey() );
+				bw.write( "\r\n" );
+			}
+			bw.flush();
+		}
+		finally {
+			try {if ( bw != null ) bw.close();}
+			catch ( IOException e ) {}
+		}
+	}
+
+
+
+	private static class CachedHash {
+		public final long length;
+		public final long lastModified;
+		public final String hash;
+
+		public CachedHash( long length, long lastModified, String hash ) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+}
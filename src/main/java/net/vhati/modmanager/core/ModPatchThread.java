@@ -4,11 +4,23 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
@@ -21,9 +33,14 @@ import org.slf4j.LoggerFactory;
 
 import net.vhati.ftldat.AbstractPack;
 import net.vhati.ftldat.AbstractPack.RepackResult;
+import net.vhati.ftldat.DirtyRangeJournal;
+import net.vhati.ftldat.FileFingerprint;
 import net.vhati.ftldat.FTLPack;
+import net.vhati.ftldat.OverlayPack;
 import net.vhati.ftldat.PkgPack;
 import net.vhati.ftldat.PackContainer;
+import net.vhati.ftldat.PackContainer.PathAndPack;
+import net.vhati.ftldat.PackIndexCache;
 import net.vhati.ftldat.PackUtilities;
 import net.vhati.modmanager.core.ModPatchObserver;
 import net.vhati.modmanager.core.ModUtilities;
@@ -42,6 +59,7 @@ public class ModPatchThread extends Thread {
 	private File datsDir = null;
 	private File backupDir = null;
 	private boolean globalPanic = false;
+	private boolean rebuildDats = false;
 	private ModPatchObserver observer = null;
 
 	private final int progMax = 100;
@@ -60,6 +78,19 @@ public class ModPatchThread extends Thread {
 		this.observer = observer;
 	}
 
+	/**
+	 * Toggles out-of-place patching.
+	 *
+	 * Normally each dat is restored from its backup, modified in place, then
+	 * repacked. When rebuilding, backups are opened read-only, changes are
+	 * staged aside, and each dat is written anew in one sequential pass.
+	 *
+	 * Call this before starting the thread.
+	 */
+	public void setRebuildDats( boolean b ) {
+		rebuildDats = b;
+	}
+
 
 	public void run() {
 		boolean result;
@@ -109,6 +140,9 @@ public class ModPatchThread extends Thread {
 
 		PackContainer packContainer = null;
 
+		// Dats being modified in place, and journals of what changed.
+		Map<BackedUpDat, DirtyRangeJournal> journalMap = new HashMap<BackedUpDat, DirtyRangeJournal>();
+
 		try {
 			int backupsCreated = 0;
 			int datsClobbered = 0;
@@ -141,6 +175,8 @@ public class ModPatchThread extends Thread {
 					observer.patchingStatus( String.format( "Backing up \"%s\".", bud.datFile.getName() ) );
 
 					PackUtilities.copyFile( bud.datFile, bud.bakFile );
+					bud.bakFile.setLastModified( bud.datFile.lastModified() );
+					getFingerprintFile( bud.datFile ).delete();
 					backupsCreated++;
 					observer.patchingProgress( progMilestone + progBackupMax/backedUpDats.size()*backupsCreated, progMax );
 
@@ -151,36 +187,122 @@ public class ModPatchThread extends Thread {
 			observer.patchingProgress( progMilestone, progMax );
 			observer.patchingStatus( null );
 
-			if ( backupsCreated != backedUpDats.size() ) {
+			// When rebuilding, dats will be written from scratch anyway.
+			boolean rebuilding = ( rebuildDats && !modFiles.isEmpty() );
+
+			if ( backupsCreated != backedUpDats.size() && !rebuilding ) {
 				// Clobber current dat files with their respective backups.
 				// But don't bother if we made those backups just now.
 
-				for ( BackedUpDat bud : backedUpDats ) {
-					log.info( String.format( "Restoring vanilla \"%s\"...", bud.datFile.getName() ) );
-					observer.patchingStatus( String.format( "Restoring vanilla \"%s\"...", bud.datFile.getName() ) );
+				// Each dat is restored on its own thread, since they're
+				// independent files, possibly on different disks.
 
-					PackUtilities.copyFile( bud.bakFile, bud.datFile );
-					datsClobbered++;
-					observer.patchingProgress( progMilestone + progClobberMax/backedUpDats.size()*datsClobbered, progMax );
+				observer.patchingStatus( "Restoring vanilla dats..." );
 
-					if ( !keepRunning ) return false;
+				ExecutorService restoreExecutor = Executors.newFixedThreadPool( backedUpDats.size(), new RestoreThreadFactory() );
+				try {
+					CompletionService<BackedUpDat> restoreService = new ExecutorCompletionService<BackedUpDat>( restoreExecutor );
+
+					for ( final BackedUpDat bud : backedUpDats ) {
+						log.info( String.format( "Restoring vanilla \"%s\"...", bud.datFile.getName() ) );
+
+						restoreService.submit( new Callable<BackedUpDat>() {
+							@Override
+							public BackedUpDat call() throws IOException {
+								restoreDat( bud );
+								return bud;
+							}
+						});
+					}
+
+					// Wait for every restore, even after one fails, so no dat
+					// is still being written when the failure is thrown.
+					Throwable firstFailure = null;
+					boolean interrupted = false;
+					int pendingCount = backedUpDats.size();
+					while ( pendingCount > 0 ) {
+						try {
+							restoreService.take().get();
+							datsClobbered++;
+							observer.patchingProgress( progMilestone + progClobberMax/backedUpDats.size()*datsClobbered, progMax );
+						}
+						catch ( ExecutionException e ) {
+							if ( firstFailure == null ) firstFailure = e.getCause();
+						}
+						catch ( InterruptedException e ) {
+							// Keep waiting. The restores can't be safely abandoned.
+							interrupted = true;
+							continue;
+						}
+						pendingCount--;
+					}
+
+					if ( interrupted ) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException( "Interrupted while restoring dats" );
+					}
+					if ( firstFailure instanceof IOException ) throw (IOException)firstFailure;
+					if ( firstFailure instanceof RuntimeException ) throw (RuntimeException)firstFailure;
+					if ( firstFailure instanceof Error ) throw (Error)firstFailure;
+					if ( firstFailure != null ) throw new IOException( "Failed to restore dat", firstFailure );
+				}
+				finally {
+					// Restores aren't interrupted. That would abort a transferTo()
+					// and leave the dat half-written.
+					restoreExecutor.shutdown();
+
+					boolean interrupted = false;
+					while ( !restoreExecutor.isTerminated() ) {
+						try {
+							restoreExecutor.awaitTermination( 1, TimeUnit.SECONDS );
+						}
+						catch ( InterruptedException e ) {
+							interrupted = true;
+						}
+					}
+					if ( interrupted ) Thread.currentThread().interrupt();
 				}
 				observer.patchingStatus( null );
+
+				if ( !keepRunning ) return false;
 			}
 			progMilestone += progClobberMax;
 			observer.patchingProgress( progMilestone, progMax );
 
+			// Any journal from a previous patch is stale now.
+			for ( BackedUpDat bud : backedUpDats ) {
+				getJournalFile( bud.datFile ).delete();
+			}
+
 			if ( modFiles.isEmpty() ) {
-				// No mods. Nothing else to do.
+				// No mods. Dats match their backups, so the next restore is free.
+				for ( BackedUpDat bud : backedUpDats ) {
+					saveJournal( bud, new DirtyRangeJournal( bud.bakFile.length() ) );
+				}
+
+				// Nothing else to do.
 				observer.patchingProgress( progMax, progMax );
 				return true;
 			}
 
 			String ultimateEncoding = null;
 
+			// Rebuilt packs, and the dats they'll replace.
+			Map<AbstractPack, File> rebuildTargets = new HashMap<AbstractPack, File>();
+
 			packContainer = new PackContainer();
 			if ( ftlDatFile.exists() ) {  // FTL 1.6.1.
-				AbstractPack ftlPack = new PkgPack( ftlDatFile, "r+" );
+				AbstractPack ftlPack;
+				if ( rebuilding ) {
+					ftlPack = openOverlayPack( ftlDatFile, backedUpDats );
+					rebuildTargets.put( ftlPack, ftlDatFile );
+				}
+				else {
+					PkgPack ftlPkgPack = new PkgPack( ftlDatFile, "r+", getIndexCache( ftlDatFile ) );
+					ftlPkgPack.setWriteJournal( createJournal( ftlDatFile, backedUpDats, journalMap ) );
+					ftlPkgPack.beginWriteSession();  // Write the index once, after all mods.
+					ftlPack = ftlPkgPack;
+				}
 
 				packContainer.setPackFor( "audio/", ftlPack );
 				packContainer.setPackFor( "data/", ftlPack );
@@ -192,10 +314,26 @@ public class ModPatchThread extends Thread {
 				ultimateEncoding = "UTF-8";
 			}
 			else if ( dataDatFile.exists() && resourceDatFile.exists() ) {  // FTL 1.01-1.5.13.
-				AbstractPack dataPack = new FTLPack( dataDatFile, "r+" );
+				AbstractPack dataPack;
+				AbstractPack resourcePack;
+				if ( rebuilding ) {
+					dataPack = openOverlayPack( dataDatFile, backedUpDats );
+					rebuildTargets.put( dataPack, dataDatFile );
+
+					resourcePack = openOverlayPack( resourceDatFile, backedUpDats );
+					rebuildTargets.put( resourcePack, resourceDatFile );
+				}
+				else {
+					FTLPack dataFTLPack = new FTLPack( dataDatFile, "r+", getIndexCache( dataDatFile ) );
+					dataFTLPack.setWriteJournal( createJournal( dataDatFile, backedUpDats, journalMap ) );
+					dataPack = dataFTLPack;
+
+					FTLPack resourceFTLPack = new FTLPack( resourceDatFile, "r+", getIndexCache( resourceDatFile ) );
+					resourceFTLPack.setWriteJournal( createJournal( resourceDatFile, backedUpDats, journalMap ) );
+					resourcePack = resourceFTLPack;
+				}
 				packContainer.setPackFor( "data/", dataPack );
 
-				AbstractPack resourcePack = new FTLPack( resourceDatFile, "r+" );
 				packContainer.setPackFor( "audio/", resourcePack );
 				packContainer.setPackFor( "fonts/", resourcePack );
 				packContainer.setPackFor( "img/", resourcePack );
@@ -208,17 +346,9 @@ public class ModPatchThread extends Thread {
 			packContainer.setPackFor( "mod-appendix/", null );
 
 			// Track modified innerPaths in case they're clobbered.
-			List<String> moddedItems = new ArrayList<String>();
-
-			List<String> knownPaths = new ArrayList<String>();
-			for ( AbstractPack pack : packContainer.getPacks() ) {
-				knownPaths.addAll( pack.list() );
-			}
+			Set<String> moddedItems = new HashSet<String>();
 
-			List<String> knownPathsLower = new ArrayList<String>( knownPaths.size() );
-			for ( String innerPath : knownPaths ) {
-				knownPathsLower.add( innerPath.toLowerCase() );
-			}
+			packContainer.indexPaths();
 
 			List<String> knownRoots = packContainer.getRoots();
 
@@ -277,7 +407,7 @@ public class ModPatchThread extends Thread {
 
 						if ( fileName.endsWith( ".xml.append" ) || fileName.endsWith( ".append.xml" ) ) {
 							innerPath = parentPath + fileName.replaceAll( "[.](?:xml[.]append|append[.]xml)$", ".xml" );
-							innerPath = checkCase( innerPath, knownPaths, knownPathsLower );
+							innerPath = checkCase( innerPath, pack, packContainer );
 
 							if ( !pack.contains( innerPath ) ) {
 								log.warn( String.format( "Non-existent innerPath wasn't appended: %s", innerPath ) );
@@ -303,7 +433,7 @@ public class ModPatchThread extends Thread {
 						}
 						else if ( fileName.endsWith( ".xml.rawappend" ) || fileName.endsWith( ".rawappend.xml" ) ) {
 							innerPath = parentPath + fileName.replaceAll( "[.](?:xml[.]rawappend|rawappend[.]xml)$", ".xml" );
-							innerPath = checkCase( innerPath, knownPaths, knownPathsLower );
+							innerPath = checkCase( innerPath, pack, packContainer );
 
 							if ( !pack.contains( innerPath ) ) {
 								log.warn( String.format( "Non-existent innerPath wasn't raw appended: %s", innerPath ) );
@@ -330,7 +460,7 @@ public class ModPatchThread extends Thread {
 						}
 						else if ( fileName.endsWith( ".xml.rawclobber" ) || fileName.endsWith( ".rawclobber.xml" ) ) {
 							innerPath = parentPath + fileName.replaceAll( "[.](?:xml[.]rawclobber|rawclobber[.]xml)$", ".xml" );
-							innerPath = checkCase( innerPath, knownPaths, knownPathsLower );
+							innerPath = checkCase( innerPath, pack, packContainer );
 
 							log.warn( String.format( "Copying xml as raw text: %s", innerPath ) );
 
@@ -352,7 +482,7 @@ public class ModPatchThread extends Thread {
 							pack.add( innerPath, fixedStream );
 						}
 						else if ( fileName.endsWith( ".xml" ) ) {
-							innerPath = checkCase( innerPath, knownPaths, knownPathsLower );
+							innerPath = checkCase( innerPath, pack, packContainer );
 
 							InputStream fixedStream = ModUtilities.rebuildXMLFile( zis, ultimateEncoding, modFile.getName()+":"+parentPath+fileName );
 
@@ -367,7 +497,7 @@ public class ModPatchThread extends Thread {
 							pack.add( innerPath, fixedStream );
 						}
 						else if ( fileName.endsWith( ".txt" ) ) {
-							innerPath = checkCase( innerPath, knownPaths, knownPathsLower );
+							innerPath = checkCase( innerPath, pack, packContainer );
 
 							// Normalize line endings for other text files to CR-LF.
 							//   decodeText() reads anything and returns an LF string.
@@ -387,7 +517,7 @@ public class ModPatchThread extends Thread {
 							pack.add( innerPath, fixedStream );
 						}
 						else {
-							innerPath = checkCase( innerPath, knownPaths, knownPathsLower );
+							innerPath = checkCase( innerPath, pack, packContainer );
 
 							if ( !moddedItems.contains( innerPath ) ) {
 								moddedItems.add( innerPath );
@@ -421,12 +551,28 @@ public class ModPatchThread extends Thread {
 
 			// Prune 'removed' files from dats.
 			for ( AbstractPack pack : packContainer.getPacks() ) {
+				if ( pack instanceof OverlayPack ) {
+					File datFile = rebuildTargets.get( pack );
+					log.info( String.format( "Rebuilding \"%s\"...", datFile.getName() ) );
+					observer.patchingStatus( String.format( "Rebuilding \"%s\"...", datFile.getName() ) );
+
+					((OverlayPack)pack).materialize( datFile );
+
+					datsRepacked++;
+					observer.patchingProgress( progMilestone + progRepackMax/backedUpDats.size()*datsRepacked, progMax );
+					continue;
+				}
+
 				observer.patchingStatus( String.format( "Repacking \"%s\"...", pack.getName() ) );
 
+				if ( pack instanceof PkgPack && ((PkgPack)pack).isWriteSessionActive() ) {
+					((PkgPack)pack).commitWriteSession();
+				}
+
 				AbstractPack.RepackResult repackResult = pack.repack();
 				if ( repackResult != null ) {
 					long bytesChanged = repackResult.bytesChanged;
-					log.info( String.format( "Repacked \"%s\" (%d bytes affected)", pack.getName(), bytesChanged ) );
+					log.info( String.format( "Repacked \"%s\" (%d bytes affected, %d of %d planned data bytes moved)", pack.getName(), bytesChanged, repackResult.bytesMoved, repackResult.bytesPlanned ) );
 				}
 
 				datsRepacked++;
@@ -445,34 +591,175 @@ public class ModPatchThread extends Thread {
 					catch( Exception e ) {}
 				}
 			}
+
+			// Even if patching failed, the journals saw every write.
+			for ( Map.Entry<BackedUpDat, DirtyRangeJournal> entry : journalMap.entrySet() ) {
+				saveJournal( entry.getKey(), entry.getValue() );
+			}
+		}
+	}
+
+	/**
+	 * Puts a dat back the way its backup is.
+	 *
+	 * If a journal from the last patch is still valid, only the byte ranges
+	 * it recorded are copied. Otherwise the whole dat is copied and checked.
+	 */
+	private void restoreDat( BackedUpDat bud ) throws IOException {
+		FileFingerprint bakPrint = getBackupFingerprint( bud );
+		if ( bakPrint.matches( FileFingerprint.calculate( bud.datFile ) ) ) {
+			log.debug( String.format( "Skipping restore of \"%s\", which already matches its backup", bud.datFile.getName() ) );
+			return;
+		}
+
+		DirtyRangeJournal journal = DirtyRangeJournal.load( getJournalFile( bud.datFile ), bud.bakFile, bud.datFile );
+		if ( journal != null ) {
+			log.debug( String.format( "Restoring %d changed bytes of \"%s\" from journal", journal.getDirtyBytes(), bud.datFile.getName() ) );
+			journal.restore( bud.bakFile, bud.datFile );
+		}
+		else {
+			PackUtilities.copyFileVerified( bud.bakFile, bud.datFile );
+		}
+
+		// Keep the backup's mtime, so its cached index still matches.
+		bud.datFile.setLastModified( bud.bakFile.lastModified() );
+	}
+
+	/**
+	 * Returns the fingerprint of a dat's backup.
+	 *
+	 * It's saved alongside the backup, and recalculated if the backup's
+	 * length or mtime no longer agree with it.
+	 */
+	private FileFingerprint getBackupFingerprint( BackedUpDat bud ) throws IOException {
+		File printFile = getFingerprintFile( bud.datFile );
+
+		FileFingerprint result = FileFingerprint.load( printFile );
+		if ( result == null || !result.isCurrentFor( bud.bakFile ) ) {
+			result = FileFingerprint.calculate( bud.bakFile );
+			try {
+				result.save( printFile );
+			}
+			catch ( IOException e ) {
+				log.warn( String.format( "Could not save fingerprint for \"%s\"", bud.bakFile.getName() ), e );
+				printFile.delete();
+			}
+		}
+		return result;
+	}
+
+	private File getFingerprintFile( File datFile ) {
+		return new File( backupDir, datFile.getName() +".fingerprint" );
+	}
+
+	/**
+	 * Returns a new journal to record changes to a dat, which must currently
+	 * match its backup.
+	 */
+	private DirtyRangeJournal createJournal( File datFile, List<BackedUpDat> backedUpDats, Map<BackedUpDat, DirtyRangeJournal> journalMap ) throws IOException {
+		for ( BackedUpDat bud : backedUpDats ) {
+			if ( !bud.datFile.equals( datFile ) ) continue;
+
+			DirtyRangeJournal journal = new DirtyRangeJournal( bud.bakFile.length() );
+			journalMap.put( bud, journal );
+			return journal;
+		}
+		throw new IOException( "No backup to journal against: "+ datFile.getName() );
+	}
+
+	/**
+	 * Writes a dat's journal alongside its backup.
+	 *
+	 * Failure is only logged. Without a journal, the next restore will
+	 * simply copy the whole dat.
+	 */
+	private void saveJournal( BackedUpDat bud, DirtyRangeJournal journal ) {
+		File journalFile = getJournalFile( bud.datFile );
+		try {
+			journal.save( journalFile, bud.bakFile, bud.datFile );
+		}
+		catch ( IOException e ) {
+			log.warn( String.format( "Could not save journal for \"%s\"", bud.datFile.getName() ), e );
+			journalFile.delete();
 		}
 	}
 
+	private File getJournalFile( File datFile ) {
+		return new File( backupDir, datFile.getName() +".journal" );
+	}
+
+
+	/**
+	 * Returns a sidecar cache for the parsed index of a vanilla dat.
+	 *
+	 * The cache lives alongside the backups. It's only valid for an exact
+	 * copy of the backup, which is what restored dats are, at first.
+	 */
+	private PackIndexCache getIndexCache( File datFile ) {
+		return new PackIndexCache( new File( backupDir, datFile.getName() +".idx" ) );
+	}
+
+	/**
+	 * Opens a dat's backup read-only, under an overlay to stage changes.
+	 *
+	 * The delta goes to a temporary file alongside the backups, since mods
+	 * can add a lot of data.
+	 */
+	private OverlayPack openOverlayPack( File datFile, List<BackedUpDat> backedUpDats ) throws IOException {
+		File bakFile = null;
+		for ( BackedUpDat bud : backedUpDats ) {
+			if ( bud.datFile.equals( datFile ) ) bakFile = bud.bakFile;
+		}
+		if ( bakFile == null ) throw new IOException( "No backup to rebuild from: "+ datFile.getName() );
+
+		File deltaFile = new File( backupDir, datFile.getName() +".delta" );
+
+		// The backup may be replaced in a later session, so only map it if
+		// the mapping can be released promptly.
+		boolean mapBase = PackUtilities.isUnmapSupported();
+
+		AbstractPack basePack;
+		if ( datFile.getName().equals( "ftl.dat" ) ) {
+			PkgPack basePkgPack = new PkgPack( bakFile, "r", getIndexCache( datFile ) );
+			basePkgPack.setMemoryMapped( mapBase );
+			basePack = basePkgPack;
+		}
+		else {
+			FTLPack baseFTLPack = new FTLPack( bakFile, "r", getIndexCache( datFile ) );
+			baseFTLPack.setMemoryMapped( mapBase );
+			basePack = baseFTLPack;
+		}
+
+		try {
+			return new OverlayPack( basePack, deltaFile );
+		}
+		catch ( IOException e ) {
+			try {basePack.close();}
+			catch ( IOException f ) {}
+			throw e;
+		}
+	}
 
 	/**
 	 * Checks if an innerPath exists, ignoring letter case.
 	 *
-	 * If there is no collision, the innerPath is added to the known lists.
-	 * A warning will be logged if a path with differing case exists.
+	 * If there is no collision, the innerPath is added to the container's
+	 * index. A warning will be logged if a path with differing case exists.
 	 *
-	 * @param knownPaths a list of innerPaths seen so far
-	 * @param knownPathsLower a copy of knownPaths, lower-cased
+	 * @param pack the pack innerPath will be written to
+	 * @param packContainer a container whose paths have been indexed
 	 * @return the existing path (if different), or innerPath
 	 */
-	private String checkCase( String innerPath, List<String> knownPaths, List<String> knownPathsLower ) {
-		if ( knownPaths.contains( innerPath ) ) return innerPath;
-
-		String lowerPath = innerPath.toLowerCase();
-		int lowerIndex = knownPathsLower.indexOf( lowerPath );
-		if ( lowerIndex != -1 ) {
-			String knownPath = knownPaths.get( lowerIndex );
-			log.warn( String.format( "Modded file's case doesn't match existing path: \"%s\" vs \"%s\"", innerPath, knownPath ) );
-			return knownPath;
+	private String checkCase( String innerPath, AbstractPack pack, PackContainer packContainer ) {
+		PathAndPack known = packContainer.getIndexedPath( innerPath );
+		if ( known == null ) {
+			packContainer.addIndexedPath( innerPath, pack );
+			return innerPath;
 		}
+		if ( known.path.equals( innerPath ) ) return innerPath;
 
-		knownPaths.add( innerPath );
-		knownPathsLower.add( lowerPath );
-		return innerPath;
+		log.warn( String.format( "Modded file's case doesn't match existing path: \"%s\" vs \"%s\"", innerPath, known.path ) );
+		return known.path;
 	}
 
 
@@ -481,4 +768,20 @@ public class ModPatchThread extends Thread {
 		public File datFile = null;
 		public File bakFile = null;
 	}
+
+
+
+	/**
+	 * Creates named daemon threads, so stray restores can't stall JVM exit.
+	 */
+	private static class RestoreThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadNumber = new AtomicInteger( 1 );
+
+		@Override
+		public Thread newThread( Runnable r ) {
+			Thread t = new Thread( r, "Restore-"+ threadNumber.getAndIncrement() );
+			t.setDaemon( true );
+			return t;
+		}
+	}
 }
@@ -43,6 +43,8 @@ import org.jdom2.input.SAXBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.vhati.ftldat.ZipPack;
+import net.vhati.ftldat.ZipPack.ZipPackEntry;
 import net.vhati.modmanager.core.EmptyAwareSAXHandlerFactory;
 import net.vhati.modmanager.core.EOLWriter;
 import net.vhati.modmanager.core.Report;
@@ -1152,11 +1154,35 @@ public class ModUtilities {
 	 * Presumably, this time is measured in milliseconds since the
 	 * epoch (00:00:00 GMT, January 1, 1970).
 	 *
+	 * Times are taken from the zip's central directory, without inflating
+	 * anything. If that can't be read, entries are scanned in sequence.
+	 *
 	 * @see java.util.zip.ZipEntry#getTime()
 	 */
 	public static long getModFileTime( File modFile ) throws IOException {
 		long result = -1;
 
+		ZipPack zipPack = null;
+		try {
+			zipPack = new ZipPack( modFile );
+		}
+		catch ( IOException e ) {
+			log.debug( String.format( "Scanning \"%s\" sequentially for timestamps: %s", modFile.getName(), e.getMessage() ) );
+		}
+		if ( zipPack != null ) {
+			try {
+				for ( ZipPackEntry entry : zipPack.listMetadata() ) {
+					long n = entry.getTime();
+					if ( n > result ) result = n;
+				}
+				return result;
+			}
+			finally {
+				try {zipPack.close();}
+				catch ( IOException e ) {}
+			}
+		}
+
 		ZipInputStream zis = null;
 		try {
 			zis = new ZipInputStream( new FileInputStream( modFile ) );
@@ -1,21 +1,23 @@
 package net.vhati.modmanager.core;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import net.vhati.ftldat.PackUtilities;
 import net.vhati.modmanager.core.ModDB;
+import net.vhati.modmanager.core.ModHashCache;
 import net.vhati.modmanager.core.ModInfo;
 import net.vhati.modmanager.core.ModsScanObserver;
+import net.vhati.modmanager.core.ParallelHasher;
 import net.vhati.modmanager.xml.JDOMModMetadataReader;
 
 
@@ -31,12 +33,23 @@ public class ModsScanThread extends Thread {
 
 	private List<File> fileList = new ArrayList<File>();
 	private ModDB newDB;
+	private File hashCacheFile = null;
 	private ModsScanObserver scanObserver;
 
 
 	public ModsScanThread( File[] files, ModDB knownDB, ModsScanObserver scanObserver ) {
+		this( files, knownDB, null, scanObserver );
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param hashCacheFile a file to remember hashes in between scans, or null
+	 */
+	public ModsScanThread( File[] files, ModDB knownDB, File hashCacheFile, ModsScanObserver scanObserver ) {
 		this.fileList.addAll( Arrays.asList( files ) );
 		this.newDB = new ModDB( knownDB );
+		this.hashCacheFile = hashCacheFile;
 		this.scanObserver = scanObserver;
 	}
 
@@ -44,15 +57,63 @@ public class ModsScanThread extends Thread {
 	public void run() {
 		Map<File,String> hashMap = new HashMap<File,String>();
 
+		ModHashCache hashCache = new ModHashCache();
+		if ( hashCacheFile != null && hashCacheFile.exists() ) {
+			try {
+				hashCache.load( hashCacheFile );
+			}
+			catch ( IOException e ) {
+				log.warn( String.format( "Error reading \"%s\"", hashCacheFile.getName() ), e );
+				hashCache.clear();
+			}
+		}
+
+		// Reuse hashes of unchanged files. Only stat them.
+		Map<File,long[]> statMap = new HashMap<File,long[]>();
+		List<File> staleFiles = new ArrayList<File>();
 		for ( File f : fileList ) {
-			String hash = calcFileMD5( f );
+			long length = f.length();
+			long lastModified = f.lastModified();
+			statMap.put( f, new long[] {length, lastModified} );
+
+			String hash = hashCache.getHash( f, length, lastModified );
 			if ( hash != null ) {
 				hashMap.put( f, hash );
 				scanObserver.hashCalculated( f, hash );
 			}
+			else {
+				staleFiles.add( f );
+			}
 		}
+		log.debug( String.format( "Reused %d cached mod hashes, %d to calculate", hashMap.size(), staleFiles.size() ) );
+
+		ParallelHasher hasher = new ParallelHasher();
+		hashMap.putAll( hasher.hashFiles( staleFiles, new ParallelHasher.HashListener() {
+			@Override
+			public void hashCalculated( File f, String hash ) {
+				scanObserver.hashCalculated( f, hash );
+			}
+		}) );
 		log.info( "Background hashing finished." );
 
+		if ( hashCacheFile != null ) {
+			// Only remember files that are still around.
+			hashCache.clear();
+			for ( File f : fileList ) {
+				String hash = hashMap.get( f );
+				if ( hash == null ) continue;
+
+				long[] stat = statMap.get( f );
+				hashCache.putHash( f, stat[0], stat[1], hash );
+			}
+			try {
+				hashCache.save( hashCacheFile );
+			}
+			catch ( IOException e ) {
+				log.warn( String.format( "Error writing \"%s\"", hashCacheFile.getName() ), e );
+			}
+		}
+
 		// Cache info about new files.
 		for ( File f : fileList ) {
 			String fileHash = hashMap.get( f );
@@ -66,26 +127,22 @@ public class ModsScanThread extends Thread {
 			}
 		}
 		// Prune info about absent files.
-		for ( Iterator<ModInfo> it = newDB.getCatalog().iterator(); it.hasNext(); ) {
-			ModInfo modInfo = it.next();
-			if ( !hashMap.containsValue( modInfo.getFileHash() ) )
-				it.remove();
+		Set<String> presentHashes = new HashSet<String>( hashMap.values() );
+		List<ModInfo> absentMods = new ArrayList<ModInfo>();
+		for ( ModInfo modInfo : newDB.getCatalog() ) {
+			if ( !presentHashes.contains( modInfo.getFileHash() ) )
+				absentMods.add( modInfo );
+		}
+		for ( ModInfo modInfo : absentMods ) {
+			newDB.removeMod( modInfo );
 		}
-		scanObserver.localModDBUpdated( new ModDB( newDB ) );
+
+		// Nothing will change it after this, so it can be handed off as-is.
+		newDB.freeze();
+		scanObserver.localModDBUpdated( newDB );
 		log.info( "Background metadata caching finished." );
 
 		scanObserver.modsScanEnded();
 	}
 
-
-	private String calcFileMD5( File f ) {
-		String result = null;
-		try {
-			result = PackUtilities.calcFileMD5( f );
-		}
-		catch ( Exception e ) {
-			log.error( "Error while calculating hash for file: "+ f.getPath(), e );
-		}
-		return result;
-	}
 }
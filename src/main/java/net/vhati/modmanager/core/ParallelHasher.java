@@ -0,0 +1,164 @@
+package net.vhati.modmanager.core;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.vhati.ftldat.PackUtilities;
+
+
+/**
+ * Calculates MD5 hashes of files on a pool of worker threads.
+ *
+ * By default, there's one worker per processor, but no more than
+ * MAX_DEFAULT_JOBS. Java can't tell whether files are on a spinning disk,
+ * where many concurrent readers would just seek back and forth, so the
+ * cap keeps that case from getting slower than hashing serially.
+ *
+ * Workers inherit the priority of the thread that calls hashFiles().
+ */
+public class ParallelHasher {
+
+	private static final Logger log = LoggerFactory.getLogger( ParallelHasher.class );
+
+	public static final int MAX_DEFAULT_JOBS = 4;
+
+	private int jobs;
+
+
+	/**
+	 * Constructs a hasher with a default number of workers.
+	 */
+	public ParallelHasher() {
+		this( Math.min( Runtime.getRuntime().availableProcessors(), MAX_DEFAULT_JOBS ) );
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param jobs the maximum number of worker threads (at least 1)
+	 */
+	public ParallelHasher( int jobs ) {
+		if ( jobs < 1 ) throw new IllegalArgumentException( "Job count must be at least 1: "+ jobs );
+		this.jobs = jobs;
+	}
+
+	public int getJobs() {
+		return jobs;
+	}
+
+	/**
+	 * Hashes files, notifying a listener as each finishes.
+	 *
+	 * Files that can't be hashed are logged and left out of the result.
+	 * If the calling thread is interrupted, unfinished files are abandoned.
+	 *
+	 * @param listener a callback to notify from the calling thread, or null
+	 * @return a map of files to lowercase hexadecimal MD5 hashes
+	 */
+	public Map<File, String> hashFiles( List<File> files, HashListener listener ) {
+		Map<File, String> result = new HashMap<File, String>();
+		if ( files.isEmpty() ) return result;
+
+		int workerCount = Math.min( jobs, files.size() );
+		ExecutorService executor = Executors.newFixedThreadPool( workerCount, new HashThreadFactory( Thread.currentThread().getPriority() ) );
+		try {
+			CompletionService<HashResult> hashService = new ExecutorCompletionService<HashResult>( executor );
+
+			for ( final File f : files ) {
+				hashService.submit( new Callable<HashResult>() {
+					@Override
+					public HashResult call() {
+						String hash = null;
+						try {
+							hash = PackUtilities.calcFileMD5( f );
+						}
+						catch ( Exception e ) {
+							log.error( "Error while calculating hash for file: "+ f.getPath(), e );
+						}
+						return new HashResult( f, hash );
+					}
+				});
+			}
+
+			for ( int i=0; i < files.size(); i++ ) {
+				HashResult hashResult;
+				try {
+					hashResult = hashService.take().get();
+				}
+				catch ( ExecutionException e ) {
+					log.error( "Error while calculating hash", e.getCause() );
+					continue;
+				}
+				if ( hashResult.hash == null ) continue;
+
+				result.put( hashResult.file, hashResult.hash );
+				if ( listener != null ) listener.hashCalculated( hashResult.file, hashResult.hash );
+			}
+		}
+		catch ( InterruptedException e ) {
+			log.warn( "Hashing was interrupted" );
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		return result;
+	}
+
+
+
+	/**
+	 * Receives hashes as they're calculated.
+	 */
+	public static interface HashListener {
+		public void hashCalculated( File f, String hash );
+	}
+
+
+
+	private static class HashResult {
+		public final File file;
+		public final String hash;
+
+		public HashResult( File file, String hash ) {
+			this.file = file;
+			this.hash = hash;
+		}
+	}
+
+
+
+	/**
+	 * Creates named daemon threads, so stray workers can't stall JVM exit.
+	 */
+	private static class HashThreadFactory implements ThreadFactory {
+		private final int priority;
+		private final AtomicInteger threadNumber = new AtomicInteger( 1 );
+
+		public HashThreadFactory( int priority ) {
+			this.priority = priority;
+		}
+
+		@Override
+		public Thread newThread( Runnable r ) {
+			Thread t = new Thread( r, "Hash-"+ threadNumber.getAndIncrement() );
+			t.setDaemon( true );
+			t.setPriority( priority );
+			return t;
+		}
+	}
+}
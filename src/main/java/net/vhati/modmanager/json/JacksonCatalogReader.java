@@ -2,13 +2,14 @@ package net.vhati.modmanager.json;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
-import com.fasterxml.jackson.annotation.PropertyAccessor;
-import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonToken;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,6 +18,13 @@ import net.vhati.modmanager.core.ModDB;
 import net.vhati.modmanager.core.ModInfo;
 
 
+/**
+ * Reads a catalog json file into a ModDB.
+ *
+ * The file is read as a stream of tokens, adding ModInfos as each entry
+ * ends, without building a tree of the whole document. Unrecognized fields
+ * are skipped.
+ */
 public class JacksonCatalogReader {
 
 	private static final Logger log = LoggerFactory.getLogger( JacksonCatalogReader.class );
@@ -25,33 +33,23 @@ public class JacksonCatalogReader {
 	public static ModDB parse( File jsonFile ) {
 
 		Exception exception = null;
+		JsonParser parser = null;
 		try {
 			ModDB modDB = new ModDB();
 
-			ObjectMapper mapper = new ObjectMapper();
-			mapper.configure( JsonParser.Feature.ALLOW_SINGLE_QUOTES, true );
-			mapper.setVisibility( PropertyAccessor.FIELD, Visibility.ANY );
-
-			JsonNode rootNode = mapper.readTree( jsonFile );
-			JsonNode catalogsNode = rootNode.get( "catalog_versions" );
-			JsonNode catalogNode = catalogsNode.get( "1" );
-
-			for ( JsonNode infoNode : catalogNode ) {
-				String threadURL = infoNode.get( "url" ).textValue();
-				String threadHash = infoNode.get( "thread_hash" ).textValue();
-				if ( !"???".equals( threadURL ) && !"???".equals( threadHash ) )
-					modDB.putThreadHash( threadURL, threadHash );
-
-				JsonNode versionsNode = infoNode.get( "versions" );
-				for ( JsonNode versionNode : versionsNode ) {
-					ModInfo modInfo = new ModInfo();
-					modInfo.setTitle( infoNode.get( "title" ).textValue() );
-					modInfo.setAuthor( infoNode.get( "author" ).textValue() );
-					modInfo.setURL( infoNode.get( "url" ).textValue() );
-					modInfo.setDescription( infoNode.get( "desc" ).textValue() );
-					modInfo.setFileHash( versionNode.get( "hash" ).textValue() );
-					modInfo.setVersion( versionNode.get( "version" ).textValue() );
-					modDB.addMod( modInfo );
+			JsonFactory factory = new JsonFactory();
+			factory.configure( JsonParser.Feature.ALLOW_SINGLE_QUOTES, true );
+			parser = factory.createParser( jsonFile );
+
+			expectToken( parser, parser.nextToken(), JsonToken.START_OBJECT );
+			while ( parser.nextToken() == JsonToken.FIELD_NAME ) {
+				String rootField = parser.getCurrentName();
+				parser.nextToken();
+
+				if ( "catalog_versions".equals( rootField ) ) {
+					parseCatalogs( parser, modDB );
+				} else {
+					parser.skipChildren();
 				}
 			}
 
@@ -63,6 +61,10 @@ public class JacksonCatalogReader {
 		catch ( IOException e ) {
 			exception = e;
 		}
+		finally {
+			try {if ( parser != null ) parser.close();}
+			catch ( IOException e ) {}
+		}
 		if ( exception != null ) {
 			log.error( String.format( "While processing \"%s\", json parsing failed: %s", jsonFile.getName(), exception.getMessage() ), exception );
 			return null;
@@ -70,4 +72,125 @@ public class JacksonCatalogReader {
 
 		return null;
 	}
+
+	/**
+	 * Reads the "catalog_versions" object, whose "1" array has the entries.
+	 */
+	private static void parseCatalogs( JsonParser parser, ModDB modDB ) throws IOException {
+		expectToken( parser, parser.getCurrentToken(), JsonToken.START_OBJECT );
+
+		while ( parser.nextToken() == JsonToken.FIELD_NAME ) {
+			String catalogVersion = parser.getCurrentName();
+			parser.nextToken();
+
+			if ( "1".equals( catalogVersion ) ) {
+				expectToken( parser, parser.getCurrentToken(), JsonToken.START_ARRAY );
+				while ( parser.nextToken() != JsonToken.END_ARRAY ) {
+					parseInfo( parser, modDB );
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+	}
+
+	/**
+	 * Reads one entry, adding a ModInfo for each of its versions.
+	 */
+	private static void parseInfo( JsonParser parser, ModDB modDB ) throws IOException {
+		expectToken( parser, parser.getCurrentToken(), JsonToken.START_OBJECT );
+
+		String title = null;
+		String author = null;
+		String url = null;
+		String desc = null;
+		String threadHash = null;
+		List<String[]> versions = new ArrayList<String[]>();  // {hash, version}
+
+		while ( parser.nextToken() == JsonToken.FIELD_NAME ) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+
+			if ( "title".equals( field ) ) {
+				title = parser.getValueAsString();
+			}
+			else if ( "author".equals( field ) ) {
+				author = parser.getValueAsString();
+			}
+			else if ( "url".equals( field ) ) {
+				url = parser.getValueAsString();
+			}
+			else if ( "desc".equals( field ) ) {
+				desc = parser.getValueAsString();
+			}
+			else if ( "thread_hash".equals( field ) ) {
+				threadHash = parser.getValueAsString();
+			}
+			else if ( "versions".equals( field ) ) {
+				expectToken( parser, parser.getCurrentToken(), JsonToken.START_ARRAY );
+				while ( parser.nextToken() != JsonToken.END_ARRAY ) {
+					versions.add( parseVersion( parser ) );
+				}
+			}
+			else {
+				parser.skipChildren();
+			}
+		}
+
+		if ( title == null ) throw new JsonParseException( parser, "Catalog entry lacks a \"title\"" );
+		if ( author == null ) throw new JsonParseException( parser, "Catalog entry lacks an \"author\"" );
+		if ( url == null ) throw new JsonParseException( parser, "Catalog entry lacks a \"url\"" );
+		if ( desc == null ) throw new JsonParseException( parser, "Catalog entry lacks a \"desc\"" );
+		if ( threadHash == null ) throw new JsonParseException( parser, "Catalog entry lacks a \"thread_hash\"" );
+
+		if ( !"???".equals( url ) && !"???".equals( threadHash ) )
+			modDB.putThreadHash( url, threadHash );
+
+		for ( String[] version : versions ) {
+			ModInfo modInfo = new ModInfo();
+			modInfo.setTitle( title );
+			modInfo.setAuthor( author );
+			modInfo.setURL( url );
+			modInfo.setDescription( desc );
+			modInfo.setFileHash( version[0] );
+			modInfo.setVersion( version[1] );
+			modDB.addMod( modInfo );
+		}
+	}
+
+	/**
+	 * Reads a {hash, version} object.
+	 */
+	private static String[] parseVersion( JsonParser parser ) throws IOException {
+		expectToken( parser, parser.getCurrentToken(), JsonToken.START_OBJECT );
+
+		String hash = null;
+		String version = null;
+
+		while ( parser.nextToken() == JsonToken.FIELD_NAME ) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+
+			if ( "hash".equals( field ) ) {
+				hash = parser.getValueAsString();
+			}
+			else if ( "version".equals( field ) ) {
+				version = parser.getValueAsString();
+			}
+			else {
+				parser.skipChildren();
+			}
+		}
+
+		if ( hash == null ) throw new JsonParseException( parser, "Catalog version lacks a \"hash\"" );
+		if ( version == null ) throw new JsonParseException( parser, "Catalog version lacks a \"version\"" );
+
+		return new String[] {hash, version};
+	}
+
+	private static void expectToken( JsonParser parser, JsonToken actual, JsonToken expected ) throws JsonParseException {
+		if ( actual != expected ) {
+			throw new JsonParseException( parser, String.format( "Expected %s, found %s", expected, actual ) );
+		}
+	}
 }
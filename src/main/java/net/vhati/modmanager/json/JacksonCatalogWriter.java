@@ -4,15 +4,12 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Map;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 
 import net.vhati.modmanager.core.ModsInfo;
 
@@ -21,49 +18,59 @@ public class JacksonCatalogWriter {
 
 	/**
 	 * Writes collated catalog entries to a file, as condensed json.
+	 *
+	 * Tokens are streamed out as they're generated. Non-ASCII characters
+	 * are escaped, so the file is plain ASCII.
 	 */
 	public static void write( List<ModsInfo> modsInfoList, File dstFile ) throws IOException {
-		ObjectMapper mapper = new ObjectMapper();
-		ObjectNode rootNode = mapper.createObjectNode();
+		JsonFactory factory = new JsonFactory();
 
-		ObjectNode catalogsNode = rootNode.objectNode();
-		rootNode.set( "catalog_versions", catalogsNode );
+		OutputStream os = null;
+		JsonGenerator gen = null;
+		try {
+			os = new FileOutputStream( dstFile );
+			gen = factory.createGenerator( os, JsonEncoding.UTF8 );
+			gen.enable( JsonGenerator.Feature.ESCAPE_NON_ASCII );
 
-		ArrayNode catalogNode = rootNode.arrayNode();
-		catalogsNode.set( "1", catalogNode );
+			gen.writeStartObject();
+			gen.writeObjectFieldStart( "catalog_versions" );
+			gen.writeArrayFieldStart( "1" );
 
-		for ( ModsInfo modsInfo : modsInfoList ) {
-			ObjectNode infoNode = rootNode.objectNode();
-			catalogNode.add( infoNode );
+			for ( ModsInfo modsInfo : modsInfoList ) {
+				gen.writeStartObject();
 
-			infoNode.put( "title", modsInfo.getTitle() );
-			infoNode.put( "author", modsInfo.getAuthor() );
-			infoNode.put( "desc", modsInfo.getDescription() );
-			infoNode.put( "url", modsInfo.getThreadURL() );
+				gen.writeStringField( "title", modsInfo.getTitle() );
+				gen.writeStringField( "author", modsInfo.getAuthor() );
+				gen.writeStringField( "desc", modsInfo.getDescription() );
+				gen.writeStringField( "url", modsInfo.getThreadURL() );
 
-			infoNode.put( "thread_hash", modsInfo.threadHash );
+				gen.writeStringField( "thread_hash", modsInfo.threadHash );
 
-			ArrayNode versionsNode = rootNode.arrayNode();
-			infoNode.set( "versions", versionsNode );
+				gen.writeArrayFieldStart( "versions" );
+				for ( Map.Entry<String,String> entry : modsInfo.getVersionsMap().entrySet() ) {
+					String versionFileHash = entry.getKey();
+					String versionString = entry.getValue();
 
-			for ( Map.Entry<String,String> entry : modsInfo.getVersionsMap().entrySet() ) {
-				String versionFileHash = entry.getKey();
-				String versionString = entry.getValue();
+					gen.writeStartObject();
+					gen.writeStringField( "hash", versionFileHash );
+					gen.writeStringField( "version", versionString );
+					gen.writeEndObject();
+				}
+				gen.writeEndArray();
 
-				ObjectNode versionNode = rootNode.objectNode();
-				versionNode.put( "hash", versionFileHash );
-				versionNode.put( "version", versionString );
-				versionsNode.add( versionNode );
+				gen.writeEndObject();
 			}
-		}
 
-		OutputStream os = null;
-		try {
-			os = new FileOutputStream( dstFile );
-			OutputStreamWriter writer = new OutputStreamWriter( os, Charset.forName( "US-ASCII" ) );
-			mapper.writeValue( writer, rootNode );
+			gen.writeEndArray();
+			gen.writeEndObject();
+			gen.writeEndObject();
+			gen.close();
+			gen = null;
 		}
 		finally {
+			try {if ( gen != null ) gen.close();}
+			catch ( IOException e ) {}
+
 			try {if ( os != null ) os.close();}
 			catch ( IOException e ) {}
 		}
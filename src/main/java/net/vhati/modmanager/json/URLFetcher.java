@@ -18,18 +18,80 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 
 
+/**
+ * Downloads files over HTTP.
+ *
+ * All fetches share one client, whose connections are pooled, so it's
+ * safe to fetch from several threads at once.
+ */
 public class URLFetcher {
 
 	private static final Logger log = LoggerFactory.getLogger( URLFetcher.class );
 
+	private static final int MAX_CONNECTIONS = 8;
+	private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+
+	private static CloseableHttpClient sharedClient = null;
+
+
+	/**
+	 * Returns the shared client, creating it if necessary.
+	 *
+	 * Requests ask for gzip/deflate content-encoding, and responses are
+	 * decompressed transparently. HttpClientBuilder does that by default.
+	 */
+	private static synchronized CloseableHttpClient getHttpClient() {
+		if ( sharedClient != null ) return sharedClient;
+
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal( MAX_CONNECTIONS );
+		connectionManager.setDefaultMaxPerRoute( MAX_CONNECTIONS_PER_ROUTE );
+		// Retries are disabled, so check that a pooled connection
+		// wasn't closed by the server before reusing it.
+		connectionManager.setValidateAfterInactivity( 1 );
+
+		RequestConfig requestConfig = RequestConfig.custom()
+			.setConnectionRequestTimeout( 5000 )
+			.setConnectTimeout( 5000 )
+			.setSocketTimeout( 10000 )
+			.setRedirectsEnabled( true )
+			.build();
+
+		sharedClient = HttpClientBuilder.create()
+			.setConnectionManager( connectionManager )
+			.setDefaultRequestConfig( requestConfig )
+			.disableAuthCaching()
+			.disableAutomaticRetries()
+			.disableConnectionState()
+			.disableCookieManagement()
+			//.setUserAgent( "" )
+			.build();
+
+		return sharedClient;
+	}
+
+	/**
+	 * Closes the shared client and its pooled connections.
+	 *
+	 * A later fetch will create a new one.
+	 */
+	public static synchronized void closeHttpClient() {
+		if ( sharedClient == null ) return;
+
+		try {sharedClient.close();}
+		catch ( IOException e ) {}
+		sharedClient = null;
+	}
+
 
 	/**
 	 * Downloads content from a url to one file, and its ETag to another.
@@ -42,6 +104,8 @@ public class URLFetcher {
 	 * If the content has changed, it will be written to the file, as will the
 	 * new ETag.
 	 *
+	 * Several of these may run at once, as long as they don't share files.
+	 *
 	 * @return true if successfully downloaded, false otherwise
 	 */
 	public static boolean refetchURL( String url, File localFile, File eTagFile ) {
@@ -74,29 +138,19 @@ public class URLFetcher {
 		}
 
 		HttpGet request = null;
+		CloseableHttpResponse response = null;
 		OutputStream localOut = null;
 		String remoteETag = null;
 
-		RequestConfig requestConfig = RequestConfig.custom()
-			.setConnectionRequestTimeout( 5000 )
-			.setConnectTimeout( 5000 )
-			.setSocketTimeout( 10000 )
-			.setRedirectsEnabled( true )
-			.build();
-
-		CloseableHttpClient httpClient = HttpClientBuilder.create()
-			.setDefaultRequestConfig( requestConfig )
-			.disableAuthCaching()
-			.disableAutomaticRetries()
-			.disableConnectionState()
-			.disableCookieManagement()
-			//.setUserAgent( "" )
-			.build();
+		CloseableHttpClient httpClient = getHttpClient();
 
 		try {
 			request = new HttpGet( url );
+			if ( localETag != null && localFile.exists() ) {
+				request.addHeader( "If-None-Match", localETag );
+			}
 
-			HttpResponse response = httpClient.execute( request );
+			response = httpClient.execute( request );
 
 			int status = response.getStatusLine().getStatusCode();
 			if ( status >= 200 && status < 300 ) {
@@ -134,7 +188,8 @@ public class URLFetcher {
 			try {if ( localOut != null ) localOut.close();}
 			catch ( IOException e ) {}
 
-			try {httpClient.close();}
+			// Closing the response returns its connection to the pool.
+			try {if ( response != null ) response.close();}
 			catch ( IOException e ) {}
 		}
 
@@ -3,7 +3,6 @@ package net.vhati.modmanager.ui;
 import java.awt.Frame;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.InputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -16,6 +15,8 @@ import org.slf4j.LoggerFactory;
 import net.vhati.ftldat.AbstractPack;
 import net.vhati.ftldat.FolderPack;
 import net.vhati.ftldat.FTLPack;
+import net.vhati.ftldat.PackExtractor;
+import net.vhati.ftldat.PackUtilities;
 import net.vhati.ftldat.PkgPack;
 
 import net.vhati.modmanager.ui.ProgressDialog;
@@ -95,25 +96,31 @@ public class DatExtractDialog extends ProgressDialog {
 
 		@Override
 		public void run() {
-			AbstractPack dstPack = null;
+			FolderPack dstPack = null;
 			List<AbstractPack> srcPacks = new ArrayList<AbstractPack>( 2 );
-			InputStream is = null;
-			int progress = 0;
 
 			try {
 				File ftlDatFile = new File( datsDir, "ftl.dat" );
 				File dataDatFile = new File( datsDir, "data.dat" );
 				File resourceDatFile = new File( datsDir, "resource.dat" );
 
+				// Only map if the mapping can be released promptly afterward, or the
+				// dats would stay locked (on Windows) against patching.
+				boolean mapDats = PackUtilities.isUnmapSupported();
+
 				if ( ftlDatFile.exists() ) {  // FTL 1.6.1.
-					AbstractPack ftlPack = new PkgPack( ftlDatFile, "r" );
+					PkgPack ftlPack = new PkgPack( ftlDatFile, "r" );
 					srcPacks.add( ftlPack );
+					ftlPack.setMemoryMapped( mapDats );
 				}
 				else if ( dataDatFile.exists() && resourceDatFile.exists() ) {  // FTL 1.01-1.5.13.
-					AbstractPack dataPack = new FTLPack( dataDatFile, "r" );
-					AbstractPack resourcePack = new FTLPack( resourceDatFile, "r" );
+					FTLPack dataPack = new FTLPack( dataDatFile, "r" );
 					srcPacks.add( dataPack );
+					dataPack.setMemoryMapped( mapDats );
+
+					FTLPack resourcePack = new FTLPack( resourceDatFile, "r" );
 					srcPacks.add( resourcePack );
+					resourcePack.setMemoryMapped( mapDats );
 				}
 				else {
 					throw new FileNotFoundException( String.format( "Could not find either \"%s\" or both \"%s\" and \"%s\"", ftlDatFile.getName(), dataDatFile.getName(), resourceDatFile.getName() ) );
@@ -123,21 +130,24 @@ public class DatExtractDialog extends ProgressDialog {
 
 				dstPack = new FolderPack( extractDir );
 
-				for ( AbstractPack srcPack : srcPacks ) {
-					progress = 0;
-					List<String> innerPaths = srcPack.list();
-					setProgressLater( progress, innerPaths.size() );
+				PackExtractor extractor = new PackExtractor();
+
+				PackExtractor.ExtractObserver extractObserver = new PackExtractor.ExtractObserver() {
+					@Override
+					public void extractionOverwriting( String innerPath ) {
+						log.info( "While extracting resources, this file was overwritten: "+ innerPath );
+					}
 
-					for ( String innerPath : innerPaths ) {
+					@Override
+					public void extractionProgress( String innerPath, int done, int total ) {
 						setStatusTextLater( innerPath );
-						if ( dstPack.contains( innerPath ) ) {
-							log.info( "While extracting resources, this file was overwritten: "+ innerPath );
-							dstPack.remove( innerPath );
-						}
-						is = srcPack.getInputStream( innerPath );
-						dstPack.add( innerPath, is );
-						setProgressLater( progress++ );
+						setProgressLater( done, total );
 					}
+				};
+
+				for ( AbstractPack srcPack : srcPacks ) {
+					setProgressLater( 0, srcPack.list().size() );
+					extractor.extract( srcPack, dstPack, extractObserver );
 					srcPack.close();
 				}
 				setTaskOutcomeLater( true, null );
@@ -147,9 +157,6 @@ public class DatExtractDialog extends ProgressDialog {
 				setTaskOutcomeLater( false, e );
 			}
 			finally {
-				try {if ( is != null ) is.close();}
-				catch ( IOException e ) {}
-
 				try {if ( dstPack != null ) dstPack.close();}
 				catch ( IOException e ) {}
 
@@ -60,6 +60,7 @@ import net.vhati.modmanager.core.AutoUpdateInfo;
 import net.vhati.modmanager.core.ComparableVersion;
 import net.vhati.modmanager.core.FTLUtilities;
 import net.vhati.modmanager.core.ModDB;
+import net.vhati.modmanager.core.ModDBSnapshot;
 import net.vhati.modmanager.core.ModFileInfo;
 import net.vhati.modmanager.core.ModInfo;
 import net.vhati.modmanager.core.ModPatchThread;
@@ -69,6 +70,7 @@ import net.vhati.modmanager.core.ModUtilities;
 import net.vhati.modmanager.core.Report;
 import net.vhati.modmanager.core.Report.ReportFormatter;
 import net.vhati.modmanager.core.SlipstreamConfig;
+import net.vhati.modmanager.json.JacksonCatalogReader;
 import net.vhati.modmanager.json.JacksonCatalogWriter;
 import net.vhati.modmanager.json.URLFetcher;
 import net.vhati.modmanager.ui.InertPanel;
@@ -96,8 +98,11 @@ public class ManagerFrame extends JFrame implements ActionListener, ModsScanObse
 	private File modsTableStateFile = new File( modsDir, "modorder.txt" );
 
 	private File metadataFile = new File( backupDir, "cached_metadata.json" );
+	private File metadataSnapshotFile = new File( backupDir, "cached_metadata.bin" );
+	private File modHashesFile = new File( "./modman_hashes.txt" );
 
 	private File catalogFile = new File( backupDir, "current_catalog.json" );
+	private File catalogSnapshotFile = new File( backupDir, "current_catalog.bin" );
 	private File catalogETagFile = new File( backupDir, "current_catalog_etag.txt" );
 
 	private File appUpdateFile = new File( backupDir, "auto_update.json" );
@@ -292,13 +297,29 @@ public class ManagerFrame extends JFrame implements ActionListener, ModsScanObse
 					log.error( String.format( "Error writing config to \"%s\"", appConfig.getConfigFile().getName() ), f );
 				}
 
+				boolean metadataWritten = false;
 				try {
 					JacksonCatalogWriter.write( localModDB.getCollatedModInfo(), metadataFile );
+					metadataWritten = true;
 				}
 				catch ( IOException f ) {
 					log.error( String.format( "Error writing metadata from local mods to \"%s\"", metadataFile.getName() ), f );
 				}
 
+				if ( metadataWritten ) {
+					// The json just got a new mtime, so the old snapshot is stale.
+					// Snapshot the ModDB that the json will parse into next launch.
+					ModDB writtenDB = JacksonCatalogReader.parse( metadataFile );
+					if ( writtenDB != null ) {
+						try {
+							ModDBSnapshot.write( writtenDB, metadataSnapshotFile, metadataFile, null );
+						}
+						catch ( IOException f ) {
+							log.warn( String.format( "Error writing snapshot \"%s\"", metadataSnapshotFile.getName() ), f );
+						}
+					}
+				}
+
 				System.gc();
 				//System.exit( 0 );  // Don't do this (InterruptedException). Let EDT end gracefully.
 			}
@@ -429,7 +450,9 @@ public class ManagerFrame extends JFrame implements ActionListener, ModsScanObse
 			modsDir,
 			modsTableStateFile,
 			metadataFile,
+			metadataSnapshotFile,
 			catalogFile,
+			catalogSnapshotFile,
 			catalogETagFile,
 			appUpdateFile,
 			appUpdateETagFile
@@ -535,7 +558,7 @@ public class ManagerFrame extends JFrame implements ActionListener, ModsScanObse
 			modsTablePanel.getTableModel().addItem( modFileInfo );
 		}
 
-		ModsScanThread scanThread = new ModsScanThread( modFiles, localModDB, this );
+		ModsScanThread scanThread = new ModsScanThread( modFiles, localModDB, modHashesFile, this );
 		scanThread.setDaemon( true );
 		scanThread.setPriority( Thread.MIN_PRIORITY );
 		scanThread.start();
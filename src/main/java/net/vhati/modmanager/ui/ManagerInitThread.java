@@ -11,6 +11,12 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import javax.swing.SwingUtilities;
 
@@ -19,6 +25,7 @@ import org.slf4j.LoggerFactory;
 
 import net.vhati.modmanager.core.AutoUpdateInfo;
 import net.vhati.modmanager.core.ModDB;
+import net.vhati.modmanager.core.ModDBSnapshot;
 import net.vhati.modmanager.core.ModFileInfo;
 import net.vhati.modmanager.core.SlipstreamConfig;
 import net.vhati.modmanager.json.JacksonAutoUpdateReader;
@@ -35,6 +42,11 @@ import net.vhati.modmanager.ui.table.ListState;
  * Rescans the "mods/" folder.
  * Reads saved catalog, and redownloads if stale.
  * Reads saved info about app updates, and redownloads if stale.
+ *
+ * Downloads happen concurrently with each other and with the rescan.
+ *
+ * The metadata and catalog json each have a binary snapshot alongside,
+ * which is read instead when it's still current, and rewritten otherwise.
  */
 public class ManagerInitThread extends Thread {
 
@@ -45,20 +57,24 @@ public class ManagerInitThread extends Thread {
 	private final File modsDir;
 	private final File modsTableStateFile;
 	private final File metadataFile;
+	private final File metadataSnapshotFile;
 	private final File catalogFile;
+	private final File catalogSnapshotFile;
 	private final File catalogETagFile;
 	private final File appUpdateFile;
 	private final File appUpdateETagFile;
 
 
-	public ManagerInitThread( ManagerFrame frame, SlipstreamConfig appConfig, File modsDir, File modsTableStateFile, File metadataFile, File catalogFile, File catalogETagFile, File appUpdateFile, File appUpdateETagFile ) {
+	public ManagerInitThread( ManagerFrame frame, SlipstreamConfig appConfig, File modsDir, File modsTableStateFile, File metadataFile, File metadataSnapshotFile, File catalogFile, File catalogSnapshotFile, File catalogETagFile, File appUpdateFile, File appUpdateETagFile ) {
 		super( "init" );
 		this.frame = frame;
 		this.appConfig = appConfig;
 		this.modsDir = modsDir;
 		this.modsTableStateFile = modsTableStateFile;
 		this.metadataFile = metadataFile;
+		this.metadataSnapshotFile = metadataSnapshotFile;
 		this.catalogFile = catalogFile;
+		this.catalogSnapshotFile = catalogSnapshotFile;
 		this.catalogETagFile = catalogETagFile;
 		this.appUpdateFile = appUpdateFile;
 		this.appUpdateETagFile = appUpdateETagFile;
@@ -80,29 +96,10 @@ public class ManagerInitThread extends Thread {
 
 		if ( metadataFile.exists() ) {
 			// Load cached metadata first, before scanning for new info.
-			ModDB cachedDB = JacksonCatalogReader.parse( metadataFile );
+			ModDB cachedDB = loadModDB( metadataFile, metadataSnapshotFile, null );
 			if ( cachedDB != null ) frame.setLocalModDB( cachedDB );
 		}
 
-		final ListState<ModFileInfo> tableState = loadModsTableState();
-
-		Lock managerLock = frame.getLock();
-		managerLock.lock();
-		try {
-			SwingUtilities.invokeLater(new Runnable() {
-				@Override
-				public void run() { frame.rescanMods( tableState ); }
-			});
-
-			// Wait until notified that "mods/" has been scanned.
-			while ( frame.isScanning() ) {
-				frame.getScanEndedCondition().await();
-			}
-		}
-		finally {
-			managerLock.unlock();
-		}
-
 		int catalogUpdateInterval = appConfig.getPropertyAsInt( "update_catalog", 0 );
 		boolean needNewCatalog = false;
 
@@ -125,13 +122,6 @@ public class ManagerInitThread extends Thread {
 			}
 		}
 
-		if ( needNewCatalog ) {
-			boolean fetched = URLFetcher.refetchURL( ManagerFrame.CATALOG_URL, catalogFile, catalogETagFile );
-			if ( fetched && catalogFile.exists() ) {
-				reloadCatalog();
-			}
-		}
-
 		// Load the cached info first, before downloading.
 		if ( appUpdateFile.exists() ) reloadAppUpdateInfo();
 
@@ -154,11 +144,66 @@ public class ManagerInitThread extends Thread {
 			}
 		}
 
-		if ( needAppUpdate ) {
-			boolean fetched = URLFetcher.refetchURL( ManagerFrame.APP_UPDATE_URL, appUpdateFile, appUpdateETagFile );
-			if ( fetched && appUpdateFile.exists() ) {
-				reloadAppUpdateInfo();
+		// Download in the background while "mods/" is scanned.
+		// Each fetch reloads its own file when done.
+		ExecutorService fetchExecutor = Executors.newFixedThreadPool( 2, new FetchThreadFactory() );
+		List<Future<?>> fetchFutures = new ArrayList<Future<?>>();
+		try {
+			if ( needNewCatalog ) {
+				fetchFutures.add( fetchExecutor.submit(new Runnable() {
+					@Override
+					public void run() {
+						boolean fetched = URLFetcher.refetchURL( ManagerFrame.CATALOG_URL, catalogFile, catalogETagFile );
+						if ( fetched && catalogFile.exists() ) {
+							reloadCatalog();
+						}
+					}
+				}) );
+			}
+
+			if ( needAppUpdate ) {
+				fetchFutures.add( fetchExecutor.submit(new Runnable() {
+					@Override
+					public void run() {
+						boolean fetched = URLFetcher.refetchURL( ManagerFrame.APP_UPDATE_URL, appUpdateFile, appUpdateETagFile );
+						if ( fetched && appUpdateFile.exists() ) {
+							reloadAppUpdateInfo();
+						}
+					}
+				}) );
 			}
+
+			final ListState<ModFileInfo> tableState = loadModsTableState();
+
+			Lock managerLock = frame.getLock();
+			managerLock.lock();
+			try {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() { frame.rescanMods( tableState ); }
+				});
+
+				// Wait until notified that "mods/" has been scanned.
+				while ( frame.isScanning() ) {
+					frame.getScanEndedCondition().await();
+				}
+			}
+			finally {
+				managerLock.unlock();
+			}
+
+			for ( Future<?> fetchFuture : fetchFutures ) {
+				try {
+					fetchFuture.get();
+				}
+				catch ( ExecutionException e ) {
+					log.error( "Error while fetching", e.getCause() );
+				}
+			}
+		}
+		finally {
+			fetchExecutor.shutdownNow();
+			URLFetcher.closeHttpClient();
 		}
 	}
 
@@ -202,7 +247,7 @@ public class ManagerInitThread extends Thread {
 
 
 	private void reloadCatalog() {
-		final ModDB currentDB = JacksonCatalogReader.parse( catalogFile );
+		final ModDB currentDB = loadModDB( catalogFile, catalogSnapshotFile, catalogETagFile );
 		if ( currentDB != null ) {
 			SwingUtilities.invokeLater(new Runnable() {
 				@Override
@@ -213,6 +258,64 @@ public class ManagerInitThread extends Thread {
 		}
 	}
 
+	/**
+	 * Reads a catalog json file, preferring its snapshot if still current.
+	 *
+	 * After parsing the json, the snapshot is rewritten.
+	 *
+	 * @param eTagFile a file holding the json's ETag, or null
+	 * @return a new ModDB, or null if the json couldn't be parsed
+	 */
+	private ModDB loadModDB( File jsonFile, File snapshotFile, File eTagFile ) {
+		String eTag = ( eTagFile != null ? readETag( eTagFile ) : null );
+
+		try {
+			ModDB snapshotDB = ModDBSnapshot.read( snapshotFile, jsonFile, eTag );
+			if ( snapshotDB != null ) {
+				log.debug( String.format( "Read snapshot of \"%s\"", jsonFile.getName() ) );
+				return snapshotDB;
+			}
+		}
+		catch ( IOException e ) {
+			log.warn( String.format( "Error reading snapshot \"%s\", falling back to json", snapshotFile.getName() ), e );
+		}
+
+		ModDB parsedDB = JacksonCatalogReader.parse( jsonFile );
+		if ( parsedDB != null ) {
+			try {
+				ModDBSnapshot.write( parsedDB, snapshotFile, jsonFile, eTag );
+			}
+			catch ( IOException e ) {
+				// A stale snapshot left behind will just be ignored.
+				log.warn( String.format( "Error writing snapshot \"%s\"", snapshotFile.getName() ), e );
+			}
+		}
+		return parsedDB;
+	}
+
+	/**
+	 * Returns the first line of an ETag file, or null.
+	 */
+	private String readETag( File eTagFile ) {
+		if ( !eTagFile.exists() ) return null;
+
+		BufferedReader br = null;
+		try {
+			FileInputStream is = new FileInputStream( eTagFile );
+			br = new BufferedReader( new InputStreamReader( is, Charset.forName( "UTF-8" ) ) );
+			String line = br.readLine();
+			if ( line != null && line.length() > 0 ) return line;
+		}
+		catch ( IOException e ) {
+			log.debug( String.format( "Error reading eTag from \"%s\"", eTagFile.getName() ), e );
+		}
+		finally {
+			try {if ( br != null ) br.close();}
+			catch ( Exception e ) {}
+		}
+		return null;
+	}
+
 	private void reloadAppUpdateInfo() {
 		final AutoUpdateInfo aui = JacksonAutoUpdateReader.parse( appUpdateFile );
 		if ( aui != null ) {
@@ -240,4 +343,23 @@ public class ManagerInitThread extends Thread {
 
 		return (fileCal.compareTo( freshCal ) < 0);
 	}
+
+
+
+	/**
+	 * Creates named daemon threads for downloads.
+	 *
+	 * Like the init thread, they run at minimum priority.
+	 */
+	private static class FetchThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadNumber = new AtomicInteger( 1 );
+
+		@Override
+		public Thread newThread( Runnable r ) {
+			Thread t = new Thread( r, "init-fetch-"+ threadNumber.getAndIncrement() );
+			t.setDaemon( true );
+			t.setPriority( Thread.MIN_PRIORITY );
+			return t;
+		}
+	}
 }
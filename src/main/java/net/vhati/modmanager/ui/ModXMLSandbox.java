@@ -327,6 +327,8 @@ public class ModXMLSandbox extends JFrame implements ActionListener {
 			File ftlDatFile = new File( datsDir, "ftl.dat" );
 			File dataDatFile = new File( datsDir, "data.dat" );
 
+			// Not memory-mapped. Patching may overwrite these dats later in
+			// the same session, which a lingering mapping would prevent.
 			if ( ftlDatFile.exists() ) {  // FTL 1.6.1.
 				pack = new PkgPack( ftlDatFile, "r" );
 			}
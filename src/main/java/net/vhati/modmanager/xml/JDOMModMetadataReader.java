@@ -17,6 +17,7 @@ import org.jdom2.input.SAXBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.vhati.ftldat.ZipPack;
 import net.vhati.modmanager.core.ModDB;
 import net.vhati.modmanager.core.ModInfo;
 import net.vhati.modmanager.core.ModUtilities;
@@ -38,9 +39,71 @@ public class JDOMModMetadataReader {
 	public static ModInfo parseModFile( File modFile ) {
 		ModInfo modInfo = null;
 
+		Exception exception = null;
+		try {
+			String metadataText = readMetadataText( modFile );
+			if ( metadataText != null ) {
+				modInfo = parse( metadataText );
+			}
+		}
+		catch ( JDOMException e ) {
+			exception = e;
+		}
+		catch ( IOException e ) {
+			exception = e;
+		}
+		if ( exception != null ) {
+			log.error( String.format( "While processing \"%s:%s\", strict parsing failed: %s", modFile.getName(), METADATA_INNERPATH, exception.getMessage() ), exception );
+			return null;
+		}
+
+		if ( modInfo == null ) modInfo = new ModInfo();
+		return modInfo;
+	}
+
+	/**
+	 * Returns the decoded text of a mod's metadata.xml, or null if absent.
+	 *
+	 * The zip's central directory is consulted, so only that one entry gets
+	 * inflated. If the central directory can't be read, entries are scanned
+	 * in sequence instead, which copes with some damaged zips.
+	 */
+	private static String readMetadataText( File modFile ) throws IOException {
+		ZipPack zipPack = null;
+		try {
+			zipPack = new ZipPack( modFile );
+		}
+		catch ( IOException e ) {
+			log.debug( String.format( "Scanning \"%s\" sequentially for metadata: %s", modFile.getName(), e.getMessage() ) );
+			return scanMetadataText( modFile );
+		}
+
+		InputStream is = null;
+		try {
+			for ( String innerPath : zipPack.list() ) {
+				if ( innerPath.replace( '\\', '/' ).equals( METADATA_INNERPATH ) ) {  // Non-standard zips.
+					is = zipPack.getInputStream( innerPath );
+					return ModUtilities.decodeText( is, modFile.getName()+":"+METADATA_INNERPATH ).text;
+				}
+			}
+			return null;
+		}
+		finally {
+			try {if ( is != null ) is.close();}
+			catch ( IOException e ) {}
+
+			try {zipPack.close();}
+			catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Returns the decoded text of a mod's metadata.xml, or null if absent,
+	 * reading the zip from the beginning.
+	 */
+	private static String scanMetadataText( File modFile ) throws IOException {
 		InputStream fis = null;
 		ZipInputStream zis = null;
-		Exception exception = null;
 		try {
 			fis = new FileInputStream( modFile );
 			zis = new ZipInputStream( new BufferedInputStream( fis ) );
@@ -55,20 +118,12 @@ public class JDOMModMetadataReader {
 				innerPath = innerPath.replace( '\\', '/' );  // Non-standard zips.
 
 				if ( innerPath.equals( METADATA_INNERPATH ) ) {
-					String metadataText = ModUtilities.decodeText( zis, modFile.getName()+":"+METADATA_INNERPATH ).text;
-					modInfo = parse( metadataText );
-					zis.closeEntry();
-					break;
+					return ModUtilities.decodeText( zis, modFile.getName()+":"+METADATA_INNERPATH ).text;
 				}
 
 				zis.closeEntry();
 			}
-		}
-		catch ( JDOMException e ) {
-			exception = e;
-		}
-		catch ( IOException e ) {
-			exception = e;
+			return null;
 		}
 		finally {
 			try {if ( zis != null ) zis.close();}
@@ -77,13 +132,6 @@ public class JDOMModMetadataReader {
 			try {if ( fis != null ) fis.close();}
 			catch ( IOException e ) {}
 		}
-		if ( exception != null ) {
-			log.error( String.format( "While processing \"%s:%s\", strict parsing failed: %s", modFile.getName(), METADATA_INNERPATH, exception.getMessage() ), exception );
-			return null;
-		}
-
-		if ( modInfo == null ) modInfo = new ModInfo();
-		return modInfo;
 	}
 
 
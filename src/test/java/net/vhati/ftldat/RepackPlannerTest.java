@@ -0,0 +1,123 @@
+package net.vhati.ftldat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.vhati.ftldat.RepackPlanner;
+import net.vhati.ftldat.RepackPlanner.Move;
+
+
+/**
+ * Replays plans against a simulated file, checking no block's bytes are lost.
+ */
+public class RepackPlannerTest {
+
+	/**
+	 * A block crossing regionStart, with another block inside the stretch it
+	 * would be moved onto.
+	 */
+	@Test
+	public void testStraddlingBlockWithBlockInTheWay() {
+		long[][] layout = new long[][] {{3, 14}, {17, 0}, {17, 19}};
+		checkLayout( 9, layout, 0 );
+	}
+
+	@Test
+	public void testStraddlingBlockWithRoom() {
+		long[][] layout = new long[][] {{3, 10}, {20, 5}};
+		checkLayout( 8, layout, 0 );
+	}
+
+	@Test
+	public void testRandomLayouts() {
+		Random rng = new Random( 12345 );
+
+		for ( int n=0; n < 20000; n++ ) {
+			int blockCount = 1 + rng.nextInt( 8 );
+			long[][] layout = new long[blockCount][];
+			long offset = rng.nextInt( 4 );
+			for ( int i=0; i < blockCount; i++ ) {
+				long length = ( rng.nextInt( 5 ) == 0 ? 0 : 1 + rng.nextInt( 20 ) );
+				layout[i] = new long[] {offset, length};
+				offset += length + ( rng.nextBoolean() ? 0 : rng.nextInt( 10 ) );
+			}
+			long regionStart = rng.nextInt( (int)offset + 1 );
+			long gapAllowance = ( rng.nextBoolean() ? 0 : rng.nextInt( 8 ) );
+
+			checkLayout( regionStart, layout, gapAllowance );
+		}
+	}
+
+
+	/**
+	 * Plans a layout, performs the moves on a fake file, and checks each
+	 * block's content ends up intact, past regionStart, within the allowance.
+	 *
+	 * @param layout pairs of {offset, length}, not overlapping
+	 */
+	private void checkLayout( long regionStart, long[][] layout, long gapAllowance ) {
+		String desc = "regionStart="+ regionStart +" gapAllowance="+ gapAllowance +" layout="+ Arrays.deepToString( layout );
+
+		RepackPlanner<Integer> planner = new RepackPlanner<Integer>( regionStart );
+		planner.setGapAllowance( gapAllowance );
+
+		long fileLength = regionStart;
+		long totalLength = 0;
+		for ( int i=0; i < layout.length; i++ ) {
+			planner.addBlock( Integer.valueOf( i ), layout[i][0], layout[i][1] );
+			fileLength = Math.max( fileLength, layout[i][0] + layout[i][1] );
+			totalLength += layout[i][1];
+		}
+
+		List<Move<Integer>> moves = planner.plan();
+
+		long maxLength = fileLength;
+		for ( Move<Integer> move : moves ) {
+			maxLength = Math.max( maxLength, move.dstOffset + move.length );
+		}
+
+		// Give each block distinct bytes.
+		byte[] file = new byte[(int)maxLength];
+		byte[][] expected = new byte[layout.length][];
+		long[] offsets = new long[layout.length];
+		for ( int i=0; i < layout.length; i++ ) {
+			offsets[i] = layout[i][0];
+			expected[i] = new byte[(int)layout[i][1]];
+			for ( int j=0; j < expected[i].length; j++ ) {
+				expected[i][j] = (byte)(i * 31 + j + 1);
+			}
+			System.arraycopy( expected[i], 0, file, (int)offsets[i], expected[i].length );
+		}
+
+		long plannedBytes = 0;
+		for ( Move<Integer> move : moves ) {
+			int i = move.key.intValue();
+			assertEquals( desc, offsets[i], move.srcOffset );
+			assertEquals( desc, layout[i][1], move.length );
+
+			// Copies tolerate overlap with their own destination.
+			System.arraycopy( file, (int)move.srcOffset, file, (int)move.dstOffset, (int)move.length );
+			offsets[i] = move.dstOffset;
+			plannedBytes += move.length;
+		}
+		assertEquals( desc, plannedBytes, planner.getPlannedBytes() );
+
+		long regionEnd = planner.getRegionEnd();
+		for ( int i=0; i < layout.length; i++ ) {
+			assertTrue( desc, offsets[i] >= regionStart );
+			assertTrue( desc, offsets[i] + layout[i][1] <= regionEnd );
+
+			byte[] actual = Arrays.copyOfRange( file, (int)offsets[i], (int)(offsets[i] + layout[i][1]) );
+			assertArrayEquals( desc +" block "+ i, expected[i], actual );
+		}
+		assertTrue( desc, regionEnd - regionStart - totalLength <= gapAllowance );
+	}
+}